@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet;
+
+import android.graphics.Bitmap;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/*
+   Strict mode of the AllocationTracker on the RenderScript model, on a device:
+   ./gradlew :app:connectedAndroidTest
+*/
+@RunWith(AndroidJUnit4.class)
+public class AllocationTrackerTest {
+    private static final int SIZE = 128;
+    // More than the 2 inferences of the warmup.
+    private static final int INFERENCES = 5;
+
+    private FastStyleModelTiled mModel;
+
+    @After
+    public void tearDown() {
+        if (mModel != null) {
+            mModel.destroy();
+        }
+        AllocationTracker.disable();
+    }
+
+    private FastStyleModelTiled loadModel() throws Exception {
+        FastStyleModelTiled model = new FastStyleModelTiled(InstrumentationRegistry.getTargetContext());
+        model.loadModel();
+        return model;
+    }
+
+    @Test
+    public void steadyStateInferencesDoNotAllocateNorLeak() throws Exception {
+        AllocationTracker tracker = AllocationTracker.enable(true);
+        mModel = loadModel();
+        Bitmap input = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        Bitmap output = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        // Strict mode throws if an inference past the warmup allocates.
+        for (int i = 0; i < INFERENCES; i++) {
+            mModel.stylize(input, output);
+        }
+        assertEquals(0, tracker.getLastInferenceBytes());
+        assertTrue(tracker.getLiveBytes() > 0);
+
+        mModel.destroy();
+        mModel = null;
+        // Throws in strict mode if an Allocation outlives the model.
+        tracker.checkNoLeaks();
+        assertEquals(0, tracker.getLiveBytes());
+    }
+
+    @Test
+    public void newResolutionPastTheWarmupThrows() throws Exception {
+        AllocationTracker.enable(true);
+        mModel = loadModel();
+        Bitmap input = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        Bitmap output = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        for (int i = 0; i < INFERENCES; i++) {
+            mModel.stylize(input, output);
+        }
+        // The plan of another resolution is built in steady state.
+        Bitmap larger = Bitmap.createBitmap(2 * SIZE, 2 * SIZE, Bitmap.Config.ARGB_8888);
+        try {
+            mModel.stylize(larger);
+            fail("An allocating inference past the warmup must throw in strict mode");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+}
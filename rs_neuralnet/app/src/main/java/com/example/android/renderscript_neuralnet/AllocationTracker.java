@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet;
+
+import android.support.v8.renderscript.Allocation;
+import android.support.v8.renderscript.Element;
+import android.support.v8.renderscript.RenderScript;
+import android.support.v8.renderscript.Type;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.WeakHashMap;
+
+/*
+   Accounting of the Allocations of the neural net.
+
+   The layers and the models create and destroy their Allocations through the
+   static helpers below. When a tracker is enabled, each Allocation is recorded with
+   its owner (a layer, reported under its benchmark name, or a string) until it is
+   destroyed, giving the live and peak bytes, the bytes allocated by each inference,
+   and the Allocations still alive once their model is destroyed, i.e. leaked.
+
+   Once the plans of the resolutions in use are built, an inference should not
+   allocate anything. In strict mode, an inference past the warmup that allocates
+   throws an IllegalStateException, like StrictMode does for disk access on the
+   main thread. The tracker is global to the process, but the inferences are
+   counted per model: the contexts of FastStyleEngine run theirs concurrently, so
+   the models pass themselves to startInference and endInference, and each
+   Allocation is charged to the inference in progress on the thread creating it.
+   The tracker is disabled by default and costs nothing then.
+*/
+public class AllocationTracker {
+    private static final String TAG = "AllocationTracker";
+    private static volatile AllocationTracker sTracker;
+
+    // One live Allocation.
+    public static class Record {
+        public final Object owner;
+        public final String name;
+        public final long bytes;
+
+        Record(Object owner, String name, long bytes) {
+            this.owner = owner;
+            this.name = name;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String toString() {
+            return owner + "/" + name + " " + bytes + " B";
+        }
+    }
+
+    private final boolean mStrict;
+    private final int mWarmup;
+    private final IdentityHashMap<Allocation, Record> mLive = new IdentityHashMap<>();
+    private long mLiveBytes = 0;
+    private long mPeakBytes = 0;
+    private long mTotalBytes = 0;
+    private long mAllocations = 0;
+
+    // The inference state of each model, or context, weakly referenced so that a
+    // model dropped without destroy() is not kept alive by the tracker.
+    private final WeakHashMap<Object, Inferences> mInferences = new WeakHashMap<>();
+    // The inferences of the model running an inference on each thread.
+    private final ThreadLocal<Inferences> mCurrent = new ThreadLocal<>();
+    private long mLastInferenceBytes = 0;
+
+    // The inferences of one model.
+    private static class Inferences {
+        int count = 0;
+        // Bytes allocated by the current inference, -1 outside of one.
+        long bytes = -1;
+    }
+
+    /*
+       strict : throw when an inference past the warmup allocates.
+       warmup : number of inferences of each model allowed to build their plans, 2 for the
+                preview and the full resolution of the app.
+     */
+    public AllocationTracker(boolean strict, int warmup) {
+        mStrict = strict;
+        mWarmup = warmup;
+    }
+
+    // Start tracking the Allocations created from now on and return the tracker.
+    public static AllocationTracker enable(boolean strict) {
+        sTracker = new AllocationTracker(strict, 2);
+        return sTracker;
+    }
+
+    public static void disable() {
+        sTracker = null;
+    }
+
+    // The enabled tracker, or null.
+    public static AllocationTracker get() {
+        return sTracker;
+    }
+
+    public static Allocation createTyped(RenderScript rs, Type type, Object owner, String name) {
+        return track(Allocation.createTyped(rs, type), owner, name);
+    }
+
+    public static Allocation createSized(RenderScript rs, Element e, int count, Object owner, String name) {
+        return track(Allocation.createSized(rs, e, count), owner, name);
+    }
+
+    // Destroy the Allocation and stop tracking it.
+    public static void destroy(Allocation allocation) {
+        AllocationTracker tracker = sTracker;
+        if (tracker != null) {
+            tracker.onDestroy(allocation);
+        }
+        allocation.destroy();
+    }
+
+    private static Allocation track(Allocation allocation, Object owner, String name) {
+        AllocationTracker tracker = sTracker;
+        if (tracker != null) {
+            tracker.onCreate(allocation, owner, name);
+        }
+        return allocation;
+    }
+
+    private synchronized void onCreate(Allocation allocation, Object owner, String name) {
+        long bytes = allocation.getBytesSize();
+        mLive.put(allocation, new Record(owner, name, bytes));
+        mLiveBytes += bytes;
+        mPeakBytes = Math.max(mPeakBytes, mLiveBytes);
+        mTotalBytes += bytes;
+        mAllocations++;
+        Inferences current = mCurrent.get();
+        if (current != null) {
+            current.bytes += bytes;
+        }
+    }
+
+    private synchronized void onDestroy(Allocation allocation) {
+        // Allocations created before the tracker was enabled are not known.
+        Record record = mLive.remove(allocation);
+        if (record != null) {
+            mLiveBytes -= record.bytes;
+        }
+    }
+
+    // Called by the models at the start of each inference, on the thread running it.
+    public synchronized void startInference(Object model) {
+        Inferences inferences = mInferences.get(model);
+        if (inferences == null) {
+            inferences = new Inferences();
+            mInferences.put(model, inferences);
+        }
+        inferences.bytes = 0;
+        mCurrent.set(inferences);
+    }
+
+    // Called by the models at the end of each inference, on the same thread.
+    public synchronized void endInference(Object model) {
+        Inferences inferences = mInferences.get(model);
+        if (mCurrent.get() == inferences) {
+            mCurrent.remove();
+        }
+        if (inferences == null || inferences.bytes < 0) {
+            return;
+        }
+        mLastInferenceBytes = inferences.bytes;
+        inferences.bytes = -1;
+        inferences.count++;
+        if (mStrict && inferences.count > mWarmup && mLastInferenceBytes > 0) {
+            throw new IllegalStateException(model + ": inference " + inferences.count
+                    + " allocated " + mLastInferenceBytes + " bytes in steady state");
+        }
+    }
+
+    public synchronized long getLiveBytes() {
+        return mLiveBytes;
+    }
+
+    public synchronized long getPeakBytes() {
+        return mPeakBytes;
+    }
+
+    // Bytes allocated since the tracker was enabled, destroyed or not.
+    public synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    // Bytes allocated by the last inference to end, of any model.
+    public synchronized long getLastInferenceBytes() {
+        return mLastInferenceBytes;
+    }
+
+    public synchronized List<Record> getLive() {
+        return new ArrayList<>(mLive.values());
+    }
+
+    /*
+       Check that all the tracked Allocations are destroyed, once the models are.
+       Logs the leaked ones, and throws in strict mode.
+     */
+    public synchronized void checkNoLeaks() {
+        if (mLive.isEmpty()) {
+            return;
+        }
+        for (Record record : mLive.values()) {
+            Log.w(TAG, "Leaked " + record);
+        }
+        if (mStrict) {
+            throw new IllegalStateException(mLive.size() + " Allocations leaked, "
+                    + mLiveBytes + " bytes");
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d allocations, %d live, live %.1f MB, peak %.1f MB, "
+                        + "last inference %d B",
+                mAllocations, mLive.size(), mLiveBytes / 1048576.0, mPeakBytes / 1048576.0,
+                mLastInferenceBytes);
+    }
+}
@@ -65,11 +65,33 @@ public class BatchNormalization extends NeuralNetLayerBase {
         avg_var = new float[size];
 
         // Create RS Allocations.
-        gamma_alloc = Allocation.createSized(mRS, Element.F32(mRS), size);
-        beta_alloc = Allocation.createSized(mRS, Element.F32(mRS), size);
-        avg_mean_alloc = Allocation.createSized(mRS, Element.F32(mRS), size);
-        avg_var_alloc = Allocation.createSized(mRS, Element.F32(mRS), size);
+        gamma_alloc = AllocationTracker.createSized(mRS, Element.F32(mRS), size, this, "gamma_alloc");
+        beta_alloc = AllocationTracker.createSized(mRS, Element.F32(mRS), size, this, "beta_alloc");
+        avg_mean_alloc = AllocationTracker.createSized(mRS, Element.F32(mRS), size, this, "avg_mean_alloc");
+        avg_var_alloc = AllocationTracker.createSized(mRS, Element.F32(mRS), size, this, "avg_var_alloc");
 
+        createKernel();
+    }
+
+    // Create another execution context of the given layer. The weights are shared,
+    // the kernel and the intermediate Allocations are private to the new layer.
+    public BatchNormalization(BatchNormalization shared) {
+        super(shared);
+
+        this.size = shared.size;
+        this.gamma = shared.gamma;
+        this.beta = shared.beta;
+        this.avg_mean = shared.avg_mean;
+        this.avg_var = shared.avg_var;
+        this.gamma_alloc = shared.gamma_alloc;
+        this.beta_alloc = shared.beta_alloc;
+        this.avg_mean_alloc = shared.avg_mean_alloc;
+        this.avg_var_alloc = shared.avg_var_alloc;
+
+        createKernel();
+    }
+
+    private void createKernel() {
         // Initialize the BatchNormalization kernel;
         rs_BN = new ScriptC_batchnormalization(mRS);
 
@@ -83,6 +105,7 @@ public class BatchNormalization extends NeuralNetLayerBase {
 
     // Load the data from file and transfer to corresponding Allocations.
     public void loadModel(String path) throws IOException {
+        checkWeightsWritable();
         mInputStream = mContext.getAssets().open(path + "/gamma", AssetManager.ACCESS_BUFFER);
         ByteBuffer bb = readInput(mInputStream);
         FloatBuffer.wrap(gamma).put(bb.asFloatBuffer());
@@ -108,18 +131,31 @@ public class BatchNormalization extends NeuralNetLayerBase {
     }
 
 
+    @Override
+    public void destroy() {
+        if (mOwnsWeights) {
+            AllocationTracker.destroy(gamma_alloc);
+            AllocationTracker.destroy(beta_alloc);
+            AllocationTracker.destroy(avg_mean_alloc);
+            AllocationTracker.destroy(avg_var_alloc);
+        }
+    }
+
     public void process(Allocation input) {
         float[] data, data2;
-        long time = System.currentTimeMillis();
+        long time = startTimer();
+        traceBegin("normalize", -1, null);
         // Execute the BatchNormalization kernel.
         rs_BN.forEach_process(input, input);
+        traceEnd();
 
         // Log time;
-        if (LOG_TIME) {
-            mRS.finish();
-            time = System.currentTimeMillis() - time;
+        if (mTiming) {
+            // 4 operations per element, one read and one write.
+            long count = input.getType().getCount();
+            time = stopTimer(time, "normalize", 4 * count, 8 * count);
             normalizeTime += time;
-            Log.v(TAG, "BatchNormalization, size: " + size + " process time: " + time);
+            Log.v(TAG, "BatchNormalization, size: " + size + " process time: " + time / 1000000);
         }
     }
 }
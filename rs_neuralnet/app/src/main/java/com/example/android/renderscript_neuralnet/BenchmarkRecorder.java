@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+/*
+   Per-layer, per-kernel timing of the neural net, at nanosecond resolution.
+
+   Every kernel launch is recorded under its layer name (c1, b3, r2.c1, d3, ...) and
+   its kernel name (im2col, sgemm, col2im, beta, normalize, ...), together with the
+   floating point operations and the bytes it moves. The first inferences warm up
+   the caches and the drivers, so they are not recorded.
+   Each entry keeps a histogram of the kernel times, to report percentiles.
+*/
+public class BenchmarkRecorder {
+    private final int mWarmup;
+    private int mInferences = 0;
+    private boolean mRecording = false;
+
+    // The entries, in the order of their first record.
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>();
+
+    // Timing of one kernel of one layer.
+    public static class Entry {
+        public final String layer;
+        public final String kernel;
+        public long count = 0;
+        public long totalNanos = 0;
+        // Per launch.
+        public long flops = 0;
+        public long bytes = 0;
+        public final Histogram histogram = new Histogram();
+
+        Entry(String layer, String kernel) {
+            this.layer = layer;
+            this.kernel = kernel;
+        }
+
+        public long meanNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        // Achieved GFLOP/s, based on the mean time.
+        public double gflops() {
+            return totalNanos == 0 ? 0 : (double) flops * count / totalNanos;
+        }
+
+        // Achieved GB/s, based on the mean time.
+        public double gbytes() {
+            return totalNanos == 0 ? 0 : (double) bytes * count / totalNanos;
+        }
+    }
+
+    /*
+       Log-linear histogram of positive values: each power of two is split into 16
+       linear sub-buckets, so any value is recorded within 1/16 of its magnitude,
+       with a fixed memory footprint whatever the range of the values.
+     */
+    public static class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        // Values below 2 * SUB_COUNT get a bucket of their own.
+        private final long[] mCounts = new long[(64 - SUB_BITS) * SUB_COUNT];
+        private long mTotal = 0;
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            mCounts[index(value)]++;
+            mTotal++;
+        }
+
+        private static int index(long value) {
+            if (value < 2 * SUB_COUNT) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return (shift + 1) * SUB_COUNT + (int) (value >> shift) - SUB_COUNT;
+        }
+
+        // The middle of the range of values recorded in the bucket.
+        private static long value(int index) {
+            if (index < 2 * SUB_COUNT) {
+                return index;
+            }
+            int shift = index / SUB_COUNT - 1;
+            long lower = (long) (index % SUB_COUNT + SUB_COUNT) << shift;
+            return lower + (1L << shift) / 2;
+        }
+
+        // The value below which the given percentage of the records fall.
+        public long percentile(double percent) {
+            if (mTotal == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percent / 100.0 * mTotal);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return value(i);
+                }
+            }
+            return value(mCounts.length - 1);
+        }
+
+        public long getTotalCount() {
+            return mTotal;
+        }
+    }
+
+    public BenchmarkRecorder() {
+        this(1);
+    }
+
+    // warmup: number of inferences run before the kernels are recorded.
+    public BenchmarkRecorder(int warmup) {
+        mWarmup = warmup;
+    }
+
+    // Called by the model at the start of each inference.
+    public synchronized void startInference() {
+        mInferences++;
+        mRecording = mInferences > mWarmup;
+    }
+
+    /*
+       Record one kernel launch.
+       flops : floating point operations of the launch, 0 for pure data movement.
+       bytes : bytes read and written by the launch.
+     */
+    public synchronized void record(String layer, String kernel, long nanos, long flops, long bytes) {
+        if (!mRecording) {
+            return;
+        }
+        String key = layer + "/" + kernel;
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(layer, kernel);
+            mEntries.put(key, entry);
+        }
+        entry.count++;
+        entry.totalNanos += nanos;
+        entry.flops = flops;
+        entry.bytes = bytes;
+        entry.histogram.record(nanos);
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(mEntries.values());
+    }
+
+    // Number of inferences recorded, excluding the warmup.
+    public synchronized int getRecordedInferences() {
+        return Math.max(0, mInferences - mWarmup);
+    }
+
+    public synchronized void reset() {
+        mEntries.clear();
+        mInferences = 0;
+        mRecording = false;
+    }
+
+    // One line per layer and kernel, times in microseconds.
+    public synchronized String toCsv() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("layer,kernel,count,mean_us,p50_us,p90_us,p99_us,flops,bytes,gflops,gbytes\n");
+        for (Entry e : mEntries.values()) {
+            sb.append(e.layer).append(',')
+                    .append(e.kernel).append(',')
+                    .append(e.count).append(',')
+                    .append(micros(e.meanNanos())).append(',')
+                    .append(micros(e.histogram.percentile(50))).append(',')
+                    .append(micros(e.histogram.percentile(90))).append(',')
+                    .append(micros(e.histogram.percentile(99))).append(',')
+                    .append(e.flops).append(',')
+                    .append(e.bytes).append(',')
+                    .append(String.format(Locale.US, "%.3f", e.gflops())).append(',')
+                    .append(String.format(Locale.US, "%.3f", e.gbytes())).append('\n');
+        }
+        return sb.toString();
+    }
+
+    public synchronized String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"inferences\":").append(getRecordedInferences()).append(",\"kernels\":[");
+        boolean first = true;
+        for (Entry e : mEntries.values()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append("{\"layer\":\"").append(e.layer)
+                    .append("\",\"kernel\":\"").append(e.kernel)
+                    .append("\",\"count\":").append(e.count)
+                    .append(",\"mean_ns\":").append(e.meanNanos())
+                    .append(",\"p50_ns\":").append(e.histogram.percentile(50))
+                    .append(",\"p90_ns\":").append(e.histogram.percentile(90))
+                    .append(",\"p99_ns\":").append(e.histogram.percentile(99))
+                    .append(",\"flops\":").append(e.flops)
+                    .append(",\"bytes\":").append(e.bytes)
+                    .append('}');
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.US, "%.1f", nanos / 1000.0);
+    }
+}
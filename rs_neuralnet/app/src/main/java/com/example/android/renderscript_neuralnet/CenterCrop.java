@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet;
+
+/*
+   The crop of the images fed to the neural net: the image is scaled so that its
+   shorter side is size, and the center size x size square of the scaled image is
+   kept. Shared by MainActivity, StylePipeline and the models, so that they all
+   crop the same square of the image. The pixels can still differ: StylePipeline
+   decodes the image subsampled first, while MainActivity scales it from its full
+   resolution.
+*/
+public class CenterCrop {
+    // Dimensions of the scaled image.
+    public final int scaledH, scaledW;
+    // Offsets of the square in the scaled image.
+    public final int cropY, cropX;
+
+    public CenterCrop(int height, int width, int size) {
+        float xyRatio = (float) width / height;
+        if (xyRatio > 1) {
+            scaledH = size;
+            scaledW = (int) (size * xyRatio);
+        } else {
+            scaledW = size;
+            scaledH = (int) (size / xyRatio);
+        }
+        cropY = (scaledH - size) / 2;
+        cropX = (scaledW - size) / 2;
+    }
+
+    // The largest power of 2 by which a height x width image can be subsampled, e.g.
+    // by BitmapFactory.Options.inSampleSize, with its shorter side still at least size.
+    public static int sampleSize(int height, int width, int size) {
+        int shorter = Math.min(height, width);
+        int sample = 1;
+        while (shorter / (sample * 2) >= size) {
+            sample *= 2;
+        }
+        return sample;
+    }
+}
@@ -80,9 +80,9 @@ public class Convolution2D extends NeuralNetLayerBase {
         }
 
         // Create Allocations for W and b.
-        W_alloc = Allocation.createTyped(mRS,
-                Type.createXY(mRS, Element.F32(mRS), padded_Y_blas, out_channels));
-        b_alloc = Allocation.createSized(mRS, Element.F32(mRS), out_channels);
+        W_alloc = AllocationTracker.createTyped(mRS,
+                Type.createXY(mRS, Element.F32(mRS), padded_Y_blas, out_channels), this, "W_alloc");
+        b_alloc = AllocationTracker.createSized(mRS, Element.F32(mRS), out_channels, this, "b_alloc");
 
         // Initialize the 2D convolution kernel;
         mConvovle = new ScriptC_convolve2d(mRS);
@@ -97,6 +97,7 @@ public class Convolution2D extends NeuralNetLayerBase {
 
         mConvovle.set_beta_alloc(b_alloc);
         mConvovle.set_img_channel(in_channels);
+        mConvovle.set_out_channels(out_channels);
     }
 
     // Load the data from file and transfer to corresponding Allocations.
@@ -112,10 +113,12 @@ public class Convolution2D extends NeuralNetLayerBase {
             W_alloc.copyFrom(W);
         } else {
             // If not, a temp allocation needs to be created.
-            Allocation input = Allocation.createTyped(mRS,
-                    Type.createXY(mRS, Element.F32(mRS), W_height_input, out_channels));
+            Allocation input = AllocationTracker.createTyped(mRS,
+                    Type.createXY(mRS, Element.F32(mRS), W_height_input, out_channels), this, "W_temp");
             input.copyFrom(W);
             W_alloc.copy2DRangeFrom(0, 0, W_height_input, out_channels, input, 0, 0);
+            // The temp Allocation is only needed for the copy.
+            AllocationTracker.destroy(input);
         }
 
         mInputStream = mContext.getAssets().open(path + "/b", AssetManager.ACCESS_BUFFER);
@@ -128,92 +131,188 @@ public class Convolution2D extends NeuralNetLayerBase {
     }
 
 
+    // Buffers and kernel parameters specialized for one input resolution.
+    private class ConvPlan implements PlanCache.Plan {
+        int img_h, img_w;
+        int outH, outW;
+
+        Allocation out_alloc;
+        // Only used by convolve2DGEMM, created on first use.
+        Allocation col_alloc;
+        // The cells convolveDirect is launched over, one per output pixel, for a
+        // direct convolution only.
+        Allocation pixel_alloc;
+
+        public void destroy() {
+            AllocationTracker.destroy(out_alloc);
+            if (pixel_alloc != null) {
+                AllocationTracker.destroy(pixel_alloc);
+            }
+            if (col_alloc != null) {
+                AllocationTracker.destroy(col_alloc);
+            }
+        }
+    }
+
+    // Plans for the resolutions processed recently.
+    private final PlanCache<ConvPlan> mPlans = new PlanCache<>();
+    // The plan whose parameters are currently set to the convolve kernel.
+    private ConvPlan mBoundPlan;
+
+    private ConvPlan createPlan(int img_h, int img_w) {
+        ConvPlan plan = new ConvPlan();
+        plan.img_h = img_h;
+        plan.img_w = img_w;
+
+        // Calculate the dimensions of image after convolution.
+        plan.outH = ConvolveUtil.get_conv_outsize(img_h, ksize, stride, pad);
+        plan.outW = ConvolveUtil.get_conv_outsize(img_w, ksize, stride, pad);
+        Log.v(TAG, "convolve size: " + plan.outH + " " + plan.outW);
+
+        // Create the output Allocation for 2D convolution operation.
+        plan.out_alloc = AllocationTracker.createTyped(mRS,
+                Type.createXY(mRS, Element.F32(mRS), plan.outH * plan.outW, out_channels), this, "out_alloc");
+        if (ConvolveUtil.use_direct_conv(in_channels, ksize)) {
+            plan.pixel_alloc = AllocationTracker.createSized(mRS, Element.U8(mRS),
+                    plan.outH * plan.outW, this, "pixel_alloc");
+        }
+        return plan;
+    }
+
+    // Fetch the plan for the input dimensions, building it on first use,
+    // and set its parameters to the convolve kernel if another plan was bound.
+    private ConvPlan bindPlan(int img_h, int img_w) {
+        ConvPlan plan = mPlans.get(img_h, img_w);
+        if (plan == null) {
+            plan = createPlan(img_h, img_w);
+            mPlans.put(img_h, img_w, plan);
+        }
+        if (plan != mBoundPlan) {
+            mConvovle.set_img_h(img_h);
+            mConvovle.set_img_w(img_w);
+            mConvovle.set_outW(plan.outW);
+            mConvovle.set_outH(plan.outH);
+            mBoundPlan = plan;
+        }
+        return plan;
+    }
+
+    @Override
+    public void destroy() {
+        mPlans.clear();
+        mBoundPlan = null;
+        if (mOwnsWeights) {
+            AllocationTracker.destroy(W_alloc);
+            AllocationTracker.destroy(b_alloc);
+        }
+    }
+
     /*
         The workflow of 2D convolution:
-        1. Pad the input image
-        2. Rearrange the image by im2col
-        3. Use matrix multiplication API to calculate the convolution.
+        1. Rearrange the image by im2col, reading the padding as zeros
+        2. Use matrix multiplication API to calculate the convolution.
+
+        The returned Allocation is owned by the layer and reused by the next call
+        with the same input dimensions.
      */
     public Allocation process(Allocation input, int img_h, int img_w) {
-        // Set the input variables to the convolve kernel.
-        mConvovle.set_img_h(img_h);
-        mConvovle.set_img_w(img_w);
-        mConvovle.set_img_alloc(input);
-
-        // Calculate the dimensions of the image after padding.
-        int padded_h = img_h + 2 * pad;
-        int padded_w = img_w + 2 * pad;
-
-        // Create Allocation to hold the padded image.
-        Allocation img_padded = Allocation.createTyped(mRS,
-                Type.createXY(mRS, Element.F32(mRS), padded_h * padded_w, in_channels));
-        // Initialize the padded Allocation to zero.
-        mConvovle.forEach_zero(img_padded, img_padded);
-        mConvovle.set_padded_alloc(img_padded);
-
-        // Invoked the padding kernel.
-        mConvovle.invoke_padd();
+        ConvPlan plan = bindPlan(img_h, img_w);
 
-        // TODO Step2: Use convolve2DGEMM instead.
-        Allocation out_alloc = convolve2D(img_padded, img_h, img_w);
+        // Set the input to the convolve kernel, which handles the border itself.
+        mConvovle.set_img_alloc(input);
 
-        // Destroy the intermediate Allocations.
-        img_padded.destroy();
+        Allocation out_alloc;
+        if (ConvolveUtil.use_direct_conv(in_channels, ksize)) {
+            // Few input channels, e.g. the first layer: im2col would only expand the input.
+            out_alloc = convolveDirect(plan, img_h, img_w);
+        } else {
+            // TODO Step2: Use convolve2DGEMM instead.
+            out_alloc = convolve2D(plan, img_h, img_w);
+        }
 
         return out_alloc;
     }
 
-    private Allocation convolve2DGEMM(Allocation img_padded, int img_h, int img_w) {
-        // Calculate the dimensions of image after convolution.
-        int out_h = ConvolveUtil.get_conv_outsize(img_h, ksize, stride, pad);
-        int out_w = ConvolveUtil.get_conv_outsize(img_w, ksize, stride, pad);
-        Log.v(TAG, "convolve size: " + out_h + " " + out_w);
+    private Allocation convolve2DGEMM(ConvPlan plan, int img_h, int img_w) {
+        int out_h = plan.outH;
+        int out_w = plan.outW;
         // Create the column Allocation.
-        Allocation col_alloc = Allocation.createTyped(mRS,
-                Type.createXY(mRS, Element.F32(mRS), out_h * out_w, padded_Y_blas));
+        if (plan.col_alloc == null) {
+            plan.col_alloc = AllocationTracker.createTyped(mRS,
+                    Type.createXY(mRS, Element.F32(mRS), out_h * out_w, padded_Y_blas), this, "col_alloc");
+        }
+        Allocation col_alloc = plan.col_alloc;
+
+        // Operations and bytes of the kernels, for the benchmark.
+        long colBytes = 4L * out_h * out_w * padded_Y_blas;
+        long sgemmFlops = 2L * out_h * out_w * padded_Y_blas * out_channels;
+        long sgemmBytes = colBytes + 4L * padded_Y_blas * out_channels + 4L * out_h * out_w * out_channels;
+        long outCount = (long) out_h * out_w * out_channels;
 
-        long time = System.currentTimeMillis();
-        // Invoke im2col kernel, to transform padded image to column image:
-        mConvovle.set_outW(out_w);
-        mConvovle.set_outH(out_h);
+        long time = startTimer();
+        // Invoke im2col kernel, to transform the image to column image:
         mConvovle.forEach_im2col(col_alloc);
 
-        if (LOG_TIME) {
-            mRS.finish();
-            time = System.currentTimeMillis() - time;
+        if (mTiming) {
+            time = stopTimer(time, "im2col", 0, 2 * colBytes);
             im2colTime += time;
-            Log.v(TAG, "Convolution2D, channels: " + in_channels + ", " + out_channels + " size: " + img_h + ", " + img_w + " im2col process time: " + time);
+            Log.v(TAG, "Convolution2D, channels: " + in_channels + ", " + out_channels + " size: " + img_h + ", " + img_w + " im2col process time: " + time / 1000000);
         }
 
-        // Create the output Allocation for SGEMM operation.
-        Allocation out_alloc = Allocation.createTyped(mRS,
-                Type.createXY(mRS, Element.F32(mRS), out_h * out_w, out_channels));
+        // The output Allocation for SGEMM operation.
+        Allocation out_alloc = plan.out_alloc;
 
-        time = System.currentTimeMillis();
+        time = startTimer();
         // Conduct the convolution by matrix multiplication, using SGEMM (BLAS API).
         mBlas.SGEMM(ScriptIntrinsicBLAS.NO_TRANSPOSE, ScriptIntrinsicBLAS.NO_TRANSPOSE,
                 1.0f, W_alloc, col_alloc, 0.0f, out_alloc);
 
-        if (LOG_TIME) {
-            mRS.finish();
-            time = System.currentTimeMillis() - time;
+        if (mTiming) {
+            time = stopTimer(time, "sgemm", sgemmFlops, sgemmBytes);
             sgemmTime += time;
-            Log.v(TAG, "Convolution2D, channels: " + in_channels + ", " + out_channels + " size: " + img_h + ", " + img_w + " SGEMM process time: " + time);
+            Log.v(TAG, "Convolution2D, channels: " + in_channels + ", " + out_channels + " size: " + img_h + ", " + img_w + " SGEMM process time: " + time / 1000000);
         }
 
-        time = System.currentTimeMillis();
+        time = startTimer();
         // Add beta to the results for each channel.
         mConvovle.forEach_addBeta(out_alloc, out_alloc);
-        if (LOG_TIME) {
-            mRS.finish();
-            time = System.currentTimeMillis() - time;
+        if (mTiming) {
+            time = stopTimer(time, "beta", outCount, 8 * outCount);
             betaTime += time;
-            Log.v(TAG, "Convolution2D, channels: " + in_channels + ", " + out_channels + " size: " + img_h + ", " + img_w + " initBeta process time: " + time);
+            Log.v(TAG, "Convolution2D, channels: " + in_channels + ", " + out_channels + " size: " + img_h + ", " + img_w + " initBeta process time: " + time / 1000000);
         }
 
-        // Destroy the intermediate Allocations.
-        col_alloc.destroy();
+        // Update the output dimensions.
+        outH = out_h;
+        outW = out_w;
+
+        return out_alloc;
+    }
+
+    // The direct convolution of convolveDirect, bias included, in a single launch over
+    // the output pixels: each invocation computes all the channels of one pixel.
+    private Allocation convolveDirect(ConvPlan plan, int img_h, int img_w) {
+        int out_h = plan.outH;
+        int out_w = plan.outW;
+
+        mConvovle.set_W_alloc(W_alloc);
+
+        // The output Allocation for 2D convolution operation.
+        Allocation out_alloc = plan.out_alloc;
+        mConvovle.set_direct_out(out_alloc);
+
+        // Operations and bytes of the kernel, for the benchmark.
+        long flops = 2L * out_h * out_w * in_channels * ksize * ksize * out_channels;
+        long bytes = 4L * img_h * img_w * in_channels + 4L * padded_Y_blas * out_channels +
+                4L * out_h * out_w * out_channels;
 
+        long time = startTimer();
+        mConvovle.forEach_convolveDirect(plan.pixel_alloc);
+        if (mTiming) {
+            time = stopTimer(time, "conv2d", flops, bytes);
+            conv2dTime += time;
+            Log.v(TAG, "Convolution2D, channels: " + in_channels + ", " + out_channels + " size: " + img_h + ", " + img_w + " direct conv process time: " + time / 1000000);
+        }
         // Update the output dimensions.
         outH = out_h;
         outW = out_w;
@@ -221,37 +320,35 @@ public class Convolution2D extends NeuralNetLayerBase {
         return out_alloc;
     }
 
-    private Allocation convolve2D(Allocation img_padded, int img_h, int img_w) {
-        // Calculate the dimensions of image after convolution.
-        int out_h = ConvolveUtil.get_conv_outsize(img_h, ksize, stride, pad);
-        int out_w = ConvolveUtil.get_conv_outsize(img_w, ksize, stride, pad);
-        Log.v(TAG, "convolve size: " + out_h + " " + out_w);
+    private Allocation convolve2D(ConvPlan plan, int img_h, int img_w) {
+        int out_h = plan.outH;
+        int out_w = plan.outW;
 
-        mConvovle.set_outW(out_w);
-        mConvovle.set_outH(out_h);
         mConvovle.set_W_alloc(W_alloc);
-        mConvovle.set_input_padded(img_padded);
 
-        // Create the output Allocation for 2D convolution operation.
-        Allocation out_alloc = Allocation.createTyped(mRS,
-                Type.createXY(mRS, Element.F32(mRS), out_h * out_w, out_channels));
+        // The output Allocation for 2D convolution operation.
+        Allocation out_alloc = plan.out_alloc;
+
+        // Operations and bytes of the kernels, for the benchmark.
+        long sgemmFlops = 2L * out_h * out_w * in_channels * ksize * ksize * out_channels;
+        long sgemmBytes = 4L * img_h * img_w * in_channels + 4L * padded_Y_blas * out_channels +
+                4L * out_h * out_w * out_channels;
+        long outCount = (long) out_h * out_w * out_channels;
 
-        long time = System.currentTimeMillis();
+        long time = startTimer();
         mConvovle.forEach_convolve2D(out_alloc);
-        if (LOG_TIME) {
-            mRS.finish();
-            time = System.currentTimeMillis() - time;
+        if (mTiming) {
+            time = stopTimer(time, "conv2d", sgemmFlops, sgemmBytes);
             conv2dTime += time;
-            Log.v(TAG, "Convolution2D, channels: " + in_channels + ", " + out_channels + " size: " + img_h + ", " + img_w + " conv2D process time: " + time);
+            Log.v(TAG, "Convolution2D, channels: " + in_channels + ", " + out_channels + " size: " + img_h + ", " + img_w + " conv2D process time: " + time / 1000000);
         }
 
-        time = System.currentTimeMillis();
+        time = startTimer();
         mConvovle.forEach_addBeta(out_alloc, out_alloc);
-        if (LOG_TIME) {
-            mRS.finish();
-            time = System.currentTimeMillis() - time;
+        if (mTiming) {
+            time = stopTimer(time, "beta", outCount, 8 * outCount);
             betaTime += time;
-            Log.v(TAG, "Convolution2D, channels: " + in_channels + ", " + out_channels + " size: " + img_h + ", " + img_w + " initBeta process time: " + time);
+            Log.v(TAG, "Convolution2D, channels: " + in_channels + ", " + out_channels + " size: " + img_h + ", " + img_w + " initBeta process time: " + time / 1000000);
         }
         // Update the output dimensions.
         outH = out_h;
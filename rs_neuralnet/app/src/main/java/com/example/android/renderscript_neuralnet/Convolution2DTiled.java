@@ -43,6 +43,10 @@ import java.nio.FloatBuffer;
     pad          :  Spatial padding width for input img.
     W            :  Weight parameter.
     b            :  Bias parameter.
+
+    The layers with few input channels, i.e. the first one, are not tiled: see
+    ConvolveUtil.use_direct_conv, they run the convolveDirect kernel on the whole
+    output instead of im2col + SGEMM.
 */
 public class Convolution2DTiled extends NeuralNetLayerBase {
     // The dimension in Y for each tile.
@@ -59,6 +63,8 @@ public class Convolution2DTiled extends NeuralNetLayerBase {
 
     // The padded dimension to satisfy alignment requirement for certain GPUs.
     private int padded_Y_blas;
+    // Whether the convolution is direct, without im2col.
+    private boolean direct;
 
     private ScriptC_convolve2d mConvovle;
     private Allocation W_alloc, b_alloc;
@@ -82,12 +88,37 @@ public class Convolution2DTiled extends NeuralNetLayerBase {
         if (padded_Y_blas % 8 > 0) {
             padded_Y_blas = (padded_Y_blas / 8 + 1) * 8;
         }
+        direct = ConvolveUtil.use_direct_conv(in_channels, ksize);
 
         // Create Allocations for W and b.
-        W_alloc = Allocation.createTyped(mRS,
-                Type.createXY(mRS, Element.F32(mRS), padded_Y_blas, out_channels));
-        b_alloc = Allocation.createSized(mRS, Element.F32(mRS), out_channels);
+        W_alloc = AllocationTracker.createTyped(mRS,
+                Type.createXY(mRS, Element.F32(mRS), padded_Y_blas, out_channels), this, "W_alloc");
+        b_alloc = AllocationTracker.createSized(mRS, Element.F32(mRS), out_channels, this, "b_alloc");
+
+        createKernel();
+    }
 
+    // Create another execution context of the given layer. The weights are shared,
+    // the kernel and the intermediate Allocations are private to the new layer.
+    public Convolution2DTiled(Convolution2DTiled shared) {
+        super(shared);
+
+        this.in_channels = shared.in_channels;
+        this.out_channels = shared.out_channels;
+        this.ksize = shared.ksize;
+        this.stride = shared.stride;
+        this.pad = shared.pad;
+        this.W = shared.W;
+        this.b = shared.b;
+        this.padded_Y_blas = shared.padded_Y_blas;
+        this.direct = shared.direct;
+        this.W_alloc = shared.W_alloc;
+        this.b_alloc = shared.b_alloc;
+
+        createKernel();
+    }
+
+    private void createKernel() {
         // Initialize the 2D convolution kernel;
         mConvovle = new ScriptC_convolve2d(mRS);
 
@@ -102,10 +133,15 @@ public class Convolution2DTiled extends NeuralNetLayerBase {
         mConvovle.set_beta_alloc(b_alloc);
         mConvovle.set_img_channel(in_channels);
         mConvovle.set_tile_h(TILE_Y);
+        if (direct) {
+            mConvovle.set_W_alloc(W_alloc);
+            mConvovle.set_out_channels(out_channels);
+        }
     }
 
     // Load the data from file and transfer to corresponding Allocations.
     public void loadModel(String path) throws IOException {
+        checkWeightsWritable();
         mInputStream = mContext.getAssets().open(path + "/W", AssetManager.ACCESS_BUFFER);
         ByteBuffer bb = readInput(mInputStream);
         FloatBuffer.wrap(W).put(bb.asFloatBuffer());
@@ -117,10 +153,12 @@ public class Convolution2DTiled extends NeuralNetLayerBase {
             W_alloc.copyFrom(W);
         } else {
             // If not, a temp allocation needs to be created.
-            Allocation input = Allocation.createTyped(mRS,
-                    Type.createXY(mRS, Element.F32(mRS), W_height_input, out_channels));
+            Allocation input = AllocationTracker.createTyped(mRS,
+                    Type.createXY(mRS, Element.F32(mRS), W_height_input, out_channels), this, "W_temp");
             input.copyFrom(W);
             W_alloc.copy2DRangeFrom(0, 0, W_height_input, out_channels, input, 0, 0);
+            // The temp Allocation is only needed for the copy.
+            AllocationTracker.destroy(input);
         }
 
         mInputStream = mContext.getAssets().open(path + "/b", AssetManager.ACCESS_BUFFER);
@@ -132,109 +170,225 @@ public class Convolution2DTiled extends NeuralNetLayerBase {
         Log.v(TAG, "Convolution2D loaded: " + b[0]);
     }
 
-    /*
-        The workflow of tiled 2D convolution:
-        1. Pad the input image
-        2. Rearrange a part of the image (Tile) by im2col
-        3. Use matrix multiplication API to calculate the convolution on the tile.
-        4. repeat 2~4 until the entire image is traversed.
-     */
-    public Allocation process(Allocation input, int img_h, int img_w) {
-        // Set the input variables to the convolve kernel.
-        mConvovle.set_img_h(img_h);
-        mConvovle.set_img_w(img_w);
-        mConvovle.set_img_alloc(input);
+    // Buffers and kernel parameters specialized for one input resolution.
+    private class TilePlan implements PlanCache.Plan {
+        int img_h, img_w;
+        int outH, outW;
+        // Tiling in Y dimension.
+        int out_h_tile, out_w_tile;
+        int nTiles;
+
+        // Double-buffered column Allocations: im2col fills one while SGEMM reads the other.
+        // None for a direct convolution, which has no tile Allocation either.
+        Allocation[] col_alloc;
+        Allocation out_alloc;
+        Allocation out_all;
+        // The cells convolveDirect is launched over, one per output pixel, for a
+        // direct convolution only.
+        Allocation pixel_alloc;
+
+        public void destroy() {
+            for (Allocation col : col_alloc) {
+                AllocationTracker.destroy(col);
+            }
+            if (pixel_alloc != null) {
+                AllocationTracker.destroy(pixel_alloc);
+            }
+            if (out_alloc != null) {
+                AllocationTracker.destroy(out_alloc);
+            }
+            AllocationTracker.destroy(out_all);
+        }
+    }
 
+    // Plans for the resolutions processed recently.
+    private final PlanCache<TilePlan> mPlans = new PlanCache<>();
+    // The plan whose parameters are currently set to the convolve kernel.
+    private TilePlan mBoundPlan;
 
-        // Calculate the dimensions of the image after padding.
-        int padded_h = img_h + 2 * pad;
-        int padded_w = img_w + 2 * pad;
+    private TilePlan createPlan(int img_h, int img_w) {
+        TilePlan plan = new TilePlan();
+        plan.img_h = img_h;
+        plan.img_w = img_w;
 
         // Calculate the dimensions of image after convolution.
-        outH = ConvolveUtil.get_conv_outsize(img_h, ksize, stride, pad);
-        outW = ConvolveUtil.get_conv_outsize(img_w, ksize, stride, pad);
+        plan.outH = ConvolveUtil.get_conv_outsize(img_h, ksize, stride, pad);
+        plan.outW = ConvolveUtil.get_conv_outsize(img_w, ksize, stride, pad);
         // Create the final output Allocation.
-        Allocation out_all = Allocation.createTyped(mRS,
-                Type.createXY(mRS, Element.F32(mRS), outH * outW, out_channels));
+        plan.out_all = AllocationTracker.createTyped(mRS,
+                Type.createXY(mRS, Element.F32(mRS), plan.outH * plan.outW, out_channels), this, "out_all");
+        if (direct) {
+            plan.out_h_tile = plan.outH;
+            plan.out_w_tile = plan.outW;
+            plan.nTiles = 1;
+            plan.col_alloc = new Allocation[0];
+            plan.pixel_alloc = AllocationTracker.createSized(mRS, Element.U8(mRS),
+                    plan.outH * plan.outW, this, "pixel_alloc");
+            return plan;
+        }
 
+        // Tiling in Y dimension
+        plan.out_h_tile = ConvolveUtil.get_conv_outsize(TILE_Y, ksize, stride, pad);
+        plan.out_w_tile = plan.outW;
+        Log.v(TAG, "tiled convolve size: " + plan.out_h_tile + " " + plan.out_w_tile);
 
-        // Create Allocation to hold the padded image.
-        Allocation img_padded = Allocation.createTyped(mRS,
-                Type.createXY(mRS, Element.F32(mRS), padded_h * padded_w, in_channels));
-        // Initialize the padded Allocation to zero.
-        mConvovle.forEach_zero(img_padded, img_padded);
-        mConvovle.set_padded_alloc(img_padded);
+        // The number of tiles, minimum 1.
+        plan.nTiles = img_h / TILE_Y;
+        if (plan.nTiles == 0) plan.nTiles = 1;
+
+        // Create the tiled column Allocations, a second one only if there is a second tile.
+        plan.col_alloc = new Allocation[Math.min(2, plan.nTiles)];
+        for (int i = 0; i < plan.col_alloc.length; i++) {
+            plan.col_alloc[i] = AllocationTracker.createTyped(mRS,
+                    Type.createXY(mRS, Element.F32(mRS), plan.out_h_tile * plan.out_w_tile, padded_Y_blas), this, "col_alloc");
+        }
+        // Create the tiled output Allocation.
+        plan.out_alloc = AllocationTracker.createTyped(mRS,
+                Type.createXY(mRS, Element.F32(mRS), plan.out_h_tile * plan.out_w_tile, out_channels), this, "out_alloc");
+        return plan;
+    }
 
-        // Invoked the padding kernel.
-        mConvovle.invoke_padd();
+    // Fetch the plan for the input dimensions, building it on first use,
+    // and set its parameters to the convolve kernel if another plan was bound.
+    private TilePlan bindPlan(int img_h, int img_w) {
+        TilePlan plan = mPlans.get(img_h, img_w);
+        if (plan == null) {
+            // Allocate the buffers of the plan.
+            traceBegin("createPlan", -1, mTracer == null ? null : TraceRecorder.shape(in_channels, img_h, img_w));
+            plan = createPlan(img_h, img_w);
+            mPlans.put(img_h, img_w, plan);
+            traceEnd();
+        }
+        if (plan != mBoundPlan) {
+            mConvovle.set_img_h(img_h);
+            mConvovle.set_img_w(img_w);
+            // Setup the parameters for paralleled im2col
+            mConvovle.set_outH(plan.out_h_tile);
+            mConvovle.set_outW(plan.out_w_tile);
+            if (direct) {
+                mConvovle.set_direct_out(plan.out_all);
+            }
+            mBoundPlan = plan;
+        }
+        outH = plan.outH;
+        outW = plan.outW;
+        return plan;
+    }
 
+    @Override
+    public void destroy() {
+        mPlans.clear();
+        mBoundPlan = null;
+        if (mOwnsWeights) {
+            AllocationTracker.destroy(W_alloc);
+            AllocationTracker.destroy(b_alloc);
+        }
+    }
 
-        // Tiling in Y dimension
-        int out_h_tile = ConvolveUtil.get_conv_outsize(TILE_Y, ksize, stride, pad);
-        int out_w_tile = outW;
-        Log.v(TAG, "tiled convolve size: " + out_h_tile + " " + out_w_tile);
-        // Create the tiled column Allocation.
-        Allocation col_alloc = Allocation.createTyped(mRS,
-                Type.createXY(mRS, Element.F32(mRS), out_h_tile * out_w_tile, padded_Y_blas));
-        // Create the tiled output Allocation.
-        Allocation out_alloc = Allocation.createTyped(mRS,
-                Type.createXY(mRS, Element.F32(mRS), out_h_tile * out_w_tile, out_channels));
+    /*
+        The workflow of tiled 2D convolution:
+        1. Rearrange a part of the image (Tile) by im2col, reading the padding as zeros
+        2. Use matrix multiplication API to calculate the convolution on the tile.
+        3. repeat 1~2 until the entire image is traversed.
+
+        Steps 1 and 2 are software pipelined: the im2col of the next tile is launched
+        into the other column Allocation before the SGEMM of the current tile, so the
+        two launches have no buffer in common and the driver may overlap them.
 
-        // Setup the parameters for paralleled im2col
-        mConvovle.set_outH(out_h_tile);
-        mConvovle.set_outW(out_w_tile);
+        The returned Allocation is owned by the layer and reused by the next call
+        with the same input dimensions.
+     */
+    public Allocation process(Allocation input, int img_h, int img_w) {
+        String inShape = mTracer == null ? null : TraceRecorder.shape(in_channels, img_h, img_w);
+        traceBegin("process", -1, inShape);
+        TilePlan plan = bindPlan(img_h, img_w);
+        Allocation out_all = plan.out_all;
 
+        // Set the input to the convolve kernel, which handles the border itself.
+        mConvovle.set_img_alloc(input);
+        if (direct) {
+            convolveDirect(plan, img_h, img_w);
+            traceEnd();
+            return out_all;
+        }
+
+        // Operations and bytes of one tile, for the benchmark.
+        long tileSize = plan.out_h_tile * plan.out_w_tile;
+        long colBytes = 4 * tileSize * padded_Y_blas;
+        long sgemmFlops = 2 * tileSize * padded_Y_blas * out_channels;
+        long sgemmBytes = colBytes + 4 * (long) padded_Y_blas * out_channels + 4 * tileSize * out_channels;
         long time;
 
-        // The number of tiles, minimum 1.
-        int nTiles = img_h / TILE_Y;
-        if (nTiles == 0) nTiles = 1;
+        // Shapes of the tiled Allocations, for the trace.
+        String colShape = null, tileShape = null;
+        if (mTracer != null) {
+            colShape = TraceRecorder.shape(padded_Y_blas, plan.out_h_tile, plan.out_w_tile);
+            tileShape = TraceRecorder.shape(out_channels, plan.out_h_tile, plan.out_w_tile);
+        }
 
         // Iterate each tile for 2D convolution and copy to the final output.
-        for (int it = 0; it < nTiles; it++) {
-            // Set the current tile number;
-            mConvovle.set_tile_num(it);
-            time = System.currentTimeMillis();
-
-            // Invoke im2col kernel, to transform padded image to column image:
-            mConvovle.forEach_im2col(col_alloc);
-            if (LOG_TIME) {
-                mRS.finish();
-                time = System.currentTimeMillis() - time;
-                im2colTime += time;
+        // Step it launches the im2col of the tile it and the SGEMM of the tile it - 1.
+        for (int it = 0; it <= plan.nTiles; it++) {
+            if (it < plan.nTiles) {
+                // Set the current tile number;
+                mConvovle.set_tile_num(it);
+                time = startTimer();
+
+                // Invoke im2col kernel, to transform the image to column image:
+                traceBegin("im2col", it, colShape);
+                mConvovle.forEach_im2col(plan.col_alloc[it % 2]);
+                im2colTime += stopTimer(time, "im2col", 0, 2 * colBytes);
+                traceEnd();
             }
-
-            time = System.currentTimeMillis();
+            if (it == 0) {
+                continue;
+            }
+            int tile = it - 1;
+            traceBegin("tile", tile, tileShape);
+            time = startTimer();
 
             // Conduct the convolution by matrix multiplication, using SGEMM (BLAS API).
+            traceBegin("sgemm", tile, tileShape);
             mBlas.SGEMM(ScriptIntrinsicBLAS.NO_TRANSPOSE, ScriptIntrinsicBLAS.NO_TRANSPOSE,
-                    1.0f, W_alloc, col_alloc, 0.0f, out_alloc);
-            if (LOG_TIME) {
-                mRS.finish();
-                time = System.currentTimeMillis() - time;
-                sgemmTime += time;
-            }
+                    1.0f, W_alloc, plan.col_alloc[tile % 2], 0.0f, plan.out_alloc);
+            sgemmTime += stopTimer(time, "sgemm", sgemmFlops, sgemmBytes);
+            traceEnd();
 
             // Copy the tiled results to final output.
-            out_all.copy2DRangeFrom(it * out_h_tile * out_w_tile, 0, out_h_tile * out_w_tile, out_channels, out_alloc, 0, 0);
+            traceBegin("copy2DRangeFrom", tile, tileShape);
+            out_all.copy2DRangeFrom(tile * (int) tileSize, 0, (int) tileSize, out_channels, plan.out_alloc, 0, 0);
+            traceEnd();
+            traceEnd();
         }
 
-        // Destroy the intermediate Allocations.
-        img_padded.destroy();
-        col_alloc.destroy();
-        out_alloc.destroy();
-
-        time = System.currentTimeMillis();
+        time = startTimer();
 
         // Add beta to the results for each channel.
+        long outCount = (long) plan.outH * plan.outW * out_channels;
+        String outShape = mTracer == null ? null : TraceRecorder.shape(out_channels, plan.outH, plan.outW);
+        traceBegin("addBeta", -1, outShape);
         mConvovle.forEach_addBeta(out_all, out_all);
-        if (LOG_TIME) {
-            mRS.finish();
-            time = System.currentTimeMillis() - time;
-            betaTime += time;
-        }
+        betaTime += stopTimer(time, "beta", outCount, 8 * outCount);
+        traceEnd();
+        traceEnd();
 
         // Return the final output.
         return out_all;
     }
-}
\ No newline at end of file
+
+    // The direct convolution, bias included, in a single launch over the output
+    // pixels, each invocation computing all the channels of its pixel.
+    private void convolveDirect(TilePlan plan, int img_h, int img_w) {
+        long outSize = (long) plan.outH * plan.outW;
+        long flops = 2 * outSize * in_channels * ksize * ksize * out_channels;
+        long bytes = 4L * img_h * img_w * in_channels + 4L * padded_Y_blas * out_channels
+                + 4 * outSize * out_channels;
+        String outShape = mTracer == null ? null : TraceRecorder.shape(out_channels, plan.outH, plan.outW);
+
+        traceBegin("convolveDirect", -1, outShape);
+        long time = startTimer();
+        mConvovle.forEach_convolveDirect(plan.pixel_alloc);
+        conv2dTime += stopTimer(time, "conv2d", flops, bytes);
+        traceEnd();
+    }
+}
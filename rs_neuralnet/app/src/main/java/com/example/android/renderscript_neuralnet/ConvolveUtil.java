@@ -19,6 +19,21 @@ package com.example.android.renderscript_neuralnet;
  * Created by miaowang on 8/15/16.
  */
 public class ConvolveUtil {
+    // Largest input window, in_channels * ksize * ksize, of the direct convolution:
+    // the size of the window array of the convolveDirect kernel, which each
+    // invocation keeps in registers while it sweeps the output channels. Fits the
+    // 3 x 9 x 9 window of the first layer; a larger one would spill.
+    public static final int DIRECT_MAX_WINDOW = 243;
+    // Largest number of input channels convolved directly.
+    public static final int DIRECT_MAX_CHANNELS = 4;
+
+    // Whether a convolution is computed directly rather than by im2col + SGEMM.
+    // With few input channels, e.g. the 3 channels of the first layer, im2col copies
+    // each input pixel ksize * ksize times to feed a GEMM with a short K, and the
+    // copy costs more than the convolution itself.
+    public static boolean use_direct_conv(int in_channels, int ksize) {
+        return in_channels <= DIRECT_MAX_CHANNELS && in_channels * ksize * ksize <= DIRECT_MAX_WINDOW;
+    }
 
     public static int get_conv_outsize(int size, int k, int s, int p) {
         return (size + p * 2 - k) / s + 1;
@@ -37,8 +52,8 @@ public class ConvolveUtil {
         float[] out = new float[padded_h * padded_w * img_channel];
         for (int ic = 0; ic < img_channel; ic++) {
             for (int ih = 0; ih < img_h; ih++) {
-                int i_start_y = (img_channel * img_h + ih) * img_w;
-                int o_start_y = (img_channel * padded_h + ih + pad_h) * padded_w;
+                int i_start_y = (ic * img_h + ih) * img_w;
+                int o_start_y = (ic * padded_h + ih + pad_h) * padded_w + pad_w;
                 System.arraycopy(img, i_start_y, out, o_start_y, img_w);
             }
         }
@@ -55,8 +70,8 @@ public class ConvolveUtil {
         for (int ic = 0; ic < img_channel; ic++) {
             for (int ih = 0; ih < img_h; ih++) {
                 // copy the unpadded region back as the img.
-                int i_pos = ((img_channel * img_h) + ih) * img_w;
-                int p_pos = ((img_channel * padded_h) + ih + pad_h) * padded_w;
+                int i_pos = ((ic * img_h) + ih) * img_w;
+                int p_pos = ((ic * padded_h) + ih + pad_h) * padded_w + pad_w;
                 System.arraycopy(img_padded, p_pos, out, i_pos, img_w);
             }
         }
@@ -123,7 +138,7 @@ public class ConvolveUtil {
         float[] img_padded = new float[col_channel * h_padded * w_padded];
 
         for (int ic = 0; ic < col_channel; ic++) {
-            int img_start = ic * w_padded * w_padded;
+            int img_start = ic * h_padded * w_padded;
             int col_start = ic * kernel_h * kernel_w * col_h * col_w;
             for (int ikh = 0; ikh < kernel_h; ikh++) {
                 for (int ikw = 0; ikw < kernel_w; ikw++) {
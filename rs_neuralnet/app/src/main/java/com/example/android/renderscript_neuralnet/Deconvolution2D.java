@@ -79,9 +79,9 @@ public class Deconvolution2D extends NeuralNetLayerBase {
         }
 
         // Create Allocations for W and b.
-        W_alloc = Allocation.createTyped(mRS,
-                Type.createXY(mRS, Element.F32(mRS), in_channels, padded_Y_blas));
-        b_alloc = Allocation.createSized(mRS, Element.F32(mRS), out_channels);
+        W_alloc = AllocationTracker.createTyped(mRS,
+                Type.createXY(mRS, Element.F32(mRS), in_channels, padded_Y_blas), this, "W_alloc");
+        b_alloc = AllocationTracker.createSized(mRS, Element.F32(mRS), out_channels, this, "b_alloc");
 
         // Initialize the 2D deconvolution kernel;
         mConvovle = new ScriptC_deconvolve2d(mRS);
@@ -95,7 +95,8 @@ public class Deconvolution2D extends NeuralNetLayerBase {
         mConvovle.set_pad_w(pad);
 
         mConvovle.set_beta_alloc(b_alloc);
-
+        mConvovle.set_W_alloc(W_alloc);
+        mConvovle.set_in_channel(in_channels);
     }
 
     // Load the data from file and transfer to corresponding Allocations.
@@ -121,58 +122,127 @@ public class Deconvolution2D extends NeuralNetLayerBase {
         Log.v(TAG, "Deconvolution2D loaded: " + b[0]);
     }
 
+    // Buffers and kernel parameters specialized for one input resolution.
+    private class DeconvPlan implements PlanCache.Plan {
+        int col_h, col_w;
+        int outH, outW;
+
+        Allocation out_alloc;
+        Allocation img_padded;
+        Allocation img_alloc;
+
+        public void destroy() {
+            AllocationTracker.destroy(out_alloc);
+            AllocationTracker.destroy(img_padded);
+            AllocationTracker.destroy(img_alloc);
+        }
+    }
+
+    // Plans for the resolutions processed recently.
+    private final PlanCache<DeconvPlan> mPlans = new PlanCache<>();
+    // The plan whose parameters are currently set to the deconvolve kernel.
+    private DeconvPlan mBoundPlan;
+
+    private DeconvPlan createPlan(int col_h, int col_w) {
+        DeconvPlan plan = new DeconvPlan();
+        plan.col_h = col_h;
+        plan.col_w = col_w;
+
+        // Calculate the dimensions of image after deconvolution.
+        plan.outH = ConvolveUtil.get_deconv_outsize(col_h, ksize, stride, pad);
+        plan.outW = ConvolveUtil.get_deconv_outsize(col_w, ksize, stride, pad);
+
+        // Create the output Allocation for SGEMM operation.
+        plan.out_alloc = AllocationTracker.createTyped(mRS,
+                Type.createXY(mRS, Element.F32(mRS), col_h * col_w, W_alloc.getType().getY()), this, "out_alloc");
+
+        // Calculate the dimensions of the padded image.
+        int padded_h = plan.outH + 2 * pad;
+        int padded_w = plan.outW + 2 * pad;
+        // Create Allocation to hold the padded image.
+        plan.img_padded = AllocationTracker.createTyped(mRS,
+                Type.createXY(mRS, Element.F32(mRS), padded_h * padded_w, out_channels), this, "img_padded");
+
+        // Create output image Allocation.
+        plan.img_alloc = AllocationTracker.createTyped(mRS,
+                Type.createXY(mRS, Element.F32(mRS), plan.outH * plan.outW, out_channels), this, "img_alloc");
+        return plan;
+    }
+
+    // Fetch the plan for the input dimensions, building it on first use,
+    // and set its parameters to the deconvolve kernel if another plan was bound.
+    private DeconvPlan bindPlan(int col_h, int col_w) {
+        DeconvPlan plan = mPlans.get(col_h, col_w);
+        if (plan == null) {
+            plan = createPlan(col_h, col_w);
+            mPlans.put(col_h, col_w, plan);
+        }
+        if (plan != mBoundPlan) {
+            // Set the global input variables for the RS kernel.
+            mConvovle.set_col_h(col_h);
+            mConvovle.set_col_w(col_w);
+            mConvovle.set_col_channel(out_channels);
+            mConvovle.set_img_channel(out_channels);
+            mConvovle.set_img_h(plan.outH);
+            mConvovle.set_img_w(plan.outW);
+            mConvovle.set_col_alloc(plan.out_alloc);
+            mConvovle.set_padded_alloc(plan.img_padded);
+            mConvovle.set_img_alloc(plan.img_alloc);
+            mBoundPlan = plan;
+        }
+        return plan;
+    }
+
+    @Override
+    public void destroy() {
+        mPlans.clear();
+        mBoundPlan = null;
+        if (mOwnsWeights) {
+            AllocationTracker.destroy(W_alloc);
+            AllocationTracker.destroy(b_alloc);
+        }
+    }
+
     /*
         The workflow of 2D deconvolution:
         1. Use matrix multiplication API to calculate the deconvolution.
         2. Rearrange the column image by col2im.
         3. Unpad the output image.
+
+        The returned Allocation is owned by the layer and reused by the next call
+        with the same input dimensions.
      */
     public Allocation process(Allocation input, int col_h, int col_w) {
-        // Create the output Allocation for SGEMM operation.
-        Allocation out_alloc = Allocation.createTyped(mRS,
-                Type.createXY(mRS, Element.F32(mRS), input.getType().getX(), W_alloc.getType().getY()));
+        DeconvPlan plan = bindPlan(col_h, col_w);
+        // The output Allocation for SGEMM operation.
+        Allocation out_alloc = plan.out_alloc;
+
+        // Operations and bytes of the kernels, for the benchmark.
+        long colCount = (long) col_h * col_w * out_channels;
+        long sgemmFlops = 2L * col_h * col_w * padded_Y_blas * in_channels;
+        long sgemmBytes = 4L * col_h * col_w * in_channels + 4L * in_channels * padded_Y_blas +
+                4L * col_h * col_w * padded_Y_blas;
+        long outCount = (long) plan.outH * plan.outW * out_channels;
 
-        long time = System.currentTimeMillis();
+        long time = startTimer();
         Log.v(TAG, "Deconvolution2D: " + input.getType().getX() + " " + input.getType().getY() + " " + W_alloc.getType().getX() + " " +  W_alloc.getType().getY());
         // Conduct the deconvolution by matrix multiplication, using SGEMM (BLAS API).
         mBlas.SGEMM(ScriptIntrinsicBLAS.NO_TRANSPOSE, ScriptIntrinsicBLAS.NO_TRANSPOSE,
                 1.0f, W_alloc, input, 0.0f, out_alloc);
-        if (LOG_TIME) {
-            mRS.finish();
-            time = System.currentTimeMillis() - time;
+        if (mTiming) {
+            time = stopTimer(time, "sgemm", sgemmFlops, sgemmBytes);
             sgemmTime += time;
-            Log.v(TAG, "Deconvolution2D, channels: " + in_channels + ", " + out_channels + " size: " + col_h + ", " + col_w + " SGEMM process time: " + time);
+            Log.v(TAG, "Deconvolution2D, channels: " + in_channels + ", " + out_channels + " size: " + col_h + ", " + col_w + " SGEMM process time: " + time / 1000000);
         }
 
         Log.v(TAG, "Deconvolution2D: SGEMM");
-        // Calculate the dimensions of image after deconvolution.
-        int img_h = ConvolveUtil.get_deconv_outsize(col_h, ksize, stride, pad);
-        int img_w = ConvolveUtil.get_deconv_outsize(col_w, ksize, stride, pad);
-
-        // Set the global input variables for the RS kernel.
-        mConvovle.set_col_h(col_h);
-        mConvovle.set_col_w(col_w);
-        mConvovle.set_col_channel(out_channels);
-        mConvovle.set_img_channel(out_channels);
-        mConvovle.set_img_h(img_h);
-        mConvovle.set_img_w(img_w);
-        mConvovle.set_col_alloc(out_alloc);
 
-        // Calculate the dimensions of the padded image.
-        int padded_h = img_h + 2 * pad;
-        int padded_w = img_w + 2 * pad;
-        // Create Allocation to hold the padded image.
-        Allocation img_padded = Allocation.createTyped(mRS,
-                Type.createXY(mRS, Element.F32(mRS), padded_h * padded_w, out_channels));
-        // Initialize the padded Allocation to zero.
-        mConvovle.forEach_zero(img_padded, img_padded);
-        mConvovle.set_padded_alloc(img_padded);
+        // Initialize the padded Allocation to zero, col2im accumulates into it.
+        mConvovle.forEach_zero(plan.img_padded, plan.img_padded);
 
-        // Create output image Allocation.
-        Allocation img_alloc = Allocation.createTyped(mRS,
-                Type.createXY(mRS, Element.F32(mRS), img_h * img_w, out_channels));
-        mConvovle.set_img_alloc(img_alloc);
-        time = System.currentTimeMillis();
+        // The output image Allocation.
+        Allocation img_alloc = plan.img_alloc;
+        time = startTimer();
 
         // Invoke col2im kernel, to transform column image to padded image:
         mConvovle.invoke_col2im();
@@ -181,31 +251,57 @@ public class Deconvolution2D extends NeuralNetLayerBase {
 
         // Invoked the unpadding kernel.
         mConvovle.invoke_unpadd();
-        if (LOG_TIME) {
-            mRS.finish();
-            time = System.currentTimeMillis() - time;
+        if (mTiming) {
+            time = stopTimer(time, "col2im", colCount * ksize * ksize, 12 * colCount * ksize * ksize);
             col2imTime += time;
-            Log.v(TAG, "Deconvolution2D, channels: " + in_channels + ", " + out_channels + " size: " + col_h + ", " + col_w + " col2im process time: " + time);
+            Log.v(TAG, "Deconvolution2D, channels: " + in_channels + ", " + out_channels + " size: " + col_h + ", " + col_w + " col2im process time: " + time / 1000000);
         }
 
-        time = System.currentTimeMillis();
+        time = startTimer();
         // Add beta to the results for each channel.
         mConvovle.forEach_addBeta(img_alloc, img_alloc);
-        if (LOG_TIME) {
-            mRS.finish();
-            time = System.currentTimeMillis() - time;
+        if (mTiming) {
+            time = stopTimer(time, "beta", outCount, 8 * outCount);
             betaTime += time;
-            Log.v(TAG, "Deconvolution2D, channels: " + in_channels + ", " + out_channels + " size: " + col_h + ", " + col_w + " addBeta process time: " + time);
+            Log.v(TAG, "Deconvolution2D, channels: " + in_channels + ", " + out_channels + " size: " + col_h + ", " + col_w + " addBeta process time: " + time / 1000000);
         }
 
-        // Destroy the intermediate Allocations.
-        out_alloc.destroy();
-        img_padded.destroy();
-
         // Update the output dimensions.
-        outH = img_h;
-        outW = img_w;
+        outH = plan.outH;
+        outW = plan.outW;
 
         return img_alloc;
     }
+
+    /*
+        Fused output stage of the last layer, for 3 output channels: the
+        deconvolution gathered per output pixel, the bias, tanh and the packing
+        into the RGBA Allocation out, of the output dimensions, in a single launch.
+        Replaces process and the alloc2img kernel of img2alloc.rs.
+     */
+    public void processToImage(Allocation input, int col_h, int col_w, Allocation out) {
+        if (out_channels != 3) {
+            throw new IllegalStateException("Only a 3 channel output converts to an image");
+        }
+        outH = ConvolveUtil.get_deconv_outsize(col_h, ksize, stride, pad);
+        outW = ConvolveUtil.get_deconv_outsize(col_w, ksize, stride, pad);
+
+        mConvovle.set_in_alloc(input);
+        mConvovle.set_in_h(col_h);
+        mConvovle.set_in_w(col_w);
+
+        // Operations and bytes of the kernel, for the benchmark.
+        long outCount = (long) outH * outW;
+        long taps = (long) (ksize / stride) * (ksize / stride);
+        long flops = 2 * outCount * taps * in_channels * out_channels;
+        long bytes = 4L * col_h * col_w * in_channels + 4L * in_channels * padded_Y_blas + 4 * outCount;
+
+        long time = startTimer();
+        mConvovle.forEach_deconvolveToImage(out);
+        if (mTiming) {
+            time = stopTimer(time, "deconvolveToImage", flops, bytes);
+            col2imTime += time;
+            Log.v(TAG, "Deconvolution2D, channels: " + in_channels + ", " + out_channels + " size: " + col_h + ", " + col_w + " fused output process time: " + time / 1000000);
+        }
+    }
 }
@@ -82,10 +82,33 @@ public class Deconvolution2DTiled extends NeuralNetLayerBase {
         }
 
         // Create Allocations for W and b.
-        W_alloc = Allocation.createTyped(mRS,
-                Type.createXY(mRS, Element.F32(mRS), in_channels, padded_Y_blas));
-        b_alloc = Allocation.createSized(mRS, Element.F32(mRS), out_channels);
+        W_alloc = AllocationTracker.createTyped(mRS,
+                Type.createXY(mRS, Element.F32(mRS), in_channels, padded_Y_blas), this, "W_alloc");
+        b_alloc = AllocationTracker.createSized(mRS, Element.F32(mRS), out_channels, this, "b_alloc");
 
+        createKernel();
+    }
+
+    // Create another execution context of the given layer. The weights are shared,
+    // the kernel and the intermediate Allocations are private to the new layer.
+    public Deconvolution2DTiled(Deconvolution2DTiled shared) {
+        super(shared);
+
+        this.in_channels = shared.in_channels;
+        this.out_channels = shared.out_channels;
+        this.ksize = shared.ksize;
+        this.stride = shared.stride;
+        this.pad = shared.pad;
+        this.W = shared.W;
+        this.b = shared.b;
+        this.padded_Y_blas = shared.padded_Y_blas;
+        this.W_alloc = shared.W_alloc;
+        this.b_alloc = shared.b_alloc;
+
+        createKernel();
+    }
+
+    private void createKernel() {
         // Initialize the 2D deconvolution kernel;
         mConvovle = new ScriptC_deconvolve2d(mRS);
 
@@ -100,10 +123,13 @@ public class Deconvolution2DTiled extends NeuralNetLayerBase {
         mConvovle.set_pad_h(pad);
         mConvovle.set_pad_w(pad);
         mConvovle.set_beta_alloc(b_alloc);
+        mConvovle.set_W_alloc(W_alloc);
+        mConvovle.set_in_channel(in_channels);
     }
 
     // Load the data from file and transfer to corresponding Allocations.
     public void loadModel(String path) throws IOException {
+        checkWeightsWritable();
         mInputStream = mContext.getAssets().open(path + "/W", AssetManager.ACCESS_BUFFER);
         ByteBuffer bb = readInput(mInputStream);
         FloatBuffer.wrap(W).put(bb.asFloatBuffer());
@@ -127,103 +153,216 @@ public class Deconvolution2DTiled extends NeuralNetLayerBase {
     }
 
 
-    /*
-        The workflow of 2D deconvolution:
-        1. Use matrix multiplication API to calculate the tiled deconvolution.
-        2. Rearrange the tiled column image by col2im.
-        3. Repeat 1~2 until the entire image is traversed.
-        4. Unpad the output image.
-     */
-    public Allocation process(Allocation input, int col_h, int col_w) {
-        // Calculate the dimensions of image after deconvolution.
-        outH = ConvolveUtil.get_deconv_outsize(col_h, ksize, stride, pad);
-        outW = ConvolveUtil.get_deconv_outsize(col_w, ksize, stride, pad);
+    // Buffers and kernel parameters specialized for one input resolution.
+    private class TilePlan implements PlanCache.Plan {
+        int col_h, col_w;
+        int outH, outW;
+        // Tiling in Y dimension.
+        int tiledDimX;
+        int nTiles;
+
+        Allocation tiledIn_alloc;
+        Allocation tiledOut_alloc;
+        Allocation img_padded;
+        Allocation img_alloc;
+
+        public void destroy() {
+            AllocationTracker.destroy(tiledIn_alloc);
+            AllocationTracker.destroy(tiledOut_alloc);
+            AllocationTracker.destroy(img_padded);
+            AllocationTracker.destroy(img_alloc);
+        }
+    }
 
-        // Set the global variables for the RS kernel.
-        mConvovle.set_col_w(col_w);
-        mConvovle.set_col_channel(out_channels);
-        mConvovle.set_img_channel(out_channels);
-        mConvovle.set_img_h(outH);
-        mConvovle.set_img_w(outW);
+    // Plans for the resolutions processed recently.
+    private final PlanCache<TilePlan> mPlans = new PlanCache<>();
+    // The plan whose parameters are currently set to the deconvolve kernel.
+    private TilePlan mBoundPlan;
+
+    private TilePlan createPlan(int col_h, int col_w) {
+        TilePlan plan = new TilePlan();
+        plan.col_h = col_h;
+        plan.col_w = col_w;
 
+        // Calculate the dimensions of image after deconvolution.
+        plan.outH = ConvolveUtil.get_deconv_outsize(col_h, ksize, stride, pad);
+        plan.outW = ConvolveUtil.get_deconv_outsize(col_w, ksize, stride, pad);
 
-        int tiledDimX = TILE_Y * col_w;
+        plan.tiledDimX = TILE_Y * col_w;
         int tiledDimY = in_channels;
         // Create the tiled input Allocation.
-        Allocation tiledIn_alloc = Allocation.createTyped(mRS,
-                Type.createXY(mRS, Element.F32(mRS), tiledDimX, tiledDimY));
+        plan.tiledIn_alloc = AllocationTracker.createTyped(mRS,
+                Type.createXY(mRS, Element.F32(mRS), plan.tiledDimX, tiledDimY), this, "tiledIn_alloc");
 
         // Create the tiled output Allocation.
-        Allocation tiledOut_alloc = Allocation.createTyped(mRS,
-                Type.createXY(mRS, Element.F32(mRS), tiledDimX, padded_Y_blas));
-        mConvovle.set_col_alloc(tiledOut_alloc);
+        plan.tiledOut_alloc = AllocationTracker.createTyped(mRS,
+                Type.createXY(mRS, Element.F32(mRS), plan.tiledDimX, padded_Y_blas), this, "tiledOut_alloc");
 
         // Create Allocation to hold the padded image.
-        int padded_h = outH + 2 * pad;
-        int padded_w = outW + 2 * pad;
-        Allocation img_padded = Allocation.createTyped(mRS,
-                Type.createXY(mRS, Element.F32(mRS), padded_h * padded_w, out_channels));
-        // Initialize the padded Allocation to zero.
-        mConvovle.forEach_zero(img_padded, img_padded);
-        mConvovle.set_padded_alloc(img_padded);
+        int padded_h = plan.outH + 2 * pad;
+        int padded_w = plan.outW + 2 * pad;
+        plan.img_padded = AllocationTracker.createTyped(mRS,
+                Type.createXY(mRS, Element.F32(mRS), padded_h * padded_w, out_channels), this, "img_padded");
 
         // Create final output image Allocation
-        Allocation img_alloc = Allocation.createTyped(mRS,
-                Type.createXY(mRS, Element.F32(mRS), outH * outW, out_channels));
-        mConvovle.set_img_alloc(img_alloc);
+        plan.img_alloc = AllocationTracker.createTyped(mRS,
+                Type.createXY(mRS, Element.F32(mRS), plan.outH * plan.outW, out_channels), this, "img_alloc");
 
         // The number of tiles, minimum 1.
-        int nTiles = col_h / TILE_Y;
-        if (nTiles == 0) nTiles = 1;
+        plan.nTiles = col_h / TILE_Y;
+        if (plan.nTiles == 0) plan.nTiles = 1;
+        return plan;
+    }
+
+    // Fetch the plan for the input dimensions, building it on first use,
+    // and set its parameters to the deconvolve kernel if another plan was bound.
+    private TilePlan bindPlan(int col_h, int col_w) {
+        TilePlan plan = mPlans.get(col_h, col_w);
+        if (plan == null) {
+            // Allocate the buffers of the plan.
+            traceBegin("createPlan", -1, mTracer == null ? null : TraceRecorder.shape(in_channels, col_h, col_w));
+            plan = createPlan(col_h, col_w);
+            mPlans.put(col_h, col_w, plan);
+            traceEnd();
+        }
+        if (plan != mBoundPlan) {
+            // Set the global variables for the RS kernel.
+            mConvovle.set_col_w(col_w);
+            mConvovle.set_col_channel(out_channels);
+            mConvovle.set_img_channel(out_channels);
+            mConvovle.set_img_h(plan.outH);
+            mConvovle.set_img_w(plan.outW);
+            mConvovle.set_col_alloc(plan.tiledOut_alloc);
+            mConvovle.set_padded_alloc(plan.img_padded);
+            mConvovle.set_img_alloc(plan.img_alloc);
+            mBoundPlan = plan;
+        }
+        outH = plan.outH;
+        outW = plan.outW;
+        return plan;
+    }
+
+    @Override
+    public void destroy() {
+        mPlans.clear();
+        mBoundPlan = null;
+        if (mOwnsWeights) {
+            AllocationTracker.destroy(W_alloc);
+            AllocationTracker.destroy(b_alloc);
+        }
+    }
+
+    /*
+        The workflow of 2D deconvolution:
+        1. Use matrix multiplication API to calculate the tiled deconvolution.
+        2. Rearrange the tiled column image by col2im.
+        3. Repeat 1~2 until the entire image is traversed.
+        4. Unpad the output image.
+
+        The returned Allocation is owned by the layer and reused by the next call
+        with the same input dimensions.
+     */
+    public Allocation process(Allocation input, int col_h, int col_w) {
+        traceBegin("process", -1, mTracer == null ? null : TraceRecorder.shape(in_channels, col_h, col_w));
+        TilePlan plan = bindPlan(col_h, col_w);
+        Allocation img_alloc = plan.img_alloc;
+
+        // Shapes of the padded image and of the tiled Allocations, for the trace.
+        String paddedShape = null, inShape = null, colShape = null;
+        if (mTracer != null) {
+            int tileRows = plan.tiledDimX / col_w;
+            paddedShape = TraceRecorder.shape(out_channels, plan.outH + 2 * pad, plan.outW + 2 * pad);
+            inShape = TraceRecorder.shape(in_channels, tileRows, col_w);
+            colShape = TraceRecorder.shape(padded_Y_blas, tileRows, col_w);
+        }
 
+        // Initialize the padded Allocation to zero, col2im accumulates into it.
+        traceBegin("zero", -1, paddedShape);
+        mConvovle.forEach_zero(plan.img_padded, plan.img_padded);
+        traceEnd();
+
+        // Operations and bytes of one tile, for the benchmark.
+        long tileSize = plan.tiledDimX;
+        long colBytes = 4 * tileSize * padded_Y_blas;
+        long sgemmFlops = 2 * tileSize * padded_Y_blas * in_channels;
+        long sgemmBytes = 4 * tileSize * in_channels + 4 * (long) in_channels * padded_Y_blas + colBytes;
         long time;
 
         // Iterate each tile for 2D deconvolution and copy to the final output.
-        for (int it = 0; it < nTiles; it++) {
+        for (int it = 0; it < plan.nTiles; it++) {
+            traceBegin("tile", it, colShape);
             // Set the current tile number;
             mConvovle.set_tile_num(it);
 
             // Copy data to the tiled input Allocation.
-            tiledIn_alloc.copy2DRangeFrom(0, 0, tiledDimX, in_channels, input, it * tiledDimX, 0);
-            time = System.currentTimeMillis();
+            traceBegin("copy2DRangeFrom", it, inShape);
+            plan.tiledIn_alloc.copy2DRangeFrom(0, 0, plan.tiledDimX, in_channels, input, it * plan.tiledDimX, 0);
+            traceEnd();
+            time = startTimer();
 
             // Conduct the deconvolution by matrix multiplication, using SGEMM (BLAS API).
+            traceBegin("sgemm", it, colShape);
             mBlas.SGEMM(ScriptIntrinsicBLAS.NO_TRANSPOSE, ScriptIntrinsicBLAS.NO_TRANSPOSE,
-                    1.0f, W_alloc, tiledIn_alloc, 0.0f, tiledOut_alloc);
-            if (LOG_TIME) {
-                mRS.finish();
-                time = System.currentTimeMillis() - time;
-                sgemmTime += time;
-            }
+                    1.0f, W_alloc, plan.tiledIn_alloc, 0.0f, plan.tiledOut_alloc);
+            sgemmTime += stopTimer(time, "sgemm", sgemmFlops, sgemmBytes);
+            traceEnd();
 
-            time = System.currentTimeMillis();
+            time = startTimer();
             // Invoke col2im kernel, to transform column image to padded image:
+            traceBegin("col2im", it, colShape);
             mConvovle.invoke_col2im_tileY();
-            if (LOG_TIME) {
-                mRS.finish();
-                time = System.currentTimeMillis() - time;
-                col2imTime += time;
-            }
-
+            // One addition per column element, read the column and accumulate into the image.
+            col2imTime += stopTimer(time, "col2im", tileSize * out_channels * ksize * ksize, 3 * colBytes);
+            traceEnd();
+            traceEnd();
         }
 
+        String outShape = mTracer == null ? null : TraceRecorder.shape(out_channels, plan.outH, plan.outW);
         // Invoked the unpadding kernel.
+        traceBegin("unpadd", -1, outShape);
         mConvovle.invoke_unpadd();
+        traceEnd();
 
-        time = System.currentTimeMillis();
+        time = startTimer();
         // Add beta to the results for each channel.
+        long outCount = (long) plan.outH * plan.outW * out_channels;
+        traceBegin("addBeta", -1, outShape);
         mConvovle.forEach_addBeta(img_alloc, img_alloc);
-        if (LOG_TIME) {
-            mRS.finish();
-            time = System.currentTimeMillis() - time;
-            betaTime += time;
-        }
-
-        // Destroy the intermediate Allocations.
-        tiledOut_alloc.destroy();
-        tiledIn_alloc.destroy();
-        img_padded.destroy();
+        betaTime += stopTimer(time, "beta", outCount, 8 * outCount);
+        traceEnd();
+        traceEnd();
 
         return img_alloc;
     }
+
+    /*
+        Fused output stage of the last layer, for 3 output channels: the
+        deconvolution gathered per output pixel, the bias, tanh and the packing
+        into the RGBA Allocation out, of the output dimensions, in a single launch.
+        Replaces process and the alloc2img kernel of img2alloc.rs: no column image,
+        no padded image, and the float output is never stored.
+     */
+    public void processToImage(Allocation input, int col_h, int col_w, Allocation out) {
+        if (out_channels != 3) {
+            throw new IllegalStateException("Only a 3 channel output converts to an image");
+        }
+        outH = ConvolveUtil.get_deconv_outsize(col_h, ksize, stride, pad);
+        outW = ConvolveUtil.get_deconv_outsize(col_w, ksize, stride, pad);
+        String outShape = mTracer == null ? null : TraceRecorder.shape(out_channels, outH, outW);
+        traceBegin("processToImage", -1, outShape);
+
+        mConvovle.set_in_alloc(input);
+        mConvovle.set_in_h(col_h);
+        mConvovle.set_in_w(col_w);
+
+        // Each output pixel reads the inputs of (ksize / stride)^2 kernel offsets.
+        long outCount = (long) outH * outW;
+        long taps = (long) (ksize / stride) * (ksize / stride);
+        long flops = 2 * outCount * taps * in_channels * out_channels;
+        long bytes = 4L * col_h * col_w * in_channels + 4L * in_channels * padded_Y_blas + 4 * outCount;
+        long time = startTimer();
+        mConvovle.forEach_deconvolveToImage(out);
+        col2imTime += stopTimer(time, "deconvolveToImage", flops, bytes);
+        traceEnd();
+    }
 }
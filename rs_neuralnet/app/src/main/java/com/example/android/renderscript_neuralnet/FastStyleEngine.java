@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.support.v8.renderscript.RenderScript;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/*
+   Thread-safe inference engine on top of FastStyleModelTiled.
+
+   Each style is loaded once into a root model whose weight Allocations are never
+   modified afterwards. Requests run on execution contexts created from the root:
+   a context shares the weights but owns its kernels and its per-resolution
+   Allocations (the scratch arena), so concurrent requests never touch each other's
+   state. Contexts are pooled per style, at most maxContexts of them, and a request
+   waits for an idle context when all of them are busy.
+*/
+public class FastStyleEngine {
+    private static final String TAG = "FastStyleEngine";
+
+    private final Context mContext;
+    private final RenderScript mRS;
+    private final int mMaxContexts;
+
+    // The loaded styles, by model name.
+    private final HashMap<String, Style> mStyles = new HashMap<>();
+
+    private class Style {
+        // The model holding the immutable weights.
+        final FastStyleModelTiled weights;
+        // The execution contexts not in use.
+        final LinkedBlockingQueue<FastStyleModelTiled> idle = new LinkedBlockingQueue<>();
+        // Number of execution contexts created so far, guarded by the Style.
+        int created = 0;
+
+        Style(FastStyleModelTiled weights) {
+            this.weights = weights;
+        }
+    }
+
+    public FastStyleEngine(Context ctx) {
+        this(ctx, Runtime.getRuntime().availableProcessors());
+    }
+
+    public FastStyleEngine(Context ctx, int maxContexts) {
+        mContext = ctx;
+        mRS = RenderScript.create(ctx, Build.VERSION_CODES.LOLLIPOP);
+        mMaxContexts = maxContexts;
+    }
+
+    // Load the weights of a style, if they are not loaded yet.
+    public void loadModel(String modelName) throws IOException {
+        getStyle(modelName);
+    }
+
+    private Style getStyle(String modelName) throws IOException {
+        synchronized (mStyles) {
+            Style style = mStyles.get(modelName);
+            if (style == null) {
+                long time = System.currentTimeMillis();
+                FastStyleModelTiled weights = new FastStyleModelTiled(mContext, mRS);
+                weights.loadModel(modelName);
+                weights.mModel = modelName;
+                style = new Style(weights);
+                mStyles.put(modelName, style);
+                Log.v(TAG, "loaded model " + modelName + ", using time: " + (System.currentTimeMillis() - time));
+            }
+            return style;
+        }
+    }
+
+    private FastStyleModelTiled acquire(Style style) throws InterruptedException {
+        FastStyleModelTiled context = style.idle.poll();
+        if (context != null) {
+            return context;
+        }
+        synchronized (style) {
+            if (style.created < mMaxContexts) {
+                style.created++;
+                return new FastStyleModelTiled(style.weights);
+            }
+        }
+        // All the contexts are busy, wait for one to be released.
+        return style.idle.take();
+    }
+
+    private void release(Style style, FastStyleModelTiled context) {
+        style.idle.add(context);
+    }
+
+    /*
+       Stylize the center size x size square of the bitmap.
+       Can be called from any number of threads at the same time.
+     */
+    public Bitmap processImage(String modelName, Bitmap bitmap, int size)
+            throws IOException, InterruptedException {
+        Style style = getStyle(modelName);
+        FastStyleModelTiled context = acquire(style);
+        try {
+            return context.processImage(bitmap, size);
+        } finally {
+            release(style, context);
+        }
+    }
+}
@@ -25,11 +25,11 @@ import android.support.v8.renderscript.Allocation;
 import android.support.v8.renderscript.Element;
 import android.support.v8.renderscript.RenderScript;
 import android.support.v8.renderscript.ScriptIntrinsicBLAS;
-import android.support.v8.renderscript.ScriptIntrinsicBlur;
 import android.support.v8.renderscript.Type;
 import android.util.Log;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /*
    FastStyle Convolutional Neural Net model.
@@ -71,15 +71,21 @@ import java.io.IOException;
 public class FastStyleModel {
     public String mModel = null;
     private boolean mLoaded = false;
-    private boolean LOG_TIME = NeuralNetLayerBase.LOG_TIME;
+    // One inference in mTimingInterval has its kernels timed, see setTimingInterval.
+    private int mTimingInterval = 0;
+    private int mInferences = 0;
+    // Whether the kernels of the current inference are timed.
+    private boolean mTiming = false;
 
-    private static final String DEFAULT_MODEL = "composition";
+    public static final String DEFAULT_MODEL = "composition";
     private static final String TAG = "FloatFastStyleModel";
 
     static int MAX_IMG_SIZE = 256;
     static int MAX_CHUNK_SIZE = 256;
 
     private Context mContext;
+    // Records the time of each kernel when set.
+    private BenchmarkRecorder mRecorder;
     private Convolution2D[] mConvLayer;
     private ResidualBlock[] mResidualLayer;
     private Deconvolution2D[] mDeconvLayer;
@@ -89,6 +95,31 @@ public class FastStyleModel {
     private ScriptIntrinsicBLAS mBlas;
     private ScriptC_img2alloc mImg2Alloc;
     private ScriptC_activation mActivation;
+    // Blurs the output, without the sharpen of FastStyleModelTiled.
+    private PostFilter mPostFilter;
+
+    // Image Allocations specialized for one input resolution.
+    private class ImagePlan implements PlanCache.Plan {
+        int height, width;
+
+        // RGB bitmap Allocation.
+        Allocation imgAlloc;
+        // Float input Allocation.
+        Allocation inputAlloc;
+        // RGB output Allocation of the neural net.
+        Allocation outAlloc;
+
+        public void destroy() {
+            AllocationTracker.destroy(imgAlloc);
+            AllocationTracker.destroy(inputAlloc);
+            AllocationTracker.destroy(outAlloc);
+        }
+    }
+
+    // Plans for the resolutions processed recently. Each layer keeps its own
+    // plans as well, so a repeated resolution skips all the setup work.
+    private final PlanCache<ImagePlan> mPlans = new PlanCache<>();
+    private ImagePlan mBoundPlan;
 
 
     public FastStyleModel(Context ctx) {
@@ -97,6 +128,7 @@ public class FastStyleModel {
         mBlas = ScriptIntrinsicBLAS.create(mRS);
         mImg2Alloc = new ScriptC_img2alloc(mRS);
         mActivation = new ScriptC_activation(mRS);
+        mPostFilter = new PostFilter(mRS, null);
 
         mConvLayer = new Convolution2D[3];
         mResidualLayer = new ResidualBlock[5];
@@ -122,9 +154,56 @@ public class FastStyleModel {
         mBatchNormLayer[2] = new BatchNormalization(ctx, mRS, 128);
         mBatchNormLayer[3] = new BatchNormalization(ctx, mRS, 64);
         mBatchNormLayer[4] = new BatchNormalization(ctx, mRS, 32);
+        setRecorder(null);
     }
 
 
+    // Record the time of each kernel of each layer to the recorder, or stop recording if null.
+    public void setRecorder(BenchmarkRecorder recorder) {
+        mRecorder = recorder;
+        for (int i = 0; i < mConvLayer.length; i++) {
+            mConvLayer[i].setRecorder("c" + (i + 1), recorder);
+        }
+        for (int i = 0; i < mResidualLayer.length; i++) {
+            mResidualLayer[i].setRecorder("r" + (i + 1), recorder);
+        }
+        for (int i = 0; i < mDeconvLayer.length; i++) {
+            mDeconvLayer[i].setRecorder("d" + (i + 1), recorder);
+        }
+        for (int i = 0; i < mBatchNormLayer.length; i++) {
+            mBatchNormLayer[i].setRecorder("b" + (i + 1), recorder);
+        }
+    }
+
+    /*
+       Configure the per-kernel timing at runtime:
+         0 : off, the kernels are never waited for;
+         1 : every inference is timed;
+         N : one inference in N is timed, the others run at full speed.
+       A timed inference waits for each kernel to finish before launching the next one,
+       which breaks the pipelining between kernels: sampling keeps that cost off most
+       of the inferences, while their end-to-end time is still recorded.
+     */
+    public void setTimingInterval(int interval) {
+        mTimingInterval = interval;
+    }
+
+    private void setTiming(boolean timing) {
+        mTiming = timing;
+        for (Convolution2D layer : mConvLayer) {
+            layer.setTiming(timing);
+        }
+        for (ResidualBlock layer : mResidualLayer) {
+            layer.setTiming(timing);
+        }
+        for (Deconvolution2D layer : mDeconvLayer) {
+            layer.setTiming(timing);
+        }
+        for (BatchNormalization layer : mBatchNormLayer) {
+            layer.setTiming(timing);
+        }
+    }
+
     public void loadModel() throws IOException {
         loadModel(DEFAULT_MODEL);
     }
@@ -149,19 +228,66 @@ public class FastStyleModel {
         mLoaded = true;
     }
 
-    private Allocation processImgChunk(Bitmap bitmap) {
+    // Fetch the plan for the image dimensions, building it on first use,
+    // and set its parameters to the conversion kernels if another plan was bound.
+    private ImagePlan bindPlan(int height, int width) {
+        ImagePlan plan = mPlans.get(height, width);
+        if (plan == null) {
+            plan = new ImagePlan();
+            plan.height = height;
+            plan.width = width;
+            Type rgbType = Type.createXY(mRS, Element.U8_4(mRS), width, height);
+            plan.imgAlloc = AllocationTracker.createTyped(mRS, rgbType, "model", "imgAlloc");
+            plan.inputAlloc = AllocationTracker.createTyped(mRS, Type.createXY(mRS, Element.F32(mRS), height * width, 3), "model", "inputAlloc");
+            plan.outAlloc = AllocationTracker.createTyped(mRS, rgbType, "model", "outAlloc");
+            mPlans.put(height, width, plan);
+        }
+        if (plan != mBoundPlan) {
+            mImg2Alloc.set_height(height);
+            mImg2Alloc.set_weight(width);
+            mImg2Alloc.set_img_alloc(plan.imgAlloc);
+            mBoundPlan = plan;
+        }
+        return plan;
+    }
+
+    /*
+       Whether the inference is cancelled, checked between the stages of the net.
+       The kernels run asynchronously, so the check first waits for the ones launched
+       so far: otherwise all the stages would be queued before the first check.
+     */
+    private boolean isCancelled(AtomicBoolean cancel) {
+        if (cancel == null) {
+            return false;
+        }
+        if (!cancel.get()) {
+            mRS.finish();
+        }
+        return cancel.get();
+    }
+
+    // Returns null if cancel is set before the net completes.
+    private Allocation processImgChunk(Bitmap bitmap, AtomicBoolean cancel) {
         int height = bitmap.getHeight();
         int width = bitmap.getWidth();
 
-        mImg2Alloc.set_height(height);
-        mImg2Alloc.set_weight(width);
-
-        Bitmap outImg = Bitmap.createBitmap(bitmap);
+        mInferences++;
+        boolean timing = mTimingInterval > 0 && mInferences % mTimingInterval == 0;
+        if (timing != mTiming) {
+            setTiming(timing);
+        }
+        if (mRecorder != null) {
+            mRecorder.startInference();
+        }
+        AllocationTracker tracker = AllocationTracker.get();
+        if (tracker != null) {
+            tracker.startInference(this);
+        }
+        ImagePlan plan = bindPlan(height, width);
         // RGB bitmap Allocation.
-        Allocation imgAlloc = Allocation.createFromBitmap(mRS, bitmap);
-        mImg2Alloc.set_img_alloc(imgAlloc);
+        plan.imgAlloc.copyFrom(bitmap);
         // Float input Allocation.
-        Allocation result = Allocation.createTyped(mRS, Type.createXY(mRS, Element.F32(mRS), height * width, 3));
+        Allocation result = plan.inputAlloc;
         // convert the bitmap to 3 * (h * w) float Allocation;
         mImg2Alloc.forEach_img2alloc(result);
 
@@ -172,49 +298,79 @@ public class FastStyleModel {
         mActivation.forEach_elu(result, result);
         // 1st Batch Normalization.
         mBatchNormLayer[0].process(result);
+        if (isCancelled(cancel)) {
+            return null;
+        }
 
         // 2nd Convolution layer.
         result = mConvLayer[1].process(result, mConvLayer[0].outH, mConvLayer[0].outW);
         mActivation.forEach_elu(result, result);
         // 2nd Batch Normalization.
         mBatchNormLayer[1].process(result);
+        if (isCancelled(cancel)) {
+            return null;
+        }
 
         // 3rd Convolution layer.
         result = mConvLayer[2].process(result, mConvLayer[1].outH, mConvLayer[1].outW);
         mActivation.forEach_elu(result, result);
         // 3rd Batch Normalization.
         mBatchNormLayer[2].process(result);
+        if (isCancelled(cancel)) {
+            return null;
+        }
 
         // Process through 5 consecutive residual blocks.
         result = mResidualLayer[0].process(result, mConvLayer[2].outH, mConvLayer[2].outW);
-        result = mResidualLayer[1].process(result, mResidualLayer[0].outH, mResidualLayer[0].outW);
-        result = mResidualLayer[2].process(result, mResidualLayer[1].outH, mResidualLayer[1].outW);
-        result = mResidualLayer[3].process(result, mResidualLayer[2].outH, mResidualLayer[2].outW);
-        result = mResidualLayer[4].process(result, mResidualLayer[3].outH, mResidualLayer[3].outW);
+        for (int i = 1; i < mResidualLayer.length; i++) {
+            if (isCancelled(cancel)) {
+                return null;
+            }
+            result = mResidualLayer[i].process(result, mResidualLayer[i - 1].outH, mResidualLayer[i - 1].outW);
+        }
+        if (isCancelled(cancel)) {
+            return null;
+        }
 
         // 1st Deconvolution layer.
         result = mDeconvLayer[0].process(result, mResidualLayer[4].outH, mResidualLayer[4].outW);
         mActivation.forEach_elu(result, result);
         // 4th Batch Normalization.
         mBatchNormLayer[3].process(result);
+        if (isCancelled(cancel)) {
+            return null;
+        }
 
         // 2nd Deconvolution layer.
         result = mDeconvLayer[1].process(result, mDeconvLayer[0].outH, mDeconvLayer[0].outW);
         mActivation.forEach_elu(result, result);
         // 5th Batch Normalization.
         mBatchNormLayer[4].process(result);
+        if (isCancelled(cancel)) {
+            return null;
+        }
 
-        // 3rd Deconvolution layer.
-        result = mDeconvLayer[2].process(result, mDeconvLayer[1].outH, mDeconvLayer[1].outW);
-
-        // Convert floating point result to RGB image.
-        mImg2Alloc.set_nn_alloc(result);
-        Allocation outAlloc = Allocation.createFromBitmap(mRS, outImg);
-        mImg2Alloc.forEach_alloc2img(outAlloc);
-        return outAlloc;
+        // 3rd Deconvolution layer, fused with the conversion of its float output
+        // to the RGB image.
+        mDeconvLayer[2].processToImage(result, mDeconvLayer[1].outH, mDeconvLayer[1].outW, plan.outAlloc);
+        return plan.outAlloc;
     }
 
     public Bitmap processImage(Bitmap bitmap) {
+        return processImage(bitmap, MAX_IMG_SIZE);
+    }
+
+    // Process the center size x size square of the bitmap.
+    public Bitmap processImage(Bitmap bitmap, int size) {
+        return processImage(bitmap, size, null);
+    }
+
+    /*
+       Process the center size x size square of the bitmap, unless cancel is set
+       from another thread before the net completes: the inference then stops at the
+       next stage of the net and null is returned.
+     */
+    public Bitmap processImage(Bitmap bitmap, int size, AtomicBoolean cancel) {
         if (!mLoaded) {
             try {
                 loadModel();
@@ -227,25 +383,57 @@ public class FastStyleModel {
         int width = bitmap.getWidth();
 
         // Crop the image.
-        Bitmap outImgBig = Bitmap.createBitmap(bitmap, (width - MAX_IMG_SIZE) / 2,
-                (height - MAX_IMG_SIZE) / 2, MAX_IMG_SIZE, MAX_IMG_SIZE);
+        Bitmap outImgBig = Bitmap.createBitmap(bitmap, (width - size) / 2,
+                (height - size) / 2, size, size);
         // Process the cropped image through the neural net.
-        Allocation outImgBigAlloc = processImgChunk(outImgBig);
+        long start = System.nanoTime();
+        Allocation outImgBigAlloc = processImgChunk(outImgBig, cancel);
+        if (outImgBigAlloc == null) {
+            return null;
+        }
 
         // Blur the output image a bit.
-        Allocation blurredAlloc = Allocation.createFromBitmap(mRS, outImgBig);
-        ScriptIntrinsicBlur mBlur = ScriptIntrinsicBlur.create(mRS, Element.U8_4(mRS));
-        mBlur.setInput(outImgBigAlloc);
-        mBlur.setRadius(1.5f);
-        mBlur.forEach(blurredAlloc);
-        blurredAlloc.copyTo(outImgBig);
+        mPostFilter.process(outImgBigAlloc, outImgBig);
+        recordInference(start);
 
         logBenchmarkResult();
         return outImgBig;
     }
 
+    // Record the end-to-end time of the inference, once its output is copied back:
+    // the copy has waited for all the kernels, timed or not.
+    private void recordInference(long start) {
+        if (mRecorder != null) {
+            mRecorder.record("model", mTiming ? "inference_timed" : "inference",
+                    System.nanoTime() - start, 0, 0);
+        }
+        AllocationTracker tracker = AllocationTracker.get();
+        if (tracker != null) {
+            tracker.endInference(this);
+        }
+    }
+
+    // Destroy the Allocations of the model, which can not be used anymore.
+    public void destroy() {
+        mPlans.clear();
+        mBoundPlan = null;
+        mPostFilter.destroy();
+        for (int i = 0; i < mConvLayer.length; i++) {
+            mConvLayer[i].destroy();
+        }
+        for (int i = 0; i < mResidualLayer.length; i++) {
+            mResidualLayer[i].destroy();
+        }
+        for (int i = 0; i < mDeconvLayer.length; i++) {
+            mDeconvLayer[i].destroy();
+        }
+        for (int i = 0; i < mBatchNormLayer.length; i++) {
+            mBatchNormLayer[i].destroy();
+        }
+    }
+
     public void logBenchmarkResult() {
-        if (LOG_TIME) {
+        if (mTiming) {
             BenchmarkResult result = new BenchmarkResult();
             for (int i = 0; i < mConvLayer.length; i++) {
                 mConvLayer[i].getBenchmark(result);
@@ -22,8 +22,6 @@ import android.support.v8.renderscript.Allocation;
 import android.support.v8.renderscript.Element;
 import android.support.v8.renderscript.RenderScript;
 import android.support.v8.renderscript.ScriptIntrinsicBLAS;
-import android.support.v8.renderscript.ScriptIntrinsicBlur;
-import android.support.v8.renderscript.ScriptIntrinsicConvolve3x3;
 import android.support.v8.renderscript.Type;
 import android.util.Log;
 
@@ -78,7 +76,11 @@ import java.io.IOException;
 public class FastStyleModelTiled {
     public String mModel = null;
     private boolean mLoaded = false;
-    private boolean LOG_TIME = NeuralNetLayerBase.LOG_TIME;
+    // One inference in mTimingInterval has its kernels timed, see setTimingInterval.
+    private int mTimingInterval = 0;
+    private int mInferences = 0;
+    // Whether the kernels of the current inference are timed.
+    private boolean mTiming = false;
     
     private static final String DEFAULT_MODEL = "composition";
     private static final String TAG = "FloatFastStyleModel";
@@ -87,6 +89,12 @@ public class FastStyleModelTiled {
     static int MAX_CHUNK_SIZE = 256;
 
     private Context mContext;
+    // Records the time of each kernel when set.
+    private BenchmarkRecorder mRecorder;
+    // Records the timeline of each inference when set.
+    private TraceRecorder mTracer;
+    // Peak of the device, measured on the first roofline report.
+    private RooflineReport.Peak mPeak;
     private Convolution2DTiled[] mConvLayer;
     private ResidualBlockChained mResidualLayer;
     private Deconvolution2DTiled[] mDeconvLayer;
@@ -96,15 +104,51 @@ public class FastStyleModelTiled {
     private ScriptIntrinsicBLAS mBlas;
     private ScriptC_img2alloc mImg2Alloc;
     private ScriptC_activation mActivation;
+    private PostFilter mPostFilter;
+
+    // Image Allocations specialized for one input resolution.
+    private class ImagePlan implements PlanCache.Plan {
+        int height, width;
+
+        // RGB bitmap Allocation.
+        Allocation imgAlloc;
+        // Float input Allocation.
+        Allocation inputAlloc;
+        // RGB output Allocation of the neural net.
+        Allocation outAlloc;
+
+        public void destroy() {
+            AllocationTracker.destroy(imgAlloc);
+            AllocationTracker.destroy(inputAlloc);
+            AllocationTracker.destroy(outAlloc);
+        }
+    }
+
+    // Plans for the resolutions processed recently. Each layer keeps its own
+    // plans as well, so a repeated resolution skips all the setup work.
+    private final PlanCache<ImagePlan> mPlans = new PlanCache<>();
+    private ImagePlan mBoundPlan;
+
+    // RGB Allocation of a source image of stylizeCenter, per source resolution.
+    private class SourcePlan implements PlanCache.Plan {
+        Allocation srcAlloc;
+
+        public void destroy() {
+            AllocationTracker.destroy(srcAlloc);
+        }
+    }
+
+    private final PlanCache<SourcePlan> mSourcePlans = new PlanCache<>();
 
 
     public FastStyleModelTiled(Context ctx) {
-        mContext = ctx;
+        this(ctx, RenderScript.create(ctx, Build.VERSION_CODES.LOLLIPOP));
+    }
 
-        mRS = RenderScript.create(ctx, Build.VERSION_CODES.LOLLIPOP);
-        mBlas = ScriptIntrinsicBLAS.create(mRS);
-        mImg2Alloc = new ScriptC_img2alloc(mRS);
-        mActivation = new ScriptC_activation(mRS);
+    public FastStyleModelTiled(Context ctx, RenderScript rs) {
+        mContext = ctx;
+        mRS = rs;
+        createKernels();
 
         mConvLayer = new Convolution2DTiled[3];
         mResidualLayer = new ResidualBlockChained(ctx, mRS, 128, 128, 3, 1, 1, 5);
@@ -124,6 +168,104 @@ public class FastStyleModelTiled {
         mBatchNormLayer[2] = new BatchNormalization(ctx, mRS, 128);
         mBatchNormLayer[3] = new BatchNormalization(ctx, mRS, 64);
         mBatchNormLayer[4] = new BatchNormalization(ctx, mRS, 32);
+        setRecorder(null);
+    }
+
+    /*
+       Create another execution context of a loaded model.
+       The weight Allocations are shared with the given model and become immutable,
+       while the kernels and all the per-resolution Allocations are private to the
+       new context. Each context may be used by one thread at a time, so concurrent
+       requests against one style each run on their own context.
+     */
+    public FastStyleModelTiled(FastStyleModelTiled weights) {
+        if (!weights.mLoaded) {
+            throw new IllegalStateException("The model must be loaded before it is shared");
+        }
+        mContext = weights.mContext;
+        mRS = weights.mRS;
+        mModel = weights.mModel;
+        createKernels();
+
+        mConvLayer = new Convolution2DTiled[weights.mConvLayer.length];
+        for (int i = 0; i < mConvLayer.length; i++) {
+            mConvLayer[i] = new Convolution2DTiled(weights.mConvLayer[i]);
+        }
+        mResidualLayer = new ResidualBlockChained(weights.mResidualLayer);
+        mDeconvLayer = new Deconvolution2DTiled[weights.mDeconvLayer.length];
+        for (int i = 0; i < mDeconvLayer.length; i++) {
+            mDeconvLayer[i] = new Deconvolution2DTiled(weights.mDeconvLayer[i]);
+        }
+        mBatchNormLayer = new BatchNormalization[weights.mBatchNormLayer.length];
+        for (int i = 0; i < mBatchNormLayer.length; i++) {
+            mBatchNormLayer[i] = new BatchNormalization(weights.mBatchNormLayer[i]);
+        }
+        setRecorder(null);
+        mLoaded = true;
+    }
+
+    private void createKernels() {
+        mBlas = ScriptIntrinsicBLAS.create(mRS);
+        mImg2Alloc = new ScriptC_img2alloc(mRS);
+        mActivation = new ScriptC_activation(mRS);
+        mPostFilter = new PostFilter(mRS);
+    }
+
+    // Record the time of each kernel of each layer to the recorder, or stop recording if null.
+    public void setRecorder(BenchmarkRecorder recorder) {
+        mRecorder = recorder;
+        for (int i = 0; i < mConvLayer.length; i++) {
+            mConvLayer[i].setRecorder("c" + (i + 1), recorder);
+        }
+        mResidualLayer.setRecorder("r", recorder);
+        for (int i = 0; i < mDeconvLayer.length; i++) {
+            mDeconvLayer[i].setRecorder("d" + (i + 1), recorder);
+        }
+        for (int i = 0; i < mBatchNormLayer.length; i++) {
+            mBatchNormLayer[i].setRecorder("b" + (i + 1), recorder);
+        }
+    }
+
+    // Record the timeline of the inferences to the tracer, or stop tracing if null.
+    public void setTracer(TraceRecorder tracer) {
+        mTracer = tracer;
+        for (Convolution2DTiled layer : mConvLayer) {
+            layer.setTracer(tracer);
+        }
+        mResidualLayer.setTracer(tracer);
+        for (Deconvolution2DTiled layer : mDeconvLayer) {
+            layer.setTracer(tracer);
+        }
+        for (BatchNormalization layer : mBatchNormLayer) {
+            layer.setTracer(tracer);
+        }
+    }
+
+    /*
+       Configure the per-kernel timing at runtime:
+         0 : off, the kernels are never waited for;
+         1 : every inference is timed;
+         N : one inference in N is timed, the others run at full speed.
+       A timed inference waits for each kernel to finish before launching the next one,
+       which breaks the pipelining between kernels: sampling keeps that cost off most
+       of the inferences, while their end-to-end time is still recorded.
+     */
+    public void setTimingInterval(int interval) {
+        mTimingInterval = interval;
+    }
+
+    private void setTiming(boolean timing) {
+        mTiming = timing;
+        for (Convolution2DTiled layer : mConvLayer) {
+            layer.setTiming(timing);
+        }
+        mResidualLayer.setTiming(timing);
+        for (Deconvolution2DTiled layer : mDeconvLayer) {
+            layer.setTiming(timing);
+        }
+        for (BatchNormalization layer : mBatchNormLayer) {
+            layer.setTiming(timing);
+        }
     }
 
     public void loadModel() throws IOException {
@@ -150,21 +292,82 @@ public class FastStyleModelTiled {
         mLoaded = true;
     }
 
+    // Fetch the plan for the image dimensions, building it on first use,
+    // and set its parameters to the conversion kernels if another plan was bound.
+    private ImagePlan bindPlan(int height, int width) {
+        ImagePlan plan = mPlans.get(height, width);
+        if (plan == null) {
+            plan = new ImagePlan();
+            plan.height = height;
+            plan.width = width;
+            Type rgbType = Type.createXY(mRS, Element.U8_4(mRS), width, height);
+            plan.imgAlloc = AllocationTracker.createTyped(mRS, rgbType, "model", "imgAlloc");
+            plan.inputAlloc = AllocationTracker.createTyped(mRS, Type.createXY(mRS, Element.F32(mRS), height * width, 3), "model", "inputAlloc");
+            plan.outAlloc = AllocationTracker.createTyped(mRS, rgbType, "model", "outAlloc");
+            mPlans.put(height, width, plan);
+        }
+        if (plan != mBoundPlan) {
+            mImg2Alloc.set_height(height);
+            mImg2Alloc.set_weight(width);
+            mImg2Alloc.set_img_alloc(plan.imgAlloc);
+            mBoundPlan = plan;
+        }
+        return plan;
+    }
+
     private Allocation processImgChunk(Bitmap bitmap) {
         int height = bitmap.getHeight();
         int width = bitmap.getWidth();
+        ImagePlan plan = startInference(height, width);
+        // RGB bitmap Allocation.
+        plan.imgAlloc.copyFrom(bitmap);
+        // Convert the bitmap to the 3 * (h * w) float input.
+        ingest(plan, plan.imgAlloc, height, width, height, width, 0, 0);
+        return runNet(plan);
+    }
 
-        mImg2Alloc.set_height(height);
-        mImg2Alloc.set_weight(width);
+    /*
+       Convert the crop at (cropY, cropX) of the srcH x srcW image src scaled to
+       scaledH x scaledW into the float input of the plan, reading only the sampled
+       source pixels, see the ingest kernel.
+     */
+    private void ingest(ImagePlan plan, Allocation src, int srcH, int srcW,
+                        int scaledH, int scaledW, int cropY, int cropX) {
+        mImg2Alloc.set_src_alloc(src);
+        mImg2Alloc.set_src_h(srcH);
+        mImg2Alloc.set_src_w(srcW);
+        mImg2Alloc.set_scaled_h(scaledH);
+        mImg2Alloc.set_scaled_w(scaledW);
+        mImg2Alloc.set_crop_y(cropY);
+        mImg2Alloc.set_crop_x(cropX);
+        mImg2Alloc.forEach_ingest(plan.inputAlloc);
+    }
 
-        Bitmap outImg = Bitmap.createBitmap(bitmap);
-        // RGB bitmap Allocation.
-        Allocation imgAlloc = Allocation.createFromBitmap(mRS, bitmap);
-        mImg2Alloc.set_img_alloc(imgAlloc);
-        // Float input Allocation.
-        Allocation result = Allocation.createTyped(mRS, Type.createXY(mRS, Element.F32(mRS), height * width, 3));
-        // convert the bitmap to 3 * (h * w) float Allocation;
-        mImg2Alloc.forEach_img2alloc(result);
+    // Count the inference, start its recording and bind the plan of its dimensions.
+    private ImagePlan startInference(int height, int width) {
+        mInferences++;
+        boolean timing = mTimingInterval > 0 && mInferences % mTimingInterval == 0;
+        if (timing != mTiming) {
+            setTiming(timing);
+        }
+        if (mRecorder != null) {
+            mRecorder.startInference();
+        }
+        AllocationTracker tracker = AllocationTracker.get();
+        if (tracker != null) {
+            tracker.startInference(this);
+        }
+        if (mTracer != null) {
+            mTracer.begin("inference", "model", -1, TraceRecorder.shape(3, height, width));
+        }
+        return bindPlan(height, width);
+    }
+
+    // Run the neural net on the float input of the plan, into its RGB output.
+    private Allocation runNet(ImagePlan plan) {
+        int height = plan.height;
+        int width = plan.width;
+        Allocation result = plan.inputAlloc;
 
         // Actual computation;
         // 1st Convolution layer.
@@ -201,32 +404,22 @@ public class FastStyleModelTiled {
         // 5th Batch Normalization.
         mBatchNormLayer[4].process(result);
 
-        // 3rd Deconvolution layer.
-        result = mDeconvLayer[2].process(result, mDeconvLayer[1].outH, mDeconvLayer[1].outW);
-
-        // Convert floating point result to RGB image.
-        mImg2Alloc.set_nn_alloc(result);
-        Allocation outAlloc = Allocation.createFromBitmap(mRS, outImg);
-        mImg2Alloc.forEach_alloc2img(outAlloc);
-        return outAlloc;
+        // 3rd Deconvolution layer, fused with the conversion of its float output
+        // to the RGB image.
+        mDeconvLayer[2].processToImage(result, mDeconvLayer[1].outH, mDeconvLayer[1].outW, plan.outAlloc);
+        if (mTracer != null) {
+            mRS.finish();
+            mTracer.end();
+        }
+        return plan.outAlloc;
     }
 
     public Bitmap processImage(Bitmap bitmap) {
-        ScriptC_network script = new ScriptC_network(mRS);
-
-        int numElements = 100;
-        Element floatElement = Element.I32(mRS);
-        Type arrayType = Type.createX(mRS, floatElement,  numElements);
-        Allocation inputAlloc = Allocation.createTyped(mRS, arrayType);
-        Allocation outputAlloc = Allocation.createTyped(mRS, arrayType);
-
-        script.forEach_mapper(inputAlloc, outputAlloc);
-
-        int[] output = new int[numElements];
-        outputAlloc.copyTo(output);
-        Log.i(TAG, output[0] + " " + output[99]);
-
+        return processImage(bitmap, MAX_IMG_SIZE);
+    }
 
+    // Process the center size x size square of the bitmap.
+    public Bitmap processImage(Bitmap bitmap, int size) {
         if (!mLoaded) {
             try {
                 loadModel();
@@ -238,36 +431,116 @@ public class FastStyleModelTiled {
         int width = bitmap.getWidth();
 
         // Crop the image.
-        Bitmap outImgBig = Bitmap.createBitmap(bitmap, (width - MAX_IMG_SIZE) / 2,
-                (height - MAX_IMG_SIZE) / 2, MAX_IMG_SIZE, MAX_IMG_SIZE);
+        Bitmap outImgBig = Bitmap.createBitmap(bitmap, (width - size) / 2,
+                (height - size) / 2, size, size);
         // Process the cropped image through the neural net.
+        long start = System.nanoTime();
         Allocation outImgBigAlloc = processImgChunk(outImgBig);
 
-        // Blur the output image a bit.
-        Allocation blurredAlloc = Allocation.createFromBitmap(mRS, outImgBig);
-        ScriptIntrinsicBlur mBlur = ScriptIntrinsicBlur.create(mRS, Element.U8_4(mRS));
-        mBlur.setInput(outImgBigAlloc);
-        mBlur.setRadius(1.5f);
-        mBlur.forEach(blurredAlloc);
-        blurredAlloc.copyTo(outImgBig);
-
-        // outImgBigAlloc.copyTo(outImgBig);
-        ScriptIntrinsicConvolve3x3 convolution = ScriptIntrinsicConvolve3x3.create(mRS, Element.U8_4(mRS));
-        float[] matrix_sharpen =
-                        { 0, -1, 0,
-                         -1, 5, -1,
-                          0, -1, 0};
-        convolution.setInput(blurredAlloc);
-        convolution.setCoefficients(matrix_sharpen);
-        convolution.forEach(outImgBigAlloc);
-        outImgBigAlloc.copyTo(outImgBig);
+        // Blur and sharpen the output image.
+        mPostFilter.process(outImgBigAlloc, outImgBig);
+        recordInference(start);
 
         logBenchmarkResult();
         return outImgBig;
     }
 
+    /*
+       Stylize the center size x size square of the bitmap scaled so that its shorter
+       side is size, i.e. the crop of MainActivity and StylePipeline, without the
+       scaled and the cropped bitmaps: the source is copied to an Allocation as is,
+       and the ingest kernel scales, crops and converts it to the float input of the
+       net in one pass. Not post-filtered.
+     */
+    public Bitmap stylizeCenter(Bitmap source, int size) {
+        int srcH = source.getHeight();
+        int srcW = source.getWidth();
+        CenterCrop crop = new CenterCrop(srcH, srcW, size);
+
+        long start = System.nanoTime();
+        SourcePlan sourcePlan = mSourcePlans.get(srcH, srcW);
+        if (sourcePlan == null) {
+            sourcePlan = new SourcePlan();
+            sourcePlan.srcAlloc = AllocationTracker.createTyped(mRS,
+                    Type.createXY(mRS, Element.U8_4(mRS), srcW, srcH), "model", "srcAlloc");
+            mSourcePlans.put(srcH, srcW, sourcePlan);
+        }
+        sourcePlan.srcAlloc.copyFrom(source);
+
+        ImagePlan plan = startInference(size, size);
+        ingest(plan, sourcePlan.srcAlloc, srcH, srcW, crop.scaledH, crop.scaledW,
+                crop.cropY, crop.cropX);
+        Allocation outAlloc = runNet(plan);
+        Bitmap result = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        outAlloc.copyTo(result);
+        recordInference(start);
+
+        logBenchmarkResult();
+        return result;
+    }
+
+    /*
+       Run the neural net alone on the whole bitmap, without cropping nor post-filtering.
+       Used by StylePipeline, which post-filters on another thread.
+     */
+    public Bitmap stylize(Bitmap bitmap) {
+        Bitmap result = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(), Bitmap.Config.ARGB_8888);
+        stylize(bitmap, result);
+        return result;
+    }
+
+    // Same as above into an ARGB_8888 bitmap of the same dimensions, e.g. a buffer
+    // recycled between the frames of a stream: nothing is allocated once the plan
+    // of the resolution is built.
+    public void stylize(Bitmap bitmap, Bitmap output) {
+        long start = System.nanoTime();
+        Allocation outAlloc = processImgChunk(bitmap);
+        outAlloc.copyTo(output);
+        recordInference(start);
+
+        logBenchmarkResult();
+    }
+
+    public RenderScript getRenderScript() {
+        return mRS;
+    }
+
+    // Record the end-to-end time of the inference, once its output is copied back:
+    // the copy has waited for all the kernels, timed or not.
+    private void recordInference(long start) {
+        if (mRecorder != null) {
+            mRecorder.record("model", mTiming ? "inference_timed" : "inference",
+                    System.nanoTime() - start, 0, 0);
+        }
+        AllocationTracker tracker = AllocationTracker.get();
+        if (tracker != null) {
+            tracker.endInference(this);
+        }
+    }
+
+    /*
+       Destroy the Allocations of the model, which can not be used anymore.
+       The contexts sharing its weights must be destroyed first.
+     */
+    public void destroy() {
+        mPlans.clear();
+        mSourcePlans.clear();
+        mBoundPlan = null;
+        for (int i = 0; i < mConvLayer.length; i++) {
+            mConvLayer[i].destroy();
+        }
+        mResidualLayer.destroy();
+        for (int i = 0; i < mDeconvLayer.length; i++) {
+            mDeconvLayer[i].destroy();
+        }
+        for (int i = 0; i < mBatchNormLayer.length; i++) {
+            mBatchNormLayer[i].destroy();
+        }
+        mPostFilter.destroy();
+    }
+
     public void logBenchmarkResult() {
-        if (LOG_TIME) {
+        if (mTiming) {
             BenchmarkResult result = new BenchmarkResult();
             for (Convolution2DTiled aMConvLayer : mConvLayer) {
                 aMConvLayer.getBenchmark(result);
@@ -284,4 +557,20 @@ public class FastStyleModelTiled {
                     ", normalize Time: " + result.normalizeTime);
         }
     }
+
+    /*
+       Roofline report of the kernels recorded so far for height x width inferences,
+       as CSV. The peak of the device is measured on the first call, which takes a
+       fraction of a second.
+     */
+    public String getRooflineReport(int height, int width) {
+        if (mRecorder == null) {
+            throw new IllegalStateException("No recorder set");
+        }
+        if (mPeak == null) {
+            mPeak = RooflineReport.Peak.measure(mRS);
+            Log.v(TAG, mPeak.toString());
+        }
+        return RooflineReport.fastStyle(height, width).toCsv(mRecorder, mPeak);
+    }
 }
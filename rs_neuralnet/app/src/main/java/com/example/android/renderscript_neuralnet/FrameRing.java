@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+   Lock-free single-producer, single-consumer ring of frames which drops the oldest.
+
+   The producer never waits: when the ring is full, offering a frame overwrites the
+   oldest one and hands it back, so its buffer can be reused. The consumer takes the
+   freshest frame and hands back the older ones, which are stale by then. Every slot
+   is swapped atomically, so each frame is owned either by the ring, the producer or
+   the consumer, never two of them, without any lock.
+*/
+public class FrameRing<T> {
+    private final AtomicReferenceArray<T> mSlots;
+    private final int mCapacity;
+    // Number of frames offered so far, written by the producer only.
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    public FrameRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mCapacity = capacity;
+        mSlots = new AtomicReferenceArray<>(capacity);
+    }
+
+    /*
+       Producer side: add a frame. Returns the frame it overwrote, which the consumer
+       never saw and the producer may recycle, or null.
+     */
+    public T offer(T frame) {
+        long head = mHead.get();
+        T old = mSlots.getAndSet((int) (head % mCapacity), frame);
+        mHead.lazySet(head + 1);
+        if (old != null) {
+            mDropped.incrementAndGet();
+        }
+        return old;
+    }
+
+    /*
+       Consumer side: take the freshest frame, or null if there is none.
+       The older frames still in the ring are removed and added to stale, so the
+       caller can recycle them. A frame offered while the ring is scanned may land
+       in either list, or stay for the next call.
+     */
+    public T pollLatest(List<T> stale) {
+        long head = mHead.get();
+        T latest = null;
+        for (long i = head - 1; i >= 0 && i >= head - mCapacity; i--) {
+            T frame = mSlots.getAndSet((int) (i % mCapacity), null);
+            if (frame == null) {
+                continue;
+            }
+            if (latest == null) {
+                latest = frame;
+            } else {
+                stale.add(frame);
+                mDropped.incrementAndGet();
+            }
+        }
+        return latest;
+    }
+
+    // Number of frames dropped, overwritten or skipped, since the ring was created.
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+   Live stylization of a stream of frames, e.g. a camera preview.
+
+   The producer (the camera callback, or an ImageSequenceSource) fills an input
+   frame obtained from obtainFrame and submits it. The frames wait in a FrameRing:
+   when the net is slower than the source, the stale frames are dropped and the
+   stylization thread always runs on the freshest one. Each result is handed to
+   the listener in an output bitmap, which the listener gives back with
+   releaseOutput once it is displayed.
+
+   The input and output bitmaps are recycled between the frames, and the model
+   reuses the Allocations of its plan, so nothing is allocated per frame once the
+   buffers of the first frames exist.
+*/
+public class FrameStreamer {
+    private static final String TAG = "FrameStreamer";
+
+    public interface Listener {
+        // Called on the stylization thread. Give the output back with releaseOutput.
+        void onFrameStylized(Bitmap output, long latencyNanos);
+    }
+
+    private final FastStyleModelTiled mModel;
+    private final int mWidth, mHeight;
+    private final Listener mListener;
+
+    private final FrameRing<Frame> mRing;
+    // Recycled input frames and output bitmaps.
+    private final ConcurrentLinkedQueue<Frame> mFreeFrames = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Bitmap> mFreeOutputs = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean mRunning = false;
+    private volatile Thread mThread;
+    private long mStylized = 0;
+
+    // An input frame, with the time it was submitted.
+    public static class Frame {
+        public final Bitmap bitmap;
+        long submitted;
+
+        Frame(Bitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+    }
+
+    // Frames of width x height, 2 of them kept at most: the freshest and the next.
+    public FrameStreamer(FastStyleModelTiled model, int width, int height, Listener listener) {
+        this(model, width, height, 2, listener);
+    }
+
+    public FrameStreamer(FastStyleModelTiled model, int width, int height, int capacity, Listener listener) {
+        mModel = model;
+        mWidth = width;
+        mHeight = height;
+        mListener = listener;
+        mRing = new FrameRing<>(capacity);
+    }
+
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stylizeFrames();
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    // Stop the stylization thread, once the frame in progress is done.
+    public synchronized void stop() throws InterruptedException {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        LockSupport.unpark(mThread);
+        mThread.join();
+        mThread = null;
+    }
+
+    // Producer side: a frame to fill, recycled if possible.
+    public Frame obtainFrame() {
+        Frame frame = mFreeFrames.poll();
+        if (frame == null) {
+            frame = new Frame(Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888));
+        }
+        return frame;
+    }
+
+    // Producer side: submit a filled frame. Never blocks.
+    public void submitFrame(Frame frame) {
+        frame.submitted = System.nanoTime();
+        Frame dropped = mRing.offer(frame);
+        if (dropped != null) {
+            mFreeFrames.add(dropped);
+        }
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    // Give back an output bitmap received by the listener.
+    public void releaseOutput(Bitmap output) {
+        mFreeOutputs.add(output);
+    }
+
+    private void stylizeFrames() {
+        List<Frame> stale = new ArrayList<>();
+        long lastSubmitted = Long.MIN_VALUE;
+        while (mRunning) {
+            Frame frame = mRing.pollLatest(stale);
+            mFreeFrames.addAll(stale);
+            stale.clear();
+            if (frame == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            // A frame overtaken while the ring was scanned, never go back in time.
+            if (frame.submitted < lastSubmitted) {
+                mFreeFrames.add(frame);
+                continue;
+            }
+            lastSubmitted = frame.submitted;
+
+            Bitmap output = mFreeOutputs.poll();
+            if (output == null) {
+                output = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+            }
+            try {
+                mModel.stylize(frame.bitmap, output);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to stylize a frame", e);
+                mFreeOutputs.add(output);
+                mFreeFrames.add(frame);
+                continue;
+            }
+            long latency = System.nanoTime() - frame.submitted;
+            mFreeFrames.add(frame);
+            mStylized++;
+            mListener.onFrameStylized(output, latency);
+        }
+    }
+
+    public long getDroppedFrames() {
+        return mRing.getDropped();
+    }
+
+    // Number of frames stylized, read from the listener or after stop.
+    public long getStylizedFrames() {
+        return mStylized;
+    }
+}
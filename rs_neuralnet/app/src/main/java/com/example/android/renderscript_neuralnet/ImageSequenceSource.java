@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+   Stand-in for the camera: plays a sequence of images into a FrameStreamer at a
+   fixed frame rate, looping over them, on its own thread. The images are decoded
+   and scaled to the frame size once, then copied into the recycled frames.
+*/
+public class ImageSequenceSource {
+    private final FrameStreamer mStreamer;
+    private final List<Bitmap> mImages = new ArrayList<>();
+    private final int mWidth, mHeight;
+    private final long mFrameNanos;
+
+    private volatile boolean mRunning = false;
+    private Thread mThread;
+    private long mSubmitted = 0;
+
+    public ImageSequenceSource(FrameStreamer streamer, int width, int height, float fps) {
+        mStreamer = streamer;
+        mWidth = width;
+        mHeight = height;
+        mFrameNanos = (long) (1e9 / fps);
+    }
+
+    public void addImage(Bitmap image) {
+        mImages.add(Bitmap.createScaledBitmap(image, mWidth, mHeight, true));
+    }
+
+    // Add the images of the directory, in the order of their names.
+    public void addDirectory(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Not a directory: " + dir);
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            Bitmap image = BitmapFactory.decodeFile(file.getPath());
+            if (image != null) {
+                addImage(image);
+            }
+        }
+    }
+
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        if (mImages.isEmpty()) {
+            throw new IllegalStateException("No image in the sequence");
+        }
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                play();
+            }
+        }, "ImageSequenceSource");
+        mThread.start();
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mThread.interrupt();
+        mThread.join();
+        mThread = null;
+    }
+
+    private void play() {
+        int[] pixels = new int[mWidth * mHeight];
+        long next = System.nanoTime();
+        int index = 0;
+        while (mRunning) {
+            Bitmap image = mImages.get(index);
+            index = (index + 1) % mImages.size();
+
+            FrameStreamer.Frame frame = mStreamer.obtainFrame();
+            image.getPixels(pixels, 0, mWidth, 0, 0, mWidth, mHeight);
+            frame.bitmap.setPixels(pixels, 0, mWidth, 0, 0, mWidth, mHeight);
+            mStreamer.submitFrame(frame);
+            mSubmitted++;
+
+            // Keep the frame rate, whatever the time spent above.
+            next += mFrameNanos;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            } else {
+                next = System.nanoTime();
+            }
+        }
+    }
+
+    // Number of frames submitted, read after stop.
+    public long getSubmittedFrames() {
+        return mSubmitted;
+    }
+}
@@ -42,9 +42,11 @@ import android.widget.SeekBar.OnSeekBarChangeListener;
 
 import com.android.example.renderscript_neuralnet.R;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MainActivity extends Activity {
     private static final String TAG = "RS NeuralNet";
@@ -52,6 +54,8 @@ public class MainActivity extends Activity {
     private static final int PICK_FROM_CAMERA = 1;
     private static final int PICK_FROM_FILE = 2;
     private static int IMG_SIZE = 256;
+    // Size of the quick preview published before the full resolution result.
+    private static final int PREVIEW_SIZE = 128;
 
     private final int NUM_BITMAPS = 3;
     RenderScriptTask currentTask = null;
@@ -64,6 +68,12 @@ public class MainActivity extends Activity {
     // TODO Bonus: Replace FastStyleModel with FastStyleModelTiled and see the perf diff.
     private FastStyleModel mFSNN;
     private boolean IMG_LOADED = false;
+    // The style selected by the user, loaded by the next NeuralNetTask.
+    private String mModelName = null;
+    // The task running the neural net, cancelled when the style or the image changes.
+    private NeuralNetTask mNeuralNetTask = null;
+    // Stylized images, so that re-styling an image skips the neural net.
+    private StyleResultCache mResultCache;
 
     private AlertDialog getImgDialog() {
         final String[] items = new String[]{"Capture from Camera", "From SD Card", "Use Default"};
@@ -86,6 +96,7 @@ public class MainActivity extends Activity {
 
                     startActivityForResult(Intent.createChooser(intent, "Complete action using"), PICK_FROM_FILE);
                 } else {
+                    cancelNeuralNet();
                     mBitmapIn = loadBitmap(R.drawable.data2);
 
                     mBitmapInOriginal = mBitmapIn.copy(mBitmapIn.getConfig(), true);
@@ -178,16 +189,10 @@ public class MainActivity extends Activity {
                         modelName = "composition";
                         break;
                 }
-                if (mFSNN.mModel == null || !mFSNN.mModel.equals(modelName)) {
-                    try {
-                        long time = System.currentTimeMillis();
-                        mFSNN.loadModel(modelName);
-                        mFSNN.mModel = modelName;
-                        time = System.currentTimeMillis() - time;
-                        Log.v(TAG, "loaded model, using time: " + time);
-                    } catch (IOException e) {
-
-                    }
+                if (!modelName.equals(mModelName)) {
+                    // The model is loaded by the next NeuralNetTask, off the UI thread.
+                    cancelNeuralNet();
+                    mModelName = modelName;
                 }
                 dialog.cancel();
             }
@@ -225,6 +230,8 @@ public class MainActivity extends Activity {
         super.onCreate(savedInstanceState);
 
         setContentView(R.layout.main_layout);
+        mResultCache = new StyleResultCache(new File(getCacheDir(), "stylized"),
+                16 * 1024 * 1024, 64 * 1024 * 1024);
         mImageView = (ImageView) findViewById(R.id.imageView);
         // Hide the progress bar.
         findViewById(R.id.loadingPanel).setVisibility(View.GONE);
@@ -260,8 +267,9 @@ public class MainActivity extends Activity {
                 * Start processing the Neural Net.
                 */
                 findViewById(R.id.loadingPanel).setVisibility(View.VISIBLE);
-                NeuralNetTask nnT = new NeuralNetTask();
-                nnT.execute(getApplicationContext());
+                cancelNeuralNet();
+                mNeuralNetTask = new NeuralNetTask(mModelName);
+                mNeuralNetTask.execute(getApplicationContext());
             }
         });
 
@@ -299,6 +307,19 @@ public class MainActivity extends Activity {
         currentTask.execute(f);
     }
 
+    /*
+      Cancel the running NeuralNetTask, so that neither its preview nor its
+      full resolution result replaces the current image.
+     */
+    private void cancelNeuralNet() {
+        if (mNeuralNetTask != null) {
+            mNeuralNetTask.stopNet.set(true);
+            mNeuralNetTask.cancel(false);
+            mNeuralNetTask = null;
+            findViewById(R.id.loadingPanel).setVisibility(View.GONE);
+        }
+    }
+
     /*
     Helper to load Bitmap from resource
      */
@@ -312,6 +333,7 @@ public class MainActivity extends Activity {
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (resultCode != RESULT_OK) return;
 
+        cancelNeuralNet();
         Bitmap bitmap = null;
 
         if (requestCode == PICK_FROM_FILE) {
@@ -362,52 +384,106 @@ public class MainActivity extends Activity {
         updateImage(0.0f);
     }
 
-    private class NeuralNetTask extends AsyncTask<Context, Integer, Integer> {
-        private void tryFSNN() {
-            int height = mBitmapIn.getHeight();
-            int width = mBitmapIn.getWidth();
+    /*
+      Run the neural net progressively: a low resolution result is computed first and
+      published right away, then the full resolution result replaces it.
+      A cancelled task stops its run at the next stage of the net, so that the next
+      task, queued behind it, starts right away, and it never publishes anything.
+     */
+    private class NeuralNetTask extends AsyncTask<Context, Bitmap, Bitmap> {
+        private final String modelName;
+        // Set with the cancellation of the task, stops the model.
+        final AtomicBoolean stopNet = new AtomicBoolean();
+        private Bitmap original;
+
+        NeuralNetTask(String modelName) {
+            this.modelName = modelName;
+        }
 
-            float xyRatio = (float) width / height;
-            if (xyRatio > 1) {
-                height = IMG_SIZE;
-                width = (int) (IMG_SIZE * xyRatio);
-            } else {
-                width = IMG_SIZE;
-                height = (int) (IMG_SIZE / xyRatio);
+        private Bitmap tryFSNN() {
+            CenterCrop crop = new CenterCrop(mBitmapIn.getHeight(), mBitmapIn.getWidth(), IMG_SIZE);
+            Bitmap testBitmap = Bitmap.createScaledBitmap(mBitmapIn, crop.scaledW, crop.scaledH, false);
+            original = Bitmap.createBitmap(testBitmap, crop.cropX, crop.cropY, IMG_SIZE, IMG_SIZE);
+
+            String key = StyleResultCache.key(original,
+                    modelName != null ? modelName : FastStyleModel.DEFAULT_MODEL, IMG_SIZE,
+                    StyleResultCache.PRECISION_F32);
+            Bitmap cached = mResultCache.get(key);
+            Log.v(TAG, "result cache: " + mResultCache);
+            if (cached != null) {
+                return cached;
             }
 
-            Bitmap testBitmap = Bitmap.createScaledBitmap(mBitmapIn, width, height, false);
-            mBitmapInOriginal = Bitmap.createBitmap(testBitmap, (width - IMG_SIZE) / 2, (height - IMG_SIZE) / 2, IMG_SIZE, IMG_SIZE);
-
-            if (mFSNN.mModel == null) {
+            if (mFSNN.mModel == null || (modelName != null && !modelName.equals(mFSNN.mModel))) {
                 try {
-                    mFSNN.loadModel();
+                    long time = System.currentTimeMillis();
+                    if (modelName == null) {
+                        mFSNN.loadModel();
+                    } else {
+                        mFSNN.loadModel(modelName);
+                    }
+                    mFSNN.mModel = modelName;
+                    time = System.currentTimeMillis() - time;
+                    Log.v(TAG, "loaded model, using time: " + time);
                 } catch (IOException e) {
                     Log.v("WTF ", e.toString());
                 }
             }
 
+            long start = System.currentTimeMillis();
+            if (IMG_SIZE > PREVIEW_SIZE) {
+                // Quick low resolution pass, scaled back up for display.
+                Bitmap small = Bitmap.createScaledBitmap(original, PREVIEW_SIZE, PREVIEW_SIZE, true);
+                Bitmap preview = mFSNN.processImage(small, PREVIEW_SIZE, stopNet);
+                if (preview == null) {
+                    return null;
+                }
+                publishProgress(Bitmap.createScaledBitmap(preview, IMG_SIZE, IMG_SIZE, true));
+                Log.v(TAG, "processed preview, using time: " + (System.currentTimeMillis() - start));
+            }
+
+            if (isCancelled()) {
+                return null;
+            }
             long time = System.currentTimeMillis();
-            mBitmapIn = mFSNN.processImage(mBitmapInOriginal);
-            time = System.currentTimeMillis() - time;
-            Log.v(TAG, "processed model, using time: " + time);
-            updateImage(0.0f);
+            Bitmap result = mFSNN.processImage(original, IMG_SIZE, stopNet);
+            if (result == null) {
+                return null;
+            }
+            mResultCache.put(key, result);
+            Log.v(TAG, "processed model, using time: " + (System.currentTimeMillis() - time) +
+                    ", total: " + (System.currentTimeMillis() - start));
+            return result;
         }
 
-        protected Integer doInBackground(Context... ctx) {
-            tryFSNN();
-            return 1;
+        protected Bitmap doInBackground(Context... ctx) {
+            return tryFSNN();
         }
 
-        void updateView(Integer result) {
-            if (result != -1) {
-                // Hide the progress bar.
-                findViewById(R.id.loadingPanel).setVisibility(View.GONE);
-            }
+        // Show a result, on the UI thread.
+        private void show(Bitmap result) {
+            mBitmapIn = result;
+            mBitmapInOriginal = original;
+            updateImage(0.0f);
         }
 
-        protected void onPostExecute(Integer result) {
-            updateView(result);
+        protected void onProgressUpdate(Bitmap... preview) {
+            // The image or the style may have changed since the preview was published.
+            if (isCancelled()) return;
+            // The preview is good enough to stop the spinner.
+            findViewById(R.id.loadingPanel).setVisibility(View.GONE);
+            show(preview[0]);
+        }
+
+        protected void onPostExecute(Bitmap result) {
+            if (mNeuralNetTask == this) {
+                mNeuralNetTask = null;
+            }
+            // Hide the progress bar.
+            findViewById(R.id.loadingPanel).setVisibility(View.GONE);
+            if (result != null) {
+                show(result);
+            }
         }
     }
 
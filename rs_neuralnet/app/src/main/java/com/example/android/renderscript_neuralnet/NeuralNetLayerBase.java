@@ -30,13 +30,23 @@ import java.nio.ByteOrder;
  */
 public abstract class NeuralNetLayerBase {
     public static final String TAG = "FastStyleModel";
-    public static final boolean LOG_TIME = true;
 
     public InputStream mInputStream;
     public Context mContext;
     public RenderScript mRS;
     public ScriptIntrinsicBLAS mBlas;
 
+    // Name of the layer in the benchmark reports, e.g. "c1" or "r3".
+    public String mName = "";
+    // Records the time of each kernel when set.
+    public BenchmarkRecorder mRecorder;
+    // Records the timeline of the layer when set.
+    public TraceRecorder mTracer;
+    // Whether the kernels are timed, set by the model for the inferences it samples.
+    // Timing a kernel waits for it to finish, which serializes the kernels.
+    protected boolean mTiming = false;
+
+    // Time spent in each kind of kernel since the last getBenchmark, in nanoseconds.
     public long sgemmTime = 0;
     public long normalizeTime = 0;
     public long im2colTime = 0;
@@ -44,14 +54,46 @@ public abstract class NeuralNetLayerBase {
     public long betaTime = 0;
     public long conv2dTime = 0;
 
+    // Set once the weights of the layer are shared with another execution context.
+    // Shared weights are immutable: no model can be loaded into them anymore.
+    protected boolean mWeightsShared = false;
+    // False for the execution contexts created with the sharing constructor:
+    // the weight Allocations are destroyed by the layer which created them.
+    protected boolean mOwnsWeights = true;
+
     public NeuralNetLayerBase(Context ctx, RenderScript rs) {
         mContext = ctx;
         mRS = rs;
         mBlas = ScriptIntrinsicBLAS.create(mRS);
     }
 
+    // Create another execution context of the given layer, on the same RenderScript context.
+    // The subclasses share the weight Allocations and create their own kernels.
+    public NeuralNetLayerBase(NeuralNetLayerBase shared) {
+        this(shared.mContext, shared.mRS);
+        shared.mWeightsShared = true;
+        mWeightsShared = true;
+        mOwnsWeights = false;
+    }
+
+    protected void checkWeightsWritable() {
+        if (mWeightsShared) {
+            throw new IllegalStateException("Weights are shared with another execution context");
+        }
+    }
+
     abstract public void loadModel(String path) throws IOException;
 
+    // Destroy the Allocations of the layer, which can not be used anymore.
+    public void destroy() {
+    }
+
+    // The owner of the Allocations of the layer in the AllocationTracker reports.
+    @Override
+    public String toString() {
+        return mName.isEmpty() ? getClass().getSimpleName() : mName;
+    }
+
     public ByteBuffer readInput(InputStream inputStream) throws IOException {
         // this dynamically extends to take the bytes you read
         ByteArrayOutputStream byteBuffer = new ByteArrayOutputStream();
@@ -70,13 +112,73 @@ public abstract class NeuralNetLayerBase {
         return ByteBuffer.wrap(byteBuffer.toByteArray()).order(ByteOrder.nativeOrder());
     }
 
+    // Name the layer in the benchmark reports and set the recorder of its kernels, may be null.
+    public void setRecorder(String name, BenchmarkRecorder recorder) {
+        mName = name;
+        mRecorder = recorder;
+    }
+
+    public void setTiming(boolean timing) {
+        mTiming = timing;
+    }
+
+    // Record the timeline of the layer to the tracer, or stop tracing if null.
+    public void setTracer(TraceRecorder tracer) {
+        mTracer = tracer;
+    }
+
+    // Begin a trace event of the layer, tile is -1 for events not bound to a tile.
+    protected void traceBegin(String name, int tile, String shape) {
+        traceBegin(mName, name, tile, shape);
+    }
+
+    // Same as above for a sub-layer, e.g. "r3.c2" for a convolution of a residual block.
+    protected void traceBegin(String layer, String name, int tile, String shape) {
+        if (mTracer != null) {
+            mTracer.begin(name, layer, tile, shape);
+        }
+    }
+
+    // End the last trace event, once the kernels launched so far have finished.
+    protected void traceEnd() {
+        if (mTracer != null) {
+            mRS.finish();
+            mTracer.end();
+        }
+    }
+
+    // Start timing a kernel launch.
+    protected long startTimer() {
+        return System.nanoTime();
+    }
+
+    // Wait for the kernel launched since startTimer, record it under the layer name
+    // and return its time in nanoseconds, or 0 when not timing.
+    protected long stopTimer(long start, String kernel, long flops, long bytes) {
+        return stopTimer(start, mName, kernel, flops, bytes);
+    }
+
+    // Same as above for a sub-layer, e.g. "r3.c2" for a convolution of a residual block.
+    protected long stopTimer(long start, String layer, String kernel, long flops, long bytes) {
+        if (!mTiming) {
+            return 0;
+        }
+        mRS.finish();
+        long time = System.nanoTime() - start;
+        if (mRecorder != null) {
+            mRecorder.record(layer, kernel, time, flops, bytes);
+        }
+        return time;
+    }
+
+    // Add the time spent since the last call to the result, in milliseconds.
     public void getBenchmark(BenchmarkResult result) {
-        result.sgemmTime += sgemmTime;
-        result.normalizeTime += normalizeTime;
-        result.im2colTime += im2colTime;
-        result.col2imTime += col2imTime;
-        result.betaTime += betaTime;
-        result.conv2dTime += conv2dTime;
+        result.sgemmTime += sgemmTime / 1000000;
+        result.normalizeTime += normalizeTime / 1000000;
+        result.im2colTime += im2colTime / 1000000;
+        result.col2imTime += col2imTime / 1000000;
+        result.betaTime += betaTime / 1000000;
+        result.conv2dTime += conv2dTime / 1000000;
 
         sgemmTime = 0;
         normalizeTime = 0;
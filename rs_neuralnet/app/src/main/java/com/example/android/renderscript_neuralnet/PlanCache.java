@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+    Least-recently-used cache of shape-specialized execution plans.
+
+    A plan holds everything a layer needs to run on one input resolution: the output
+    dimensions, the intermediate Allocations and the kernel parameters. Plans are keyed
+    by the input dimensions. When the cache is full, the least recently used plan is
+    destroyed so that its Allocations are released.
+*/
+public class PlanCache<P extends PlanCache.Plan> {
+    // Enough for the low and the high resolution of the app.
+    public static final int DEFAULT_CAPACITY = 2;
+
+    public interface Plan {
+        // Release the resources held by the plan.
+        void destroy();
+    }
+
+    private final LinkedHashMap<Long, P> mPlans;
+
+    public PlanCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PlanCache(final int capacity) {
+        // Access-ordered map, so the eldest entry is the least recently used plan.
+        mPlans = new LinkedHashMap<Long, P>(capacity + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, P> eldest) {
+                if (size() > capacity) {
+                    eldest.getValue().destroy();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // Returns the plan for the given input dimensions, or null if it has not been built.
+    public P get(int height, int width) {
+        return mPlans.get(key(height, width));
+    }
+
+    public void put(int height, int width, P plan) {
+        P old = mPlans.put(key(height, width), plan);
+        if (old != null && old != plan) {
+            old.destroy();
+        }
+    }
+
+    // Destroy all the cached plans.
+    public void clear() {
+        for (P plan : mPlans.values()) {
+            plan.destroy();
+        }
+        mPlans.clear();
+    }
+
+    public int size() {
+        return mPlans.size();
+    }
+
+    private static long key(int height, int width) {
+        return ((long) height << 32) | (width & 0xffffffffL);
+    }
+}
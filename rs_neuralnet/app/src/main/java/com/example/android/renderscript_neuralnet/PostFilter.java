@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet;
+
+import android.graphics.Bitmap;
+import android.support.v8.renderscript.Allocation;
+import android.support.v8.renderscript.Element;
+import android.support.v8.renderscript.RenderScript;
+import android.support.v8.renderscript.ScriptIntrinsicBlur;
+import android.support.v8.renderscript.ScriptIntrinsicConvolve3x3;
+import android.support.v8.renderscript.Type;
+import android.util.Log;
+
+/*
+   Post-processing of the neural net output: blur the image a bit, then sharpen it,
+   or only blur it. The filter owns its kernels and Allocations, so it can run on
+   another thread than the neural net that produced its input.
+
+   There are two ways to apply it:
+     INTRINSICS : ScriptIntrinsicBlur, then ScriptIntrinsicConvolve3x3 into the
+                  output; about 15 taps per pixel over two passes, through a blurred
+                  image in between.
+     FUSED      : both filters are linear, so the filter kernel of postfilter.rs is
+                  the Gaussian of the blur convolved with the sharpen matrix,
+                  precomputed by createKernel, and applied in one pass; 49 taps per
+                  pixel, but no image in between.
+   Which one is faster depends on the device: the intrinsics are vectorized, the
+   fused kernel saves a pass over the image. Unless a mode is set, both are timed on
+   the first image of each resolution, and the faster one is kept for it.
+
+   The filter is not fused with the output conversion of the net, deconvolveToImage:
+   a filtered pixel needs the converted pixels around it, and computing those in
+   the same kernel would run the gather of the last deconvolution once per tap.
+*/
+public class PostFilter {
+    private static final String TAG = "PostFilter";
+
+    public enum Mode {
+        INTRINSICS,
+        FUSED,
+    }
+
+    // Radius of the blur, as set to ScriptIntrinsicBlur.
+    public static final float BLUR_RADIUS = 1.5f;
+    // Largest size of the combined kernel: the 5 taps of the blur widened by the
+    // 3 x 3 sharpen. Bounds the coeffs array of postfilter.rs.
+    public static final int MAX_KERNEL_SIZE = 7;
+
+    public static final float[] SHARPEN =
+            { 0, -1, 0,
+             -1, 5, -1,
+              0, -1, 0};
+
+    private RenderScript mRS;
+    // The 3 x 3 sharpen matrix, or null to only blur.
+    private final float[] mSharpen;
+    private ScriptIntrinsicBlur mBlur;
+    private ScriptIntrinsicConvolve3x3 mSharpenFilter;
+    private ScriptC_postfilter mFilter;
+    // The mode of all the resolutions, or null to time both.
+    private Mode mMode;
+
+    // RGB Allocations specialized for one image resolution.
+    private class FilterPlan implements PlanCache.Plan {
+        int height, width;
+        Mode mode;
+        // The unfiltered image, when the input is a Bitmap.
+        Allocation inAlloc;
+        // The blurred image of INTRINSICS, when it sharpens.
+        Allocation blurredAlloc;
+        Allocation outAlloc;
+
+        public void destroy() {
+            AllocationTracker.destroy(inAlloc);
+            if (blurredAlloc != null) {
+                AllocationTracker.destroy(blurredAlloc);
+            }
+            AllocationTracker.destroy(outAlloc);
+        }
+    }
+
+    private final PlanCache<FilterPlan> mPlans = new PlanCache<>();
+    // The plan whose dimensions are currently set to the filter kernel.
+    private FilterPlan mBoundPlan;
+
+    // Blur and sharpen.
+    public PostFilter(RenderScript rs) {
+        this(rs, SHARPEN);
+    }
+
+    // Blur, then apply the 3 x 3 sharpen matrix unless it is null.
+    public PostFilter(RenderScript rs, float[] sharpen) {
+        mRS = rs;
+        mSharpen = sharpen;
+        mBlur = ScriptIntrinsicBlur.create(mRS, Element.U8_4(mRS));
+        mBlur.setRadius(BLUR_RADIUS);
+        if (sharpen != null) {
+            mSharpenFilter = ScriptIntrinsicConvolve3x3.create(mRS, Element.U8_4(mRS));
+            mSharpenFilter.setCoefficients(sharpen);
+        }
+        mFilter = new ScriptC_postfilter(mRS);
+        float[] kernel = createKernel(BLUR_RADIUS, sharpen);
+        int size = (int) Math.round(Math.sqrt(kernel.length));
+        float[] coeffs = new float[MAX_KERNEL_SIZE * MAX_KERNEL_SIZE];
+        System.arraycopy(kernel, 0, coeffs, 0, kernel.length);
+        mFilter.set_coeffs(coeffs);
+        mFilter.set_radius(size / 2);
+    }
+
+    // Use the mode for all the resolutions, or time both again if null.
+    public void setMode(Mode mode) {
+        mMode = mode;
+        mPlans.clear();
+        mBoundPlan = null;
+    }
+
+    /*
+       The square kernel, row-major, of the blur of the radius followed by the 3 x 3
+       sharpen, or of the blur only if sharpen is null.
+       The blur is the one of ScriptIntrinsicBlur: separable, with the Gaussian
+       weights of sigma = 0.4 * radius + 0.6 at the integer offsets up to
+       (int) (ceil(radius) + 0.5), normalized to sum to 1.
+     */
+    static float[] createKernel(float radius, float[] sharpen) {
+        int blurRadius = (int) (Math.ceil(radius) + 0.5);
+        int taps = 2 * blurRadius + 1;
+        int size = sharpen == null ? taps : taps + 2;
+        if (size > MAX_KERNEL_SIZE) {
+            throw new IllegalArgumentException("Unsupported blur radius " + radius);
+        }
+        double sigma = 0.4 * radius + 0.6;
+        double[] gaussian = new double[taps];
+        double sum = 0;
+        for (int i = 0; i < taps; i++) {
+            int r = i - blurRadius;
+            gaussian[i] = Math.exp(-r * r / (2 * sigma * sigma));
+            sum += gaussian[i];
+        }
+        for (int i = 0; i < taps; i++) {
+            gaussian[i] /= sum;
+        }
+        // The blur only is the blur followed by the identity.
+        if (sharpen == null) {
+            sharpen = new float[]{1};
+        }
+        int sharpenSize = (int) Math.round(Math.sqrt(sharpen.length));
+
+        double[] kernel = new double[size * size];
+        for (int sy = 0; sy < sharpenSize; sy++) {
+            for (int sx = 0; sx < sharpenSize; sx++) {
+                double s = sharpen[sy * sharpenSize + sx];
+                if (s == 0) {
+                    continue;
+                }
+                for (int by = 0; by < taps; by++) {
+                    for (int bx = 0; bx < taps; bx++) {
+                        kernel[(sy + by) * size + sx + bx] += s * gaussian[by] * gaussian[bx];
+                    }
+                }
+            }
+        }
+        float[] coeffs = new float[kernel.length];
+        for (int i = 0; i < kernel.length; i++) {
+            coeffs[i] = (float) kernel[i];
+        }
+        return coeffs;
+    }
+
+    private FilterPlan bindPlan(int height, int width) {
+        FilterPlan plan = mPlans.get(height, width);
+        if (plan == null) {
+            plan = new FilterPlan();
+            plan.height = height;
+            plan.width = width;
+            plan.mode = mMode;
+            Type rgbType = Type.createXY(mRS, Element.U8_4(mRS), width, height);
+            plan.inAlloc = AllocationTracker.createTyped(mRS, rgbType, "postFilter", "inAlloc");
+            if (mSharpen != null) {
+                plan.blurredAlloc = AllocationTracker.createTyped(mRS, rgbType, "postFilter", "blurredAlloc");
+            }
+            plan.outAlloc = AllocationTracker.createTyped(mRS, rgbType, "postFilter", "outAlloc");
+            mPlans.put(height, width, plan);
+        }
+        if (plan != mBoundPlan) {
+            mFilter.set_height(height);
+            mFilter.set_width(width);
+            mBoundPlan = plan;
+        }
+        return plan;
+    }
+
+    // Destroy the Allocations of the filter, which can not be used anymore.
+    public void destroy() {
+        mPlans.clear();
+        mBoundPlan = null;
+    }
+
+    // The mode used for the resolution, null until its first image is filtered.
+    public Mode getMode(int height, int width) {
+        FilterPlan plan = mPlans.get(height, width);
+        return plan == null ? mMode : plan.mode;
+    }
+
+    private void filter(FilterPlan plan, Mode mode, Allocation input) {
+        if (mode == Mode.FUSED) {
+            mFilter.set_in_alloc(input);
+            mFilter.forEach_filter(plan.outAlloc);
+        } else if (mSharpen == null) {
+            mBlur.setInput(input);
+            mBlur.forEach(plan.outAlloc);
+        } else {
+            mBlur.setInput(input);
+            mBlur.forEach(plan.blurredAlloc);
+            mSharpenFilter.setInput(plan.blurredAlloc);
+            mSharpenFilter.forEach(plan.outAlloc);
+        }
+    }
+
+    // Time a mode on the input, after a run to warm it up.
+    private long time(FilterPlan plan, Mode mode, Allocation input) {
+        filter(plan, mode, input);
+        mRS.finish();
+        long start = System.nanoTime();
+        filter(plan, mode, input);
+        mRS.finish();
+        return System.nanoTime() - start;
+    }
+
+    // Filter the RGB Allocation, e.g. the output of the neural net, and copy the
+    // result to the output bitmap.
+    public void process(Allocation input, Bitmap output) {
+        FilterPlan plan = bindPlan(output.getHeight(), output.getWidth());
+        if (plan.mode == null) {
+            long intrinsics = time(plan, Mode.INTRINSICS, input);
+            long fused = time(plan, Mode.FUSED, input);
+            plan.mode = fused < intrinsics ? Mode.FUSED : Mode.INTRINSICS;
+            Log.v(TAG, plan.width + "x" + plan.height + " intrinsics: " + intrinsics / 1000 +
+                    " us, fused: " + fused / 1000 + " us, using " + plan.mode);
+        }
+        filter(plan, plan.mode, input);
+        plan.outAlloc.copyTo(output);
+    }
+
+    // Filter the bitmap in place.
+    public void process(Bitmap bitmap) {
+        FilterPlan plan = bindPlan(bitmap.getHeight(), bitmap.getWidth());
+        plan.inAlloc.copyFrom(bitmap);
+        process(plan.inAlloc, bitmap);
+    }
+}
@@ -74,6 +74,25 @@ public class ResidualBlock extends NeuralNetLayerBase {
         b2.loadModel(path + "/b2");
     }
 
+    @Override
+    public void setRecorder(String name, BenchmarkRecorder recorder) {
+        super.setRecorder(name, recorder);
+        c1.setRecorder(name + ".c1", recorder);
+        c2.setRecorder(name + ".c2", recorder);
+        b1.setRecorder(name + ".b1", recorder);
+        b2.setRecorder(name + ".b2", recorder);
+    }
+
+    @Override
+    public void setTiming(boolean timing) {
+        super.setTiming(timing);
+        c1.setTiming(timing);
+        c2.setTiming(timing);
+        b1.setTiming(timing);
+        b2.setTiming(timing);
+    }
+
+    @Override
     public void getBenchmark(BenchmarkResult result) {
         c1.getBenchmark(result);
         c2.getBenchmark(result);
@@ -81,6 +100,14 @@ public class ResidualBlock extends NeuralNetLayerBase {
         b2.getBenchmark(result);
     }
 
+    @Override
+    public void destroy() {
+        c1.destroy();
+        c2.destroy();
+        b1.destroy();
+        b2.destroy();
+    }
+
     public Allocation process(Allocation input, int height, int width) {
         // 1st convolution.
         Allocation output = c1.process(input, height, width);
@@ -117,12 +117,12 @@ public class ResidualBlockChained extends NeuralNetLayerBase {
         Type.Builder tb = new Type.Builder(mRS, Element.F32(mRS));
         tb.setX(padded_Y_blas).setY(out_channels);
         for (int i = 0; i < mNumBlocks * 2; i++) {
-            W_alloc[i] = Allocation.createTyped(mRS, tb.create());
+            W_alloc[i] = AllocationTracker.createTyped(mRS, tb.create(), this, "W_alloc");
         }
         Type.Builder tbeta = new Type.Builder(mRS, Element.F32(mRS));
         tbeta.setX(out_channels);
         for (int i = 0; i < mNumBlocks * 2; i++) {
-            b_alloc[i] = Allocation.createTyped(mRS, tbeta.create());
+            b_alloc[i] = AllocationTracker.createTyped(mRS, tbeta.create(), this, "b_alloc");
         }
 
 
@@ -140,12 +140,44 @@ public class ResidualBlockChained extends NeuralNetLayerBase {
         Type.Builder tbn = new Type.Builder(mRS, Element.F32(mRS));
         tbn.setX(out_channels);
         for (int i = 0; i < numBlocks * 2; i++) {
-            gamma_alloc[i] = Allocation.createTyped(mRS, tbn.create());
-            beta_alloc[i] = Allocation.createTyped(mRS, tbn.create());
-            avg_mean_alloc[i] = Allocation.createTyped(mRS, tbn.create());
-            avg_var_alloc[i] = Allocation.createTyped(mRS, tbn.create());
+            gamma_alloc[i] = AllocationTracker.createTyped(mRS, tbn.create(), this, "gamma_alloc");
+            beta_alloc[i] = AllocationTracker.createTyped(mRS, tbn.create(), this, "beta_alloc");
+            avg_mean_alloc[i] = AllocationTracker.createTyped(mRS, tbn.create(), this, "avg_mean_alloc");
+            avg_var_alloc[i] = AllocationTracker.createTyped(mRS, tbn.create(), this, "avg_var_alloc");
         }
 
+        createKernel();
+    }
+
+    // Create another execution context of the given layer. The weights are shared,
+    // the kernel and the intermediate Allocations are private to the new layer.
+    public ResidualBlockChained(ResidualBlockChained shared) {
+        super(shared);
+
+        this.in_channels = shared.in_channels;
+        this.out_channels = shared.out_channels;
+        this.ksize = shared.ksize;
+        this.stride = shared.stride;
+        this.pad = shared.pad;
+        this.mNumBlocks = shared.mNumBlocks;
+        this.W = shared.W;
+        this.b = shared.b;
+        this.gamma = shared.gamma;
+        this.beta = shared.beta;
+        this.avg_mean = shared.avg_mean;
+        this.avg_var = shared.avg_var;
+        this.padded_Y_blas = shared.padded_Y_blas;
+        this.W_alloc = shared.W_alloc;
+        this.b_alloc = shared.b_alloc;
+        this.gamma_alloc = shared.gamma_alloc;
+        this.beta_alloc = shared.beta_alloc;
+        this.avg_mean_alloc = shared.avg_mean_alloc;
+        this.avg_var_alloc = shared.avg_var_alloc;
+
+        createKernel();
+    }
+
+    private void createKernel() {
         // Initialize the RS kernels;
         mResidualBlock = new ScriptC_residualblock(mRS);
         mActivation = new ScriptC_activation(mRS);
@@ -160,10 +192,15 @@ public class ResidualBlockChained extends NeuralNetLayerBase {
         mConvovle.set_pad_h(pad);
         mConvovle.set_pad_w(pad);
         mConvovle.set_tile_h(TILE_Y);
+        mConvovle.set_img_channel(in_channels);
+
+        // Set the input variables to batch normalization kernel.
+        rs_BN.set_size(out_channels);
     }
 
     // Load the data from file and transfer to corresponding Allocations.
     public void loadModel(String path) throws IOException {
+        checkWeightsWritable();
         for (int i = 0; i < mNumBlocks; i++) {
             for (int j = 0; j < 2; j++) {
                 // Read all convolution blocks.
@@ -178,10 +215,12 @@ public class ResidualBlockChained extends NeuralNetLayerBase {
                     W_alloc[i * 2 + j].copyFrom(W);
                 } else {
                     // If not, a temp allocation needs to be created.
-                    Allocation input = Allocation.createTyped(mRS,
-                            Type.createXY(mRS, Element.F32(mRS), W_height_input, out_channels));
+                    Allocation input = AllocationTracker.createTyped(mRS,
+                            Type.createXY(mRS, Element.F32(mRS), W_height_input, out_channels), this, "W_temp");
                     input.copyFrom(W);
                     W_alloc[i * 2 + j].copy2DRangeFrom(0, 0, W_height_input, out_channels, input, 0, 0);
+                    // The temp Allocation is only needed for the copy.
+                    AllocationTracker.destroy(input);
                 }
 
                 mInputStream = mContext.getAssets().open(path + "/r" + (i + 1) + "/c" + (j + 1) + "/b", AssetManager.ACCESS_BUFFER);
@@ -218,94 +257,208 @@ public class ResidualBlockChained extends NeuralNetLayerBase {
     }
 
 
-    public Allocation process(Allocation input, int img_h, int img_w) {
-        // Set the input variables to the convolve kernel.
-        mConvovle.set_img_h(img_h);
-        mConvovle.set_img_w(img_w);
-        mConvovle.set_img_channel(in_channels);
+    // Buffers and kernel parameters specialized for one input resolution.
+    private class TilePlan implements PlanCache.Plan {
+        int img_h, img_w;
+        int outH, outW;
+        // Tiling in Y dimension.
+        int out_h_tile, out_w_tile;
+        int nTiles;
+
+        // The ping-pong Allocations holding the complete convolution results.
+        Allocation in_all;
+        Allocation out_all;
+        // The output of the first convolution of a block. The convolutions read their
+        // input in place, so it cannot be overwritten by the second one.
+        Allocation mid_all;
+        // Double-buffered column Allocations: im2col fills one while SGEMM reads the other.
+        Allocation[] col_alloc;
+        Allocation out_alloc;
+
+        public void destroy() {
+            AllocationTracker.destroy(in_all);
+            AllocationTracker.destroy(out_all);
+            AllocationTracker.destroy(mid_all);
+            for (Allocation col : col_alloc) {
+                AllocationTracker.destroy(col);
+            }
+            AllocationTracker.destroy(out_alloc);
+        }
+    }
 
-        // Set the input variables to batch normalization kernel.
-        rs_BN.set_size(out_channels);
+    // Plans for the resolutions processed recently.
+    private final PlanCache<TilePlan> mPlans = new PlanCache<>();
+    // The plan whose parameters are currently set to the convolve kernel.
+    private TilePlan mBoundPlan;
+
+    private TilePlan createPlan(int img_h, int img_w) {
+        TilePlan plan = new TilePlan();
+        plan.img_h = img_h;
+        plan.img_w = img_w;
 
         // Calculate the dimensions of image after convolution.
-        outH = ConvolveUtil.get_conv_outsize(img_h, ksize, stride, pad);
-        outW = ConvolveUtil.get_conv_outsize(img_w, ksize, stride, pad);
-        Log.v("ResidualBlock", "outH: " + outH + " outW: " + outW + " channels: " + in_channels + " " + out_channels);
+        plan.outH = ConvolveUtil.get_conv_outsize(img_h, ksize, stride, pad);
+        plan.outW = ConvolveUtil.get_conv_outsize(img_w, ksize, stride, pad);
+        Log.v("ResidualBlock", "outH: " + plan.outH + " outW: " + plan.outW + " channels: " + in_channels + " " + out_channels);
 
         // Create the Allocations to hold the complete convolution results.
         Type.Builder tb = new Type.Builder(mRS, Element.F32(mRS));
-        tb.setX(outH * outW).setY(out_channels);
-        Allocation out_all = Allocation.createTyped(mRS, tb.create());
-        Allocation in_all = Allocation.createTyped(mRS, tb.create());
-        in_all.copyFrom(input);
-
-        int padded_h = img_h + 2 * pad;
-        int padded_w = img_w + 2 * pad;
-        // Create Allocation to hold the padded image.
-        Allocation img_padded = Allocation.createTyped(mRS,
-                Type.createXY(mRS, Element.F32(mRS), padded_h * padded_w, in_channels));
-        mConvovle.forEach_zero(img_padded, img_padded);
-        mConvovle.set_padded_alloc(img_padded);
-
+        tb.setX(plan.outH * plan.outW).setY(out_channels);
+        plan.out_all = AllocationTracker.createTyped(mRS, tb.create(), this, "out_all");
+        plan.in_all = AllocationTracker.createTyped(mRS, tb.create(), this, "in_all");
+        plan.mid_all = AllocationTracker.createTyped(mRS, tb.create(), this, "mid_all");
 
         // Tiling in Y dimension
-        int out_h_tile = ConvolveUtil.get_conv_outsize(TILE_Y, ksize, stride, pad);
-        int out_w_tile = outW;
-        Log.v(TAG, "tiled convolve size: " + out_h_tile + " " + out_w_tile);
-        // Create the tiled column Allocation.
-        Allocation col_alloc = Allocation.createTyped(mRS,
-                Type.createXY(mRS, Element.F32(mRS), out_h_tile * out_w_tile, padded_Y_blas));
+        plan.out_h_tile = ConvolveUtil.get_conv_outsize(TILE_Y, ksize, stride, pad);
+        plan.out_w_tile = plan.outW;
+        Log.v(TAG, "tiled convolve size: " + plan.out_h_tile + " " + plan.out_w_tile);
+
+        // The number of tiles, minimum 1.
+        plan.nTiles = img_h / TILE_Y;
+        if (plan.nTiles == 0) plan.nTiles = 1;
+
+        // Create the tiled column Allocations, a second one only if there is a second tile.
+        plan.col_alloc = new Allocation[Math.min(2, plan.nTiles)];
+        for (int i = 0; i < plan.col_alloc.length; i++) {
+            plan.col_alloc[i] = AllocationTracker.createTyped(mRS,
+                    Type.createXY(mRS, Element.F32(mRS), plan.out_h_tile * plan.out_w_tile, padded_Y_blas), this, "col_alloc");
+        }
         // Create the tiled output Allocation.
-        Allocation out_alloc = Allocation.createTyped(mRS,
-                Type.createXY(mRS, Element.F32(mRS), out_h_tile * out_w_tile, out_channels));
+        plan.out_alloc = AllocationTracker.createTyped(mRS,
+                Type.createXY(mRS, Element.F32(mRS), plan.out_h_tile * plan.out_w_tile, out_channels), this, "out_alloc");
+        return plan;
+    }
 
-        // Setup the parameters for paralleled im2col
-        mConvovle.set_outH(out_h_tile);
-        mConvovle.set_outW(out_w_tile);
+    // Fetch the plan for the input dimensions, building it on first use,
+    // and set its parameters to the convolve kernel if another plan was bound.
+    private TilePlan bindPlan(int img_h, int img_w) {
+        TilePlan plan = mPlans.get(img_h, img_w);
+        if (plan == null) {
+            // Allocate the buffers of the plan.
+            traceBegin("createPlan", -1, mTracer == null ? null : TraceRecorder.shape(in_channels, img_h, img_w));
+            plan = createPlan(img_h, img_w);
+            mPlans.put(img_h, img_w, plan);
+            traceEnd();
+        }
+        if (plan != mBoundPlan) {
+            // Set the input variables to the convolve kernel.
+            mConvovle.set_img_h(img_h);
+            mConvovle.set_img_w(img_w);
+            // Setup the parameters for paralleled im2col
+            mConvovle.set_outH(plan.out_h_tile);
+            mConvovle.set_outW(plan.out_w_tile);
+            mBoundPlan = plan;
+        }
+        outH = plan.outH;
+        outW = plan.outW;
+        return plan;
+    }
 
-        // The number of tiles, minimum 1.
-        int nTiles = img_h / TILE_Y;
-        if (nTiles == 0) nTiles = 1;
+    @Override
+    public void destroy() {
+        mPlans.clear();
+        mBoundPlan = null;
+        if (mOwnsWeights) {
+            for (int i = 0; i < W_alloc.length; i++) {
+                AllocationTracker.destroy(W_alloc[i]);
+                AllocationTracker.destroy(b_alloc[i]);
+            }
+            for (int i = 0; i < gamma_alloc.length; i++) {
+                AllocationTracker.destroy(gamma_alloc[i]);
+                AllocationTracker.destroy(beta_alloc[i]);
+                AllocationTracker.destroy(avg_mean_alloc[i]);
+                AllocationTracker.destroy(avg_var_alloc[i]);
+            }
+        }
+    }
 
-        // put all convolution and batch normalization in a loop.
-        for (int ic = 0; ic < mNumBlocks; ic++) {
-            long time;
+    /*
+        The tiled convolution of the input of the kernel into out, without the bias.
+        The padding is read as zeros by im2col.
+        The im2col of the next tile is launched into the other column Allocation
+        before the SGEMM of the current tile, so the two launches have no buffer
+        in common and the driver may overlap them.
+     */
+    private void convolveTiles(TilePlan plan, String conv, Allocation W, Allocation out) {
+        int tileSize = plan.out_h_tile * plan.out_w_tile;
+
+        // Operations and bytes of one tile, for the benchmark.
+        long colBytes = 4L * tileSize * padded_Y_blas;
+        long sgemmFlops = 2L * tileSize * padded_Y_blas * out_channels;
+        long sgemmBytes = colBytes + 4L * padded_Y_blas * out_channels + 4L * tileSize * out_channels;
+        long time;
+
+        // Shapes of the tiled Allocations, for the trace.
+        String colShape = null, tileShape = null;
+        if (mTracer != null) {
+            colShape = TraceRecorder.shape(padded_Y_blas, plan.out_h_tile, plan.out_w_tile);
+            tileShape = TraceRecorder.shape(out_channels, plan.out_h_tile, plan.out_w_tile);
+        }
 
-            // 1st tiled convolution.
-            mConvovle.set_img_alloc(in_all);
-            mConvovle.invoke_padd();
-            for (int it = 0; it < nTiles; it++) {
+        // Step it launches the im2col of the tile it and the SGEMM of the tile it - 1.
+        for (int it = 0; it <= plan.nTiles; it++) {
+            if (it < plan.nTiles) {
                 mConvovle.set_tile_num(it);
 
-                time = System.currentTimeMillis();
-                mConvovle.forEach_im2col(col_alloc);
+                time = startTimer();
+                traceBegin(conv, "im2col", it, colShape);
+                mConvovle.forEach_im2col(plan.col_alloc[it % 2]);
+                im2colTime += stopTimer(time, conv, "im2col", 0, 2 * colBytes);
+                traceEnd();
+            }
+            if (it == 0) {
+                continue;
+            }
+            int tile = it - 1;
+            traceBegin(conv, "tile", tile, tileShape);
+
+            time = startTimer();
+            traceBegin(conv, "sgemm", tile, tileShape);
+            mBlas.SGEMM(ScriptIntrinsicBLAS.NO_TRANSPOSE, ScriptIntrinsicBLAS.NO_TRANSPOSE,
+                    1.0f, W, plan.col_alloc[tile % 2], 0.0f, plan.out_alloc);
+            sgemmTime += stopTimer(time, conv, "sgemm", sgemmFlops, sgemmBytes);
+            traceEnd();
+
+            traceBegin(conv, "copy2DRangeFrom", tile, tileShape);
+            out.copy2DRangeFrom(tile * tileSize, 0, tileSize, out_channels, plan.out_alloc, 0, 0);
+            traceEnd();
+            traceEnd();
+        }
+    }
 
-                if (LOG_TIME) {
-                    mRS.finish();
-                    time = System.currentTimeMillis() - time;
-                    im2colTime += time;
-                }
+    // The returned Allocation is owned by the layer and reused by the next call
+    // with the same input dimensions.
+    public Allocation process(Allocation input, int img_h, int img_w) {
+        String inShape = mTracer == null ? null : TraceRecorder.shape(in_channels, img_h, img_w);
+        traceBegin("process", -1, inShape);
+        TilePlan plan = bindPlan(img_h, img_w);
+        Allocation out_all = plan.out_all;
+        Allocation in_all = plan.in_all;
+        Allocation mid_all = plan.mid_all;
+        traceBegin("copyFrom", -1, inShape);
+        in_all.copyFrom(input);
+        traceEnd();
 
-                time = System.currentTimeMillis();
-                mBlas.SGEMM(ScriptIntrinsicBLAS.NO_TRANSPOSE, ScriptIntrinsicBLAS.NO_TRANSPOSE,
-                        1.0f, W_alloc[ic * 2], col_alloc, 0.0f, out_alloc);
-                if (LOG_TIME) {
-                    mRS.finish();
-                    time = System.currentTimeMillis() - time;
-                    sgemmTime += time;
-                }
+        long outCount = (long) plan.outH * plan.outW * out_channels;
+        String outShape = mTracer == null ? null : TraceRecorder.shape(out_channels, plan.outH, plan.outW);
 
-                out_all.copy2DRangeFrom(it * out_h_tile * out_w_tile, 0, out_h_tile * out_w_tile, out_channels, out_alloc, 0, 0);
-            }
+        // put all convolution and batch normalization in a loop.
+        for (int ic = 0; ic < mNumBlocks; ic++) {
+            // Name of the block in the benchmark reports and the trace.
+            String block = mName + (ic + 1);
+            long time;
+
+            // 1st tiled convolution.
+            String conv = block + ".c1";
+            mConvovle.set_img_alloc(in_all);
+            convolveTiles(plan, conv, W_alloc[ic * 2], mid_all);
             mConvovle.set_beta_alloc(b_alloc[ic * 2]);
 
-            time = System.currentTimeMillis();
-            mConvovle.forEach_addBeta(out_all, out_all);
-            if (LOG_TIME) {
-                mRS.finish();
-                time = System.currentTimeMillis() - time;
-                betaTime += time;
-            }
+            time = startTimer();
+            traceBegin(conv, "addBeta", -1, outShape);
+            mConvovle.forEach_addBeta(mid_all, mid_all);
+            betaTime += stopTimer(time, conv, "beta", outCount, 8 * outCount);
+            traceEnd();
 
             // 1st batch normalization
             rs_BN.set_beta_alloc(beta_alloc[ic * 2]);
@@ -313,51 +466,25 @@ public class ResidualBlockChained extends NeuralNetLayerBase {
             rs_BN.set_mean_alloc(avg_mean_alloc[ic * 2]);
             rs_BN.set_var_alloc(avg_var_alloc[ic * 2]);
 
-            time = System.currentTimeMillis();
-            rs_BN.forEach_process(out_all, out_all);
+            time = startTimer();
+            traceBegin(block + ".b1", "normalize", -1, outShape);
+            rs_BN.forEach_process(mid_all, mid_all);
             // 1st RELU
-            mActivation.forEach_relu(out_all, out_all);
-            if (LOG_TIME) {
-                mRS.finish();
-                time = System.currentTimeMillis() - time;
-                normalizeTime += time;
-            }
+            mActivation.forEach_relu(mid_all, mid_all);
+            normalizeTime += stopTimer(time, block + ".b1", "normalize", 5 * outCount, 16 * outCount);
+            traceEnd();
 
             // 2nd tiled convolution.
-            mConvovle.set_img_alloc(out_all);
-            mConvovle.invoke_padd();
-            for (int it = 0; it < nTiles; it++) {
-                mConvovle.set_tile_num(it);
-
-                time = System.currentTimeMillis();
-                mConvovle.forEach_im2col(col_alloc);
-
-                if (LOG_TIME) {
-                    mRS.finish();
-                    time = System.currentTimeMillis() - time;
-                    im2colTime += time;
-                }
-
-                time = System.currentTimeMillis();
-                mBlas.SGEMM(ScriptIntrinsicBLAS.NO_TRANSPOSE, ScriptIntrinsicBLAS.NO_TRANSPOSE,
-                        1.0f, W_alloc[ic * 2 + 1], col_alloc, 0.0f, out_alloc);
-                if (LOG_TIME) {
-                    mRS.finish();
-                    time = System.currentTimeMillis() - time;
-                    sgemmTime += time;
-                }
-
-                out_all.copy2DRangeFrom(it * out_h_tile * out_w_tile, 0, out_h_tile * out_w_tile, out_channels, out_alloc, 0, 0);
-            }
+            conv = block + ".c2";
+            mConvovle.set_img_alloc(mid_all);
+            convolveTiles(plan, conv, W_alloc[ic * 2 + 1], out_all);
             mConvovle.set_beta_alloc(b_alloc[ic * 2 + 1]);
 
-            time = System.currentTimeMillis();
+            time = startTimer();
+            traceBegin(conv, "addBeta", -1, outShape);
             mConvovle.forEach_addBeta(out_all, out_all);
-            if (LOG_TIME) {
-                mRS.finish();
-                time = System.currentTimeMillis() - time;
-                betaTime += time;
-            }
+            betaTime += stopTimer(time, conv, "beta", outCount, 8 * outCount);
+            traceEnd();
 
 
             // 2nd batch normalization
@@ -366,28 +493,26 @@ public class ResidualBlockChained extends NeuralNetLayerBase {
             rs_BN.set_mean_alloc(avg_mean_alloc[ic * 2 + 1]);
             rs_BN.set_var_alloc(avg_var_alloc[ic * 2 + 1]);
 
-            time = System.currentTimeMillis();
+            time = startTimer();
+            traceBegin(block + ".b2", "normalize", -1, outShape);
             rs_BN.forEach_process(out_all, out_all);
-            if (LOG_TIME) {
-                mRS.finish();
-                time = System.currentTimeMillis() - time;
-                normalizeTime += time;
-            }
+            normalizeTime += stopTimer(time, block + ".b2", "normalize", 4 * outCount, 8 * outCount);
+            traceEnd();
 
             // Add the residual with the input.
+            traceBegin(block, "add", -1, outShape);
             mResidualBlock.set_img_alloc(in_all);
             mResidualBlock.forEach_add(out_all, out_all);
+            traceEnd();
 
             Allocation temp = in_all;
             in_all = out_all;
             out_all = temp;
         }
 
-        // Destroy the intermediate Allocations.
-        img_padded.destroy();
-        col_alloc.destroy();
-        out_alloc.destroy();
+        traceEnd();
 
+        // The result ends up in either of the ping-pong Allocations of the plan.
         return in_all;
     }
 }
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet;
+
+import android.support.v8.renderscript.Allocation;
+import android.support.v8.renderscript.Element;
+import android.support.v8.renderscript.RenderScript;
+import android.support.v8.renderscript.ScriptIntrinsicBLAS;
+import android.support.v8.renderscript.Type;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/*
+   Roofline analysis of the layers of the neural net.
+
+   The floating point operations and the bytes of each layer are derived from its
+   shapes: the bytes are the compulsory traffic of the layer, reading its input and
+   weights once and writing its output once, so they do not depend on how the
+   kernels are implemented. Compared to the times of a BenchmarkRecorder, they give
+   the achieved GFLOP/s and GB/s of each layer and its arithmetic intensity
+   (FLOPs per byte).
+
+   Against the measured peak of the device, a layer whose intensity is below the
+   ridge point (peak GFLOP/s / peak GB/s) is memory bound at best, above it compute
+   bound. The percent of peak is relative to the roofline at its intensity: a low
+   value on a compute bound layer calls for a better convolution algorithm, on a
+   memory bound one for fusing it with its neighbours.
+*/
+public class RooflineReport {
+    private static final int FLOAT_BYTES = 4;
+
+    // Peak performance of the device.
+    public static class Peak {
+        public final double gflops;
+        public final double gbytes;
+
+        public Peak(double gflops, double gbytes) {
+            this.gflops = gflops;
+            this.gbytes = gbytes;
+        }
+
+        // Arithmetic intensity at which the layers stop being memory bound.
+        public double ridge() {
+            return gflops / gbytes;
+        }
+
+        // The best performance reachable at the given arithmetic intensity.
+        public double attainable(double intensity) {
+            return Math.min(gflops, intensity * gbytes);
+        }
+
+        /*
+           Measure the peak of the device with the kernels the layers use: a square
+           SGEMM for the compute, an Allocation to Allocation copy for the memory.
+           The best of a few runs is kept.
+         */
+        public static Peak measure(RenderScript rs) {
+            final int n = 512;
+            final int runs = 5;
+            ScriptIntrinsicBLAS blas = ScriptIntrinsicBLAS.create(rs);
+            Type square = Type.createXY(rs, Element.F32(rs), n, n);
+            Allocation a = Allocation.createTyped(rs, square);
+            Allocation b = Allocation.createTyped(rs, square);
+            Allocation c = Allocation.createTyped(rs, square);
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < runs; i++) {
+                long start = System.nanoTime();
+                blas.SGEMM(ScriptIntrinsicBLAS.NO_TRANSPOSE, ScriptIntrinsicBLAS.NO_TRANSPOSE,
+                        1.0f, a, b, 0.0f, c);
+                rs.finish();
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            double gflops = 2.0 * n * n * n / best;
+            a.destroy();
+            b.destroy();
+            c.destroy();
+            blas.destroy();
+
+            // 16 MB, well past the caches.
+            final int w = 2048, h = 2048;
+            Type large = Type.createXY(rs, Element.F32(rs), w, h);
+            Allocation src = Allocation.createTyped(rs, large);
+            Allocation dst = Allocation.createTyped(rs, large);
+            best = Long.MAX_VALUE;
+            for (int i = 0; i < runs; i++) {
+                long start = System.nanoTime();
+                dst.copy2DRangeFrom(0, 0, w, h, src, 0, 0);
+                rs.finish();
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            double gbytes = 2.0 * FLOAT_BYTES * w * h / best;
+            src.destroy();
+            dst.destroy();
+            return new Peak(gflops, gbytes);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("peak %.2f GFLOP/s, %.2f GB/s, ridge %.2f FLOP/B",
+                    gflops, gbytes, ridge());
+        }
+    }
+
+    // The theoretical work of one layer for one inference.
+    public static class Layer {
+        public final String name;
+        public final long flops;
+        public final long bytes;
+
+        Layer(String name, long flops, long bytes) {
+            this.name = name;
+            this.flops = flops;
+            this.bytes = bytes;
+        }
+
+        public double intensity() {
+            return bytes == 0 ? 0 : (double) flops / bytes;
+        }
+    }
+
+    // One layer of the report.
+    public static class Row {
+        public final Layer layer;
+        // Measured time of the layer per inference, 0 if it was not recorded.
+        public final long nanos;
+        public final double gflops;
+        public final double gbytes;
+        public final double percentOfPeak;
+        public final boolean computeBound;
+
+        Row(Layer layer, long nanos, Peak peak) {
+            this.layer = layer;
+            this.nanos = nanos;
+            gflops = nanos == 0 ? 0 : (double) layer.flops / nanos;
+            gbytes = nanos == 0 ? 0 : (double) layer.bytes / nanos;
+            double attainable = peak.attainable(layer.intensity());
+            percentOfPeak = attainable == 0 ? 0 : 100.0 * gflops / attainable;
+            computeBound = layer.intensity() >= peak.ridge();
+        }
+    }
+
+    private final List<Layer> mLayers = new ArrayList<>();
+
+    public void addConvolution(String name, int in_channels, int out_channels, int ksize,
+                               int stride, int pad, int img_h, int img_w) {
+        int out_h = ConvolveUtil.get_conv_outsize(img_h, ksize, stride, pad);
+        int out_w = ConvolveUtil.get_conv_outsize(img_w, ksize, stride, pad);
+        long outCount = (long) out_channels * out_h * out_w;
+        long weights = (long) out_channels * in_channels * ksize * ksize;
+        // A multiply-add per weight and output pixel, plus the bias.
+        long flops = 2 * weights * out_h * out_w + outCount;
+        long bytes = FLOAT_BYTES * ((long) in_channels * img_h * img_w + weights + out_channels + outCount);
+        mLayers.add(new Layer(name, flops, bytes));
+    }
+
+    public void addDeconvolution(String name, int in_channels, int out_channels, int ksize,
+                                 int stride, int pad, int img_h, int img_w) {
+        int out_h = ConvolveUtil.get_deconv_outsize(img_h, ksize, stride, pad);
+        int out_w = ConvolveUtil.get_deconv_outsize(img_w, ksize, stride, pad);
+        long outCount = (long) out_channels * out_h * out_w;
+        long weights = (long) out_channels * in_channels * ksize * ksize;
+        // A multiply-add per weight and input pixel, plus the bias.
+        long flops = 2 * weights * img_h * img_w + outCount;
+        long bytes = FLOAT_BYTES * ((long) in_channels * img_h * img_w + weights + out_channels + outCount);
+        mLayers.add(new Layer(name, flops, bytes));
+    }
+
+    /*
+       Batch normalization in place, with opsPerElement operations per element:
+       4 for the normalization, one more when it is fused with an activation or a sum.
+       inputs is the number of images read, 2 when the residual input is added.
+     */
+    public void addBatchNormalization(String name, int channels, int img_h, int img_w,
+                                      int opsPerElement, int inputs) {
+        long count = (long) channels * img_h * img_w;
+        long bytes = FLOAT_BYTES * ((inputs + 1) * count + 4 * channels);
+        mLayers.add(new Layer(name, opsPerElement * count, bytes));
+    }
+
+    // The layers of the FastStyle network, named as in the recorders of the models.
+    public static RooflineReport fastStyle(int height, int width) {
+        RooflineReport report = new RooflineReport();
+        report.addConvolution("c1", 3, 32, 9, 1, 4, height, width);
+        report.addBatchNormalization("b1", 32, height, width, 4, 1);
+        report.addConvolution("c2", 32, 64, 4, 2, 1, height, width);
+        int h = ConvolveUtil.get_conv_outsize(height, 4, 2, 1);
+        int w = ConvolveUtil.get_conv_outsize(width, 4, 2, 1);
+        report.addBatchNormalization("b2", 64, h, w, 4, 1);
+        report.addConvolution("c3", 64, 128, 4, 2, 1, h, w);
+        h = ConvolveUtil.get_conv_outsize(h, 4, 2, 1);
+        w = ConvolveUtil.get_conv_outsize(w, 4, 2, 1);
+        report.addBatchNormalization("b3", 128, h, w, 4, 1);
+        for (int i = 1; i <= 5; i++) {
+            String block = "r" + i;
+            report.addConvolution(block + ".c1", 128, 128, 3, 1, 1, h, w);
+            // Followed by the ReLU.
+            report.addBatchNormalization(block + ".b1", 128, h, w, 5, 1);
+            report.addConvolution(block + ".c2", 128, 128, 3, 1, 1, h, w);
+            // Followed by the sum with the input of the block.
+            report.addBatchNormalization(block + ".b2", 128, h, w, 5, 2);
+        }
+        report.addDeconvolution("d1", 128, 64, 4, 2, 1, h, w);
+        h = ConvolveUtil.get_deconv_outsize(h, 4, 2, 1);
+        w = ConvolveUtil.get_deconv_outsize(w, 4, 2, 1);
+        report.addBatchNormalization("b4", 64, h, w, 4, 1);
+        report.addDeconvolution("d2", 64, 32, 4, 2, 1, h, w);
+        h = ConvolveUtil.get_deconv_outsize(h, 4, 2, 1);
+        w = ConvolveUtil.get_deconv_outsize(w, 4, 2, 1);
+        report.addBatchNormalization("b5", 32, h, w, 4, 1);
+        report.addDeconvolution("d3", 32, 3, 9, 1, 4, h, w);
+        return report;
+    }
+
+    public List<Layer> getLayers() {
+        return new ArrayList<>(mLayers);
+    }
+
+    /*
+       Match the layers with the kernel times of the recorder. The time of a layer is
+       the sum of its kernels, averaged over the timed inferences: with a timing
+       interval, only one inference in N records its kernels.
+     */
+    public List<Row> analyze(BenchmarkRecorder recorder, Peak peak) {
+        List<BenchmarkRecorder.Entry> entries = recorder.getEntries();
+        long inferences = recorder.getRecordedInferences();
+        for (BenchmarkRecorder.Entry e : entries) {
+            if ("model".equals(e.layer) && "inference_timed".equals(e.kernel)) {
+                inferences = e.count;
+            }
+        }
+        List<Row> rows = new ArrayList<>();
+        for (Layer layer : mLayers) {
+            long total = 0;
+            for (BenchmarkRecorder.Entry e : entries) {
+                if (layer.name.equals(e.layer)) {
+                    total += e.totalNanos;
+                }
+            }
+            rows.add(new Row(layer, inferences == 0 ? 0 : total / inferences, peak));
+        }
+        return rows;
+    }
+
+    // One line per layer, ordered as the network.
+    public String toCsv(BenchmarkRecorder recorder, Peak peak) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("layer,flops,bytes,intensity,time_us,gflops,gbytes,percent_of_peak,bound\n");
+        for (Row row : analyze(recorder, peak)) {
+            sb.append(row.layer.name).append(',')
+                    .append(row.layer.flops).append(',')
+                    .append(row.layer.bytes).append(',')
+                    .append(String.format(Locale.US, "%.2f", row.layer.intensity())).append(',')
+                    .append(String.format(Locale.US, "%.1f", row.nanos / 1000.0)).append(',')
+                    .append(String.format(Locale.US, "%.3f", row.gflops)).append(',')
+                    .append(String.format(Locale.US, "%.3f", row.gbytes)).append(',')
+                    .append(String.format(Locale.US, "%.1f", row.percentOfPeak)).append(',')
+                    .append(row.computeBound ? "compute" : "memory").append('\n');
+        }
+        return sb.toString();
+    }
+}
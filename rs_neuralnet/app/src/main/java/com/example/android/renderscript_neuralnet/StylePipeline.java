@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+   Batch stylization as a three-stage pipeline:
+
+     [decode] --queue--> [scale + crop + neural net] --queue--> [post-filter + encode]
+
+   Each stage runs on its own thread, so while the neural net runs on image i,
+   image i + 1 is decoded and image i - 1 is filtered and written out. The image is
+   subsampled at decoding, close to the pipeline size, then scaled and cropped by
+   the ingest kernel of the model, on its way to the input of the net, see
+   FastStyleModelTiled.stylizeCenter.
+   The queues between the stages are bounded: a fast stage blocks on a full queue
+   instead of piling up decoded Bitmaps.
+*/
+public class StylePipeline {
+    private static final String TAG = "StylePipeline";
+
+    // Throughput counters of one stage.
+    public static class Stage {
+        public final String name;
+        // Number of images processed by the stage.
+        public final AtomicLong count = new AtomicLong();
+        // Time spent working on images.
+        public final AtomicLong busyNanos = new AtomicLong();
+        // Time spent blocked on the queues, waiting for input or for room in the output.
+        public final AtomicLong waitNanos = new AtomicLong();
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        // Images per second of busy time, i.e. the throughput the stage could sustain alone.
+        public double getThroughput() {
+            long busy = busyNanos.get();
+            return busy == 0 ? 0 : count.get() * 1e9 / busy;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + count.get() + " images, " + String.format("%.2f", getThroughput()) +
+                    " images/s, busy " + busyNanos.get() / 1000000 + " ms, waiting " +
+                    waitNanos.get() / 1000000 + " ms";
+        }
+    }
+
+    // An image flowing through the pipeline.
+    private static class Job {
+        final File input;
+        final File output;
+        Bitmap bitmap;
+
+        Job(File input, File output) {
+            this.input = input;
+            this.output = output;
+        }
+    }
+
+    // Marks the end of the input.
+    private static final Job END = new Job(null, null);
+
+    private final FastStyleModelTiled mModel;
+    private final PostFilter mPostFilter;
+    private final int mSize;
+    private final int mQueueCapacity;
+
+    public final Stage mDecodeStage = new Stage("decode");
+    public final Stage mInferenceStage = new Stage("inference");
+    public final Stage mEncodeStage = new Stage("encode");
+
+    // The first failure of any stage.
+    private volatile Exception mError;
+
+    /*
+       model         :  A loaded model (or execution context), used by the inference stage only.
+       size          :  Images are scaled and cropped to size x size.
+       queueCapacity :  Capacity of the queues between the stages.
+     */
+    public StylePipeline(FastStyleModelTiled model, int size, int queueCapacity) {
+        mModel = model;
+        mPostFilter = new PostFilter(model.getRenderScript());
+        mSize = size;
+        mQueueCapacity = queueCapacity;
+    }
+
+    // Stylize every input image into outputDir, as PNG. Blocks until all images are written.
+    public void run(final List<File> inputs, final File outputDir) throws Exception {
+        final BlockingQueue<Job> decoded = new ArrayBlockingQueue<>(mQueueCapacity);
+        final BlockingQueue<Job> stylized = new ArrayBlockingQueue<>(mQueueCapacity);
+
+        Thread decodeThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (File input : inputs) {
+                        String name = input.getName();
+                        int dot = name.lastIndexOf('.');
+                        if (dot > 0) {
+                            name = name.substring(0, dot);
+                        }
+                        Job job = new Job(input, new File(outputDir, name + ".png"));
+
+                        long time = System.nanoTime();
+                        job.bitmap = decode(input);
+                        mDecodeStage.busyNanos.addAndGet(System.nanoTime() - time);
+                        if (job.bitmap == null) {
+                            Log.w(TAG, "Could not decode " + input);
+                            continue;
+                        }
+                        mDecodeStage.count.incrementAndGet();
+                        if (!put(decoded, job, mDecodeStage)) {
+                            break;
+                        }
+                    }
+                } catch (Exception e) {
+                    fail(e);
+                } finally {
+                    putEnd(decoded);
+                }
+            }
+        }, "StylePipeline-decode");
+
+        Thread inferenceThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (Job job = take(decoded, mInferenceStage); job != END;
+                         job = take(decoded, mInferenceStage)) {
+                        long time = System.nanoTime();
+                        job.bitmap = mModel.stylizeCenter(job.bitmap, mSize);
+                        mInferenceStage.busyNanos.addAndGet(System.nanoTime() - time);
+                        mInferenceStage.count.incrementAndGet();
+                        if (!put(stylized, job, mInferenceStage)) {
+                            break;
+                        }
+                    }
+                } catch (Exception e) {
+                    fail(e);
+                } finally {
+                    putEnd(stylized);
+                }
+            }
+        }, "StylePipeline-inference");
+
+        Thread encodeThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (Job job = take(stylized, mEncodeStage); job != END;
+                         job = take(stylized, mEncodeStage)) {
+                        long time = System.nanoTime();
+                        mPostFilter.process(job.bitmap);
+                        encode(job.bitmap, job.output);
+                        mEncodeStage.busyNanos.addAndGet(System.nanoTime() - time);
+                        mEncodeStage.count.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    fail(e);
+                }
+            }
+        }, "StylePipeline-encode");
+
+        long time = System.nanoTime();
+        decodeThread.start();
+        inferenceThread.start();
+        encodeThread.start();
+        decodeThread.join();
+        inferenceThread.join();
+        encodeThread.join();
+        time = System.nanoTime() - time;
+
+        Log.v(TAG, mDecodeStage.toString());
+        Log.v(TAG, mInferenceStage.toString());
+        Log.v(TAG, mEncodeStage.toString());
+        Log.v(TAG, "pipeline: " + mEncodeStage.count.get() + " images in " + time / 1000000 + " ms");
+
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    /*
+       Decode the image subsampled by the largest power of 2 which keeps its shorter
+       side at least the pipeline size, so that the queue holds Bitmaps close to the
+       size of the net input rather than full resolution photos. The model then
+       scales the shorter side to the pipeline size and crops the center square.
+     */
+    private Bitmap decode(File input) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(input.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = CenterCrop.sampleSize(options.outHeight, options.outWidth, mSize);
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        return BitmapFactory.decodeFile(input.getPath(), options);
+    }
+
+    private void encode(Bitmap bitmap, File output) throws IOException {
+        OutputStream out = new FileOutputStream(output);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    // The queue operations poll, so that no stage stays blocked once another stage failed.
+    private static final long POLL_MS = 100;
+
+    // Returns false if the pipeline failed while waiting for room in the queue.
+    private boolean put(BlockingQueue<Job> queue, Job job, Stage stage) throws InterruptedException {
+        long time = System.nanoTime();
+        try {
+            while (!queue.offer(job, POLL_MS, TimeUnit.MILLISECONDS)) {
+                if (mError != null) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            stage.waitNanos.addAndGet(System.nanoTime() - time);
+        }
+    }
+
+    // Returns END if the pipeline failed while waiting for input.
+    private Job take(BlockingQueue<Job> queue, Stage stage) throws InterruptedException {
+        long time = System.nanoTime();
+        try {
+            Job job;
+            while ((job = queue.poll(POLL_MS, TimeUnit.MILLISECONDS)) == null) {
+                if (mError != null) {
+                    return END;
+                }
+            }
+            return job;
+        } finally {
+            stage.waitNanos.addAndGet(System.nanoTime() - time);
+        }
+    }
+
+    // Signal the end of the input to the next stage, even when this stage failed.
+    private void putEnd(BlockingQueue<Job> queue) {
+        try {
+            while (!queue.offer(END, POLL_MS, TimeUnit.MILLISECONDS)) {
+                if (mError != null) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void fail(Exception e) {
+        Log.e(TAG, "Pipeline stage failed", e);
+        if (mError == null) {
+            mError = e;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+   Two-level cache of stylized images, addressed by content.
+
+   The key is made of the hash of the input pixels, the style, the resolution and
+   the precision mode, so re-styling the same image with the same settings skips
+   the neural net entirely. Recent results are kept in memory, under a byte cap;
+   all results are also written to a directory as PNG, and the least recently
+   used files are deleted when the directory grows over its own byte cap.
+*/
+public class StyleResultCache {
+    private static final String TAG = "StyleResultCache";
+
+    // The only precision mode of the RenderScript models.
+    public static final String PRECISION_F32 = "f32";
+
+    private static final String PNG_SUFFIX = ".png";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final LruCache<String, Bitmap> mMemory;
+    private final File mDir;
+    private final long mMaxDiskBytes;
+
+    private final AtomicLong mMemoryHits = new AtomicLong();
+    private final AtomicLong mDiskHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /*
+       dir           :  Directory of the disk cache, created if needed.
+       maxMemBytes   :  Capacity of the in-memory cache, in bytes of Bitmap pixels.
+       maxDiskBytes  :  Capacity of the disk cache, in bytes of PNG files.
+     */
+    public StyleResultCache(File dir, int maxMemBytes, long maxDiskBytes) {
+        mMemory = new LruCache<String, Bitmap>(maxMemBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+        mDir = dir;
+        mMaxDiskBytes = maxDiskBytes;
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "Could not create " + mDir);
+        }
+    }
+
+    // Build the cache key of a stylization request.
+    public static String key(Bitmap input, String style, int size, String precision) {
+        int width = input.getWidth();
+        int height = input.getHeight();
+        int[] row = new int[width];
+        byte[] bytes = new byte[width * 4];
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (int y = 0; y < height; y++) {
+            input.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                int p = row[x];
+                bytes[4 * x] = (byte) (p >> 24);
+                bytes[4 * x + 1] = (byte) (p >> 16);
+                bytes[4 * x + 2] = (byte) (p >> 8);
+                bytes[4 * x + 3] = (byte) p;
+            }
+            digest.update(bytes);
+        }
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        key.append('_').append(width).append('x').append(height);
+        key.append('_').append(style).append('_').append(size).append('_').append(precision);
+        return key.toString();
+    }
+
+    // Returns the cached result, or null on a miss.
+    public Bitmap get(String key) {
+        Bitmap bitmap = mMemory.get(key);
+        if (bitmap != null) {
+            mMemoryHits.incrementAndGet();
+            return bitmap;
+        }
+
+        File file = file(key);
+        if (file.isFile()) {
+            bitmap = BitmapFactory.decodeFile(file.getPath());
+            if (bitmap != null) {
+                // Mark the file as recently used, for the disk eviction.
+                file.setLastModified(System.currentTimeMillis());
+                mMemory.put(key, bitmap);
+                mDiskHits.incrementAndGet();
+                return bitmap;
+            }
+        }
+        mMisses.incrementAndGet();
+        return null;
+    }
+
+    /*
+       The PNG is written to a temporary file first, then renamed to its key: a
+       crash or a concurrent get never sees a partly written file under the key.
+     */
+    public void put(String key, Bitmap bitmap) {
+        mMemory.put(key, bitmap);
+
+        File file = file(key);
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(key, TMP_SUFFIX, mDir);
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write " + file, e);
+            if (tmp != null) {
+                tmp.delete();
+            }
+            return;
+        }
+        trimDisk();
+    }
+
+    // Delete the least recently used files until the disk cache fits its byte cap.
+    // The temporary files of the puts in progress are left alone.
+    private synchronized void trimDisk() {
+        File[] files = mDir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(PNG_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        if (total <= mMaxDiskBytes) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long ta = a.lastModified();
+                long tb = b.lastModified();
+                return ta < tb ? -1 : (ta == tb ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && total > mMaxDiskBytes; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private File file(String key) {
+        return new File(mDir, key + PNG_SUFFIX);
+    }
+
+    public void clear() {
+        mMemory.evictAll();
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+    }
+
+    public long getMemoryHits() {
+        return mMemoryHits.get();
+    }
+
+    public long getDiskHits() {
+        return mDiskHits.get();
+    }
+
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    // Fraction of the requests served from memory or disk.
+    public double getHitRate() {
+        long hits = mMemoryHits.get() + mDiskHits.get();
+        long total = hits + mMisses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return "memory hits: " + mMemoryHits.get() + ", disk hits: " + mDiskHits.get() +
+                ", misses: " + mMisses.get() + ", hit rate: " +
+                String.format("%.2f", getHitRate()) + ", memory: " + mMemory.size() + " bytes";
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/*
+   Timeline of the neural net, in the trace-event JSON format read by
+   chrome://tracing and the Perfetto UI.
+
+   The layers record begin/end events around every kernel launch, tile iteration,
+   plan creation and copy, with the layer name, the tile index and the tensor shape
+   as arguments. Each span is written as one complete ("X") event.
+   While tracing, the layers wait for each kernel to finish before ending its event,
+   so an event spans the execution of the kernel and the gaps between events are
+   launch and copy overhead.
+*/
+public class TraceRecorder {
+    // Enough for a few inferences at 512 x 512.
+    public static final int DEFAULT_MAX_EVENTS = 100000;
+
+    // A complete event: the begin and the end of a span, on one thread.
+    private static class Event {
+        final String name;
+        final String layer;
+        final long beginNanos;
+        long endNanos;
+        final long tid;
+        final int tile;
+        final String shape;
+
+        Event(String name, String layer, long beginNanos, long tid, int tile, String shape) {
+            this.name = name;
+            this.layer = layer;
+            this.beginNanos = beginNanos;
+            this.tid = tid;
+            this.tile = tile;
+            this.shape = shape;
+        }
+    }
+
+    private final int mMaxEvents;
+    private final ArrayList<Event> mEvents = new ArrayList<>();
+    private final long mStart = System.nanoTime();
+    private int mDropped = 0;
+
+    // The events begun and not ended yet, per thread.
+    private final ThreadLocal<ArrayDeque<Event>> mOpen = new ThreadLocal<ArrayDeque<Event>>() {
+        @Override
+        protected ArrayDeque<Event> initialValue() {
+            return new ArrayDeque<>();
+        }
+    };
+
+    public TraceRecorder() {
+        this(DEFAULT_MAX_EVENTS);
+    }
+
+    public TraceRecorder(int maxEvents) {
+        mMaxEvents = maxEvents;
+    }
+
+    /*
+       Begin an event.
+       tile  : the tile index, or -1 for events not bound to a tile.
+       shape : the shape of the tensor processed, e.g. "128x64x64" for channels x h x w.
+     */
+    public void begin(String name, String layer, int tile, String shape) {
+        mOpen.get().push(new Event(name, layer, System.nanoTime(),
+                Thread.currentThread().getId(), tile, shape));
+    }
+
+    // End the last event begun on this thread.
+    public void end() {
+        Event event = mOpen.get().poll();
+        if (event == null) {
+            return;
+        }
+        event.endNanos = System.nanoTime();
+        synchronized (this) {
+            if (mEvents.size() >= mMaxEvents) {
+                mDropped++;
+                return;
+            }
+            mEvents.add(event);
+        }
+    }
+
+    public synchronized int size() {
+        return mEvents.size();
+    }
+
+    public synchronized void clear() {
+        mEvents.clear();
+        mDropped = 0;
+    }
+
+    public synchronized void write(Writer out) throws IOException {
+        out.write("{\"displayTimeUnit\":\"ms\",\"otherData\":{\"dropped\":" + mDropped +
+                "},\"traceEvents\":[\n");
+        boolean first = true;
+        for (Event e : mEvents) {
+            if (!first) {
+                out.write(",\n");
+            }
+            first = false;
+            out.write("{\"name\":\"" + e.name + "\",\"cat\":\"" + e.layer + "\",\"ph\":\"X\"");
+            out.write(",\"ts\":" + micros(e.beginNanos - mStart));
+            out.write(",\"dur\":" + micros(e.endNanos - e.beginNanos));
+            out.write(",\"pid\":0,\"tid\":" + e.tid);
+            out.write(",\"args\":{\"layer\":\"" + e.layer + "\"");
+            if (e.tile >= 0) {
+                out.write(",\"tile\":" + e.tile);
+            }
+            if (e.shape != null) {
+                out.write(",\"shape\":\"" + e.shape + "\"");
+            }
+            out.write("}}");
+        }
+        out.write("\n]}\n");
+    }
+
+    // Microseconds, with the nanoseconds as decimals.
+    private static String micros(long nanos) {
+        return nanos / 1000 + "." + String.format("%03d", nanos % 1000);
+    }
+
+    // Dump the trace to a file, to be loaded in chrome://tracing or ui.perfetto.dev.
+    public void write(File file) throws IOException {
+        Writer out = new BufferedWriter(new FileWriter(file));
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    // Format the shape of a tensor as "channels x h x w".
+    public static String shape(int channels, int h, int w) {
+        return channels + "x" + h + "x" + w;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.cpu;
+
+import java.io.IOException;
+
+/*
+    Batch normalization on the CPU, the counterpart of BatchNormalization.
+    The input is normalized in place with the averaged mean and variance, in
+    either layout.
+*/
+public class CpuBatchNormalization extends CpuLayerBase {
+    final int size;
+    float[] gamma, beta, avg_mean, avg_var;
+
+    private Layout mLayout = Layout.PLANAR;
+
+    public CpuBatchNormalization(int size) {
+        this.size = size;
+        this.gamma = new float[size];
+        this.beta = new float[size];
+        this.avg_mean = new float[size];
+        this.avg_var = new float[size];
+    }
+
+    // Create another execution context of the given layer, sharing its weights.
+    public CpuBatchNormalization(CpuBatchNormalization shared) {
+        super(shared);
+        this.size = shared.size;
+        this.gamma = shared.gamma;
+        this.beta = shared.beta;
+        this.avg_mean = shared.avg_mean;
+        this.avg_var = shared.avg_var;
+    }
+
+    public void loadModel(WeightSource source, String path) throws IOException {
+        checkWeightsWritable();
+        readFloats(source, path + "/gamma", gamma);
+        readFloats(source, path + "/beta", beta);
+        readFloats(source, path + "/avg_mean", avg_mean);
+        readFloats(source, path + "/avg_var", avg_var);
+    }
+
+    // The layout of the images, planar by default.
+    public void setLayout(Layout layout) {
+        mLayout = layout;
+    }
+
+    // Normalize the h x w image in place.
+    public void process(float[] input, int h, int w) {
+        if (mLayout == Layout.NHWC) {
+            CpuKernels.batchNormNhwc(input, size, h * w, avg_mean, avg_var, gamma, beta);
+        } else {
+            CpuKernels.batchNorm(input, size, h * w, avg_mean, avg_var, gamma, beta);
+        }
+    }
+}
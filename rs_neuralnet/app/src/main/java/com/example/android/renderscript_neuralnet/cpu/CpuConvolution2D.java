@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.cpu;
+
+import com.example.android.renderscript_neuralnet.ConvolveUtil;
+import com.example.android.renderscript_neuralnet.PlanCache;
+
+import java.io.IOException;
+
+/*
+    Two-dimensional tiled convolutional layer on the CPU, the counterpart of
+    Convolution2DTiled: for each tile of output rows, im2col of the input in place,
+    with the padding read as zeros, + SGEMM straight into the rows of the output, and add the bias.
+    The tiles run concurrently on the TileExecutor of the layer, each worker with
+    its own column buffer.
+    In the NHWC layout, a tile is im2colNhwc, one row per output pixel, times the
+    transposed weights, which gives the NHWC output pixels of the tile directly.
+    The layers with few input channels, see ConvolveUtil.use_direct_conv, convolve
+    their tiles directly instead, with CpuKernels.convolveDirect or
+    convolveDirectNhwc, and have no column buffer.
+
+    Attributes:
+    in_channels  :  Number of channels of input img.
+    out_channels :  Number of channels of output img.
+    ksize        :  Size of filters / kernels.
+    stride       :  Stride of filters / kernels.
+    pad          :  Spatial padding width for input img.
+    W            :  Weight parameter, out_channels x (in_channels * ksize * ksize).
+    Wt           :  W transposed to (ksize * ksize * in_channels) x out_channels, for NHWC.
+    b            :  Bias parameter.
+*/
+public class CpuConvolution2D extends CpuLayerBase {
+    // Output pixels per tile, so that the column tile fits in the L2 cache.
+    public static final int TILE_PIXELS = 1024;
+
+    // The dimension of the image after convolution.
+    public int outH, outW;
+
+    final int in_channels, out_channels;
+    final int ksize, stride, pad;
+    // Whether the convolution is direct, without im2col.
+    final boolean direct;
+    float[] W;
+    float[] Wt;
+    float[] b;
+
+    private TileExecutor mExecutor = TileExecutor.SEQUENTIAL;
+    private Layout mLayout = Layout.PLANAR;
+
+    public CpuConvolution2D(int in_channels, int out_channels, int ksize, int stride, int pad) {
+        this.in_channels = in_channels;
+        this.out_channels = out_channels;
+        this.ksize = ksize;
+        this.stride = stride;
+        this.pad = pad;
+        this.direct = ConvolveUtil.use_direct_conv(in_channels, ksize);
+        this.W = new float[out_channels * in_channels * ksize * ksize];
+        this.Wt = new float[W.length];
+        this.b = new float[out_channels];
+    }
+
+    // Create another execution context of the given layer, sharing its weights.
+    public CpuConvolution2D(CpuConvolution2D shared) {
+        super(shared);
+        this.in_channels = shared.in_channels;
+        this.out_channels = shared.out_channels;
+        this.ksize = shared.ksize;
+        this.stride = shared.stride;
+        this.pad = shared.pad;
+        this.direct = shared.direct;
+        this.W = shared.W;
+        this.Wt = shared.Wt;
+        this.b = shared.b;
+    }
+
+    public void loadModel(WeightSource source, String path) throws IOException {
+        checkWeightsWritable();
+        readFloats(source, path + "/W", W);
+        readFloats(source, path + "/b", b);
+
+        // W is ordered by output channel, input channel and kernel offset, Wt by
+        // kernel offset, input channel and output channel.
+        int kk = ksize * ksize;
+        for (int oc = 0; oc < out_channels; oc++) {
+            for (int ic = 0; ic < in_channels; ic++) {
+                for (int k = 0; k < kk; k++) {
+                    Wt[((k * in_channels) + ic) * out_channels + oc] =
+                            W[(oc * in_channels + ic) * kk + k];
+                }
+            }
+        }
+    }
+
+    // Run the tiles on the executor, sequentially by default.
+    public void setExecutor(TileExecutor executor) {
+        mExecutor = executor;
+    }
+
+    // The layout of the input and output images, planar by default.
+    public void setLayout(Layout layout) {
+        mLayout = layout;
+    }
+
+    public Layout getLayout() {
+        return mLayout;
+    }
+
+    // Buffers specialized for one input resolution.
+    class TilePlan implements PlanCache.Plan {
+        int img_h, img_w;
+        int outH, outW;
+        // Output rows per tile.
+        int tileRows;
+        int nTiles;
+
+        // The column buffer of each worker, created on first use.
+        float[][] cols = new float[0][];
+        float[] out_all;
+
+        public void destroy() {
+            // Nothing to release, the arrays are garbage collected.
+        }
+    }
+
+    private final PlanCache<TilePlan> mPlans = new PlanCache<>();
+
+    private TilePlan getPlan(int img_h, int img_w) {
+        TilePlan plan = mPlans.get(img_h, img_w);
+        if (plan == null) {
+            plan = new TilePlan();
+            plan.img_h = img_h;
+            plan.img_w = img_w;
+            plan.outH = ConvolveUtil.get_conv_outsize(img_h, ksize, stride, pad);
+            plan.outW = ConvolveUtil.get_conv_outsize(img_w, ksize, stride, pad);
+            plan.tileRows = Math.max(1, Math.min(plan.outH, TILE_PIXELS / plan.outW));
+            plan.nTiles = (plan.outH + plan.tileRows - 1) / plan.tileRows;
+
+            plan.out_all = new float[out_channels * plan.outH * plan.outW];
+            mPlans.put(img_h, img_w, plan);
+        }
+        outH = plan.outH;
+        outW = plan.outW;
+        return plan;
+    }
+
+    /*
+        The returned array is owned by the layer and reused by the next call
+        with the same input dimensions.
+     */
+    public float[] process(final float[] input, final int img_h, final int img_w) {
+        final TilePlan plan = getPlan(img_h, img_w);
+        final int K = in_channels * ksize * ksize;
+        final int outSize = plan.outH * plan.outW;
+
+        if (direct) {
+            mExecutor.run(plan.nTiles, new TileExecutor.Task() {
+                @Override
+                public void run(int it, int worker) {
+                    int row0 = it * plan.tileRows;
+                    int rows = Math.min(plan.tileRows, plan.outH - row0);
+                    if (mLayout == Layout.NHWC) {
+                        CpuKernels.convolveDirectNhwc(input, in_channels, img_h, img_w, pad,
+                                ksize, stride, Wt, b, out_channels, row0, rows, plan.outW, plan.out_all);
+                    } else {
+                        CpuKernels.convolveDirect(input, in_channels, img_h, img_w, pad,
+                                ksize, stride, W, b, out_channels, row0, rows, plan.outH, plan.outW, plan.out_all);
+                    }
+                }
+            });
+            return plan.out_all;
+        }
+
+        int workers = Math.min(mExecutor.getParallelism(), plan.nTiles);
+        if (plan.cols.length < workers) {
+            float[][] cols = new float[workers][];
+            System.arraycopy(plan.cols, 0, cols, 0, plan.cols.length);
+            for (int i = plan.cols.length; i < workers; i++) {
+                cols[i] = new float[K * plan.tileRows * plan.outW];
+            }
+            plan.cols = cols;
+        }
+
+        if (mLayout == Layout.NHWC) {
+            mExecutor.run(plan.nTiles, new TileExecutor.Task() {
+                @Override
+                public void run(int it, int worker) {
+                    int row0 = it * plan.tileRows;
+                    int rows = Math.min(plan.tileRows, plan.outH - row0);
+                    float[] col = plan.cols[worker];
+
+                    CpuKernels.im2colNhwc(input, in_channels, img_h, img_w, pad,
+                            ksize, stride, row0, rows, plan.outW, col);
+                    // The tile is a block of rows of the output.
+                    Sgemm.sgemm(rows * plan.outW, out_channels, K,
+                            col, 0, K,
+                            Wt, 0, out_channels,
+                            plan.out_all, row0 * plan.outW * out_channels, out_channels);
+                }
+            });
+            CpuKernels.addBetaNhwc(plan.out_all, out_channels, outSize, b);
+            return plan.out_all;
+        }
+
+        mExecutor.run(plan.nTiles, new TileExecutor.Task() {
+            @Override
+            public void run(int it, int worker) {
+                int row0 = it * plan.tileRows;
+                int rows = Math.min(plan.tileRows, plan.outH - row0);
+                int tileSize = rows * plan.outW;
+                float[] col = plan.cols[worker];
+
+                CpuKernels.im2col(input, in_channels, img_h, img_w, pad,
+                        ksize, stride, row0, rows, plan.outW, col);
+                // The tile is a block of columns of the output, of leading dimension outSize.
+                Sgemm.sgemm(out_channels, tileSize, K,
+                        W, 0, K,
+                        col, 0, tileSize,
+                        plan.out_all, row0 * plan.outW, outSize);
+            }
+        });
+
+        CpuKernels.addBeta(plan.out_all, out_channels, outSize, b);
+        return plan.out_all;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.cpu;
+
+import com.example.android.renderscript_neuralnet.ConvolveUtil;
+import com.example.android.renderscript_neuralnet.PlanCache;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+    Two-dimensional tiled deconvolutional layer on the CPU, the counterpart of
+    Deconvolution2DTiled: for each tile of input rows, SGEMM on the rows of the
+    input in place and col2im into the padded output, then unpad and add the bias.
+    In the NHWC layout, a tile is the input pixels times Wn, one column row per
+    input pixel, and col2imNhwc accumulates runs of output channels.
+    A last layer with 3 output channels can instead write ARGB pixels with
+    processToArgb, which fuses the deconvolution with the output conversion.
+
+    Attributes:
+    in_channels  :  Number of channels of input arrays.
+    out_channels :  Number of channels of output arrays.
+    ksize        :  Size of filters / kernels.
+    stride       :  Stride of filter applications.
+    pad          :  Spatial padding width for input arrays.
+    W            :  Weight parameter, transposed to (out_channels * ksize * ksize) x in_channels.
+    Wn           :  Weight parameter, in_channels x (ksize * ksize * out_channels), for NHWC.
+    b            :  Bias parameter.
+*/
+public class CpuDeconvolution2D extends CpuLayerBase {
+    // Input pixels per tile, so that the column tile fits in the L2 cache.
+    public static final int TILE_PIXELS = 1024;
+
+    // The dimension of the image after deconvolution.
+    public int outH, outW;
+
+    final int in_channels, out_channels;
+    final int ksize, stride, pad;
+    float[] W;
+    float[] Wn;
+    float[] b;
+
+    private Layout mLayout = Layout.PLANAR;
+    // The 3 rows accumulated by processToArgb.
+    private float[] mAcc;
+
+    public CpuDeconvolution2D(int in_channels, int out_channels, int ksize, int stride, int pad) {
+        this.in_channels = in_channels;
+        this.out_channels = out_channels;
+        this.ksize = ksize;
+        this.stride = stride;
+        this.pad = pad;
+        this.W = new float[in_channels * out_channels * ksize * ksize];
+        this.Wn = new float[W.length];
+        this.b = new float[out_channels];
+    }
+
+    // Create another execution context of the given layer, sharing its weights.
+    public CpuDeconvolution2D(CpuDeconvolution2D shared) {
+        super(shared);
+        this.in_channels = shared.in_channels;
+        this.out_channels = shared.out_channels;
+        this.ksize = shared.ksize;
+        this.stride = shared.stride;
+        this.pad = shared.pad;
+        this.W = shared.W;
+        this.Wn = shared.Wn;
+        this.b = shared.b;
+    }
+
+    public void loadModel(WeightSource source, String path) throws IOException {
+        checkWeightsWritable();
+        // The file holds in_channels x (out_channels * ksize * ksize), transpose it.
+        int colRows = out_channels * ksize * ksize;
+        float[] w = new float[W.length];
+        readFloats(source, path + "/W", w);
+        for (int i = 0; i < colRows; i++) {
+            for (int j = 0; j < in_channels; j++) {
+                W[i * in_channels + j] = w[j * colRows + i];
+            }
+        }
+        // The rows of the file are ordered by output channel and kernel offset, those
+        // of Wn by kernel offset and output channel.
+        int kk = ksize * ksize;
+        for (int j = 0; j < in_channels; j++) {
+            for (int oc = 0; oc < out_channels; oc++) {
+                for (int k = 0; k < kk; k++) {
+                    Wn[j * colRows + k * out_channels + oc] = w[j * colRows + oc * kk + k];
+                }
+            }
+        }
+        readFloats(source, path + "/b", b);
+    }
+
+    // The layout of the input and output images, planar by default.
+    public void setLayout(Layout layout) {
+        mLayout = layout;
+    }
+
+    public Layout getLayout() {
+        return mLayout;
+    }
+
+    // Buffers specialized for one input resolution.
+    class TilePlan implements PlanCache.Plan {
+        int col_h, col_w;
+        int outH, outW;
+        // Input rows per tile.
+        int tileRows;
+        int nTiles;
+
+        float[] tiledOut;
+        float[] img_padded;
+        float[] img;
+
+        public void destroy() {
+            // Nothing to release, the arrays are garbage collected.
+        }
+    }
+
+    private final PlanCache<TilePlan> mPlans = new PlanCache<>();
+
+    private TilePlan getPlan(int col_h, int col_w) {
+        TilePlan plan = mPlans.get(col_h, col_w);
+        if (plan == null) {
+            plan = new TilePlan();
+            plan.col_h = col_h;
+            plan.col_w = col_w;
+            plan.outH = ConvolveUtil.get_deconv_outsize(col_h, ksize, stride, pad);
+            plan.outW = ConvolveUtil.get_deconv_outsize(col_w, ksize, stride, pad);
+            plan.tileRows = Math.max(1, Math.min(col_h, TILE_PIXELS / col_w));
+            plan.nTiles = (col_h + plan.tileRows - 1) / plan.tileRows;
+
+            plan.tiledOut = new float[out_channels * ksize * ksize * plan.tileRows * col_w];
+            plan.img_padded = new float[out_channels * (plan.outH + 2 * pad) * (plan.outW + 2 * pad)];
+            plan.img = new float[out_channels * plan.outH * plan.outW];
+            mPlans.put(col_h, col_w, plan);
+        }
+        outH = plan.outH;
+        outW = plan.outW;
+        return plan;
+    }
+
+    /*
+        The returned array is owned by the layer and reused by the next call
+        with the same input dimensions.
+     */
+    public float[] process(float[] input, int col_h, int col_w) {
+        TilePlan plan = getPlan(col_h, col_w);
+        int padded_h = plan.outH + 2 * pad;
+        int padded_w = plan.outW + 2 * pad;
+        int colRows = out_channels * ksize * ksize;
+        int inSize = col_h * col_w;
+
+        // col2im accumulates into the padded image.
+        Arrays.fill(plan.img_padded, 0.0f);
+
+        if (mLayout == Layout.NHWC) {
+            for (int it = 0; it < plan.nTiles; it++) {
+                int row0 = it * plan.tileRows;
+                int rows = Math.min(plan.tileRows, col_h - row0);
+                // The tile is a block of rows of the input.
+                Sgemm.sgemm(rows * col_w, colRows, in_channels,
+                        input, row0 * col_w * in_channels, in_channels,
+                        Wn, 0, colRows,
+                        plan.tiledOut, 0, colRows);
+                CpuKernels.col2imNhwc(plan.tiledOut, out_channels, ksize, stride, row0, rows, col_w,
+                        plan.img_padded, padded_h, padded_w);
+            }
+            CpuKernels.unpaddNhwc(plan.img_padded, out_channels, plan.outH, plan.outW, pad, plan.img);
+            CpuKernels.addBetaNhwc(plan.img, out_channels, plan.outH * plan.outW, b);
+            return plan.img;
+        }
+
+        for (int it = 0; it < plan.nTiles; it++) {
+            int row0 = it * plan.tileRows;
+            int rows = Math.min(plan.tileRows, col_h - row0);
+            int tileSize = rows * col_w;
+
+            // The tile is a block of columns of the input, of leading dimension inSize.
+            Sgemm.sgemm(colRows, tileSize, in_channels,
+                    W, 0, in_channels,
+                    input, row0 * col_w, inSize,
+                    plan.tiledOut, 0, tileSize);
+            CpuKernels.col2im(plan.tiledOut, out_channels, ksize, stride, row0, rows, col_w,
+                    plan.img_padded, padded_h, padded_w);
+        }
+
+        CpuKernels.unpadd(plan.img_padded, out_channels, plan.outH, plan.outW, pad, plan.img);
+        CpuKernels.addBeta(plan.img, out_channels, plan.outH * plan.outW, b);
+        return plan.img;
+    }
+
+    /*
+        Fused output stage of a layer with 3 output channels: the deconvolution
+        gathered per output row, the bias, tanh and the packing to ARGB pixels,
+        written to the first outH * outW pixels of argb. Replaces process and
+        CpuKernels.planarToArgb.
+     */
+    public void processToArgb(float[] input, int col_h, int col_w, int[] argb) {
+        if (out_channels != 3) {
+            throw new IllegalStateException("Only a 3 channel output converts to pixels");
+        }
+        outH = ConvolveUtil.get_deconv_outsize(col_h, ksize, stride, pad);
+        outW = ConvolveUtil.get_deconv_outsize(col_w, ksize, stride, pad);
+        if (mLayout == Layout.NHWC) {
+            CpuKernels.deconvolveToArgbNhwc(input, in_channels, col_h, col_w, ksize, stride, pad,
+                    Wn, b, 0, outH, outW, argb);
+            return;
+        }
+        if (mAcc == null || mAcc.length < 3 * outW) {
+            mAcc = new float[3 * outW];
+        }
+        CpuKernels.deconvolveToArgb(input, in_channels, col_h, col_w, ksize, stride, pad,
+                Wn, b, 0, outH, outW, mAcc, argb);
+    }
+}
@@ -0,0 +1,499 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.cpu;
+
+import com.example.android.renderscript_neuralnet.CenterCrop;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+   FastStyle neural net on the CPU, in plain Java, with the same structure and
+   weights as FastStyleModelTiled:
+
+       c1 -> ELU -> b1 -> c2 -> ELU -> b2 -> c3 -> ELU -> b3
+          -> r1 .. r5
+          -> d1 -> ELU -> b4 -> d2 -> ELU -> b5 -> d3 -> tanh
+
+   It does not depend on Android, so it also runs on a desktop JVM: benchmarks,
+   command line tools and servers use it with the model files of the app assets.
+   Like FastStyleModelTiled, a loaded model can be shared by execution contexts,
+   one per thread, created with the sharing constructor.
+*/
+public class CpuFastStyleModel {
+    public static final String DEFAULT_MODEL = "composition";
+    // The styles bundled with the app.
+    public static final String[] STYLES =
+            {"candy", "composition", "fur", "kanagawa", "seurat", "starrynight"};
+
+    /*
+       How far the output pixels see in the input, in pixels, summed over the layers
+       at full resolution: c1 4, c2 2, c3 4 (2 at 1/2), the 10 convolutions of the
+       residual blocks 40 (10 at 1/4), d1 4, d2 2 and d3 4.
+     */
+    public static final int RECEPTIVE_RADIUS = 60;
+    // The crops of the input start on multiples of 4, so that the two stride-2
+    // convolutions sample the same pixels as on the whole image.
+    public static final int ALIGN = 4;
+
+    // The stages of the net, each run in one layout: the convolutions and the
+    // deconvolutions with their ELU and batch normalization, and the residual blocks.
+    public static final String[] STAGES =
+            {"c1", "c2", "c3", "r1", "r2", "r3", "r4", "r5", "d1", "d2", "d3"};
+    // Channels of the image at the input of each stage, and at the output of the net.
+    private static final int[] BOUNDARY_CHANNELS =
+            {3, 32, 64, 128, 128, 128, 128, 128, 128, 64, 32, 3};
+
+    public String mModel = null;
+    private boolean mLoaded = false;
+
+    private final CpuConvolution2D[] mConvLayer;
+    private final CpuResidualBlock[] mResidualLayer;
+    private final CpuDeconvolution2D[] mDeconvLayer;
+    private final CpuBatchNormalization[] mBatchNormLayer;
+
+    // The input of the neural net, per resolution.
+    private float[] mInput;
+    private int mInputH, mInputW;
+    // The input and the output of the crop of stylizeRegion.
+    private int[] mCrop, mCropOutput;
+
+    private final Layout[] mLayouts = new Layout[STAGES.length];
+    // The output of the transform at each boundary between stages.
+    private final float[][] mTransformed = new float[STAGES.length + 1][];
+    // Dimensions of the image between two stages.
+    private int mH, mW;
+    // Time spent in each stage and size of the image at each boundary, while the
+    // layout pass measures them.
+    private long[] mStageNanos;
+    private int[] mStagePixels;
+
+    public CpuFastStyleModel() {
+        mConvLayer = new CpuConvolution2D[3];
+        mResidualLayer = new CpuResidualBlock[5];
+        mDeconvLayer = new CpuDeconvolution2D[3];
+        mBatchNormLayer = new CpuBatchNormalization[5];
+
+        mConvLayer[0] = new CpuConvolution2D(3, 32, 9, 1, 4);
+        mConvLayer[1] = new CpuConvolution2D(32, 64, 4, 2, 1);
+        mConvLayer[2] = new CpuConvolution2D(64, 128, 4, 2, 1);
+
+        for (int i = 0; i < mResidualLayer.length; i++) {
+            mResidualLayer[i] = new CpuResidualBlock(128);
+        }
+
+        mDeconvLayer[0] = new CpuDeconvolution2D(128, 64, 4, 2, 1);
+        mDeconvLayer[1] = new CpuDeconvolution2D(64, 32, 4, 2, 1);
+        mDeconvLayer[2] = new CpuDeconvolution2D(32, 3, 9, 1, 4);
+
+        mBatchNormLayer[0] = new CpuBatchNormalization(32);
+        mBatchNormLayer[1] = new CpuBatchNormalization(64);
+        mBatchNormLayer[2] = new CpuBatchNormalization(128);
+        mBatchNormLayer[3] = new CpuBatchNormalization(64);
+        mBatchNormLayer[4] = new CpuBatchNormalization(32);
+        nameLayers();
+        Arrays.fill(mLayouts, Layout.PLANAR);
+    }
+
+    /*
+       Create another execution context of a loaded model. The weights are shared and
+       become immutable, the intermediate buffers are private to the new context.
+     */
+    public CpuFastStyleModel(CpuFastStyleModel weights) {
+        if (!weights.mLoaded) {
+            throw new IllegalStateException("The model must be loaded before it is shared");
+        }
+        mModel = weights.mModel;
+        mConvLayer = new CpuConvolution2D[weights.mConvLayer.length];
+        for (int i = 0; i < mConvLayer.length; i++) {
+            mConvLayer[i] = new CpuConvolution2D(weights.mConvLayer[i]);
+        }
+        mResidualLayer = new CpuResidualBlock[weights.mResidualLayer.length];
+        for (int i = 0; i < mResidualLayer.length; i++) {
+            mResidualLayer[i] = new CpuResidualBlock(weights.mResidualLayer[i]);
+        }
+        mDeconvLayer = new CpuDeconvolution2D[weights.mDeconvLayer.length];
+        for (int i = 0; i < mDeconvLayer.length; i++) {
+            mDeconvLayer[i] = new CpuDeconvolution2D(weights.mDeconvLayer[i]);
+        }
+        mBatchNormLayer = new CpuBatchNormalization[weights.mBatchNormLayer.length];
+        for (int i = 0; i < mBatchNormLayer.length; i++) {
+            mBatchNormLayer[i] = new CpuBatchNormalization(weights.mBatchNormLayer[i]);
+        }
+        nameLayers();
+        Arrays.fill(mLayouts, Layout.PLANAR);
+        mLoaded = true;
+    }
+
+    private void nameLayers() {
+        for (int i = 0; i < mConvLayer.length; i++) {
+            mConvLayer[i].mName = "c" + (i + 1);
+        }
+        for (int i = 0; i < mResidualLayer.length; i++) {
+            mResidualLayer[i].setName("r" + (i + 1));
+        }
+        for (int i = 0; i < mDeconvLayer.length; i++) {
+            mDeconvLayer[i].mName = "d" + (i + 1);
+        }
+        for (int i = 0; i < mBatchNormLayer.length; i++) {
+            mBatchNormLayer[i].mName = "b" + (i + 1);
+        }
+    }
+
+    /*
+       Run the tiles of the convolutions on the executor, e.g. new TileExecutor(cores)
+       to use the cores on a single image. An executor can be shared by the contexts
+       of a model; by default the tiles run on the calling thread.
+     */
+    public void setExecutor(TileExecutor executor) {
+        for (CpuConvolution2D layer : mConvLayer) {
+            layer.setExecutor(executor);
+        }
+        for (CpuResidualBlock block : mResidualLayer) {
+            block.setExecutor(executor);
+        }
+    }
+
+    // Load the weights of the style from the model files, e.g. "candy/c1/W".
+    public void loadModel(WeightSource source, String modelName) throws IOException {
+        if (modelName == null) {
+            modelName = DEFAULT_MODEL;
+        }
+        for (int i = 1; i <= mConvLayer.length; i++) {
+            mConvLayer[i - 1].loadModel(source, modelName + "/c" + i);
+        }
+        for (int i = 1; i <= mResidualLayer.length; i++) {
+            mResidualLayer[i - 1].loadModel(source, modelName + "/r" + i);
+        }
+        for (int i = 1; i <= mDeconvLayer.length; i++) {
+            mDeconvLayer[i - 1].loadModel(source, modelName + "/d" + i);
+        }
+        for (int i = 1; i <= mBatchNormLayer.length; i++) {
+            mBatchNormLayer[i - 1].loadModel(source, modelName + "/b" + i);
+        }
+        mModel = modelName;
+        mLoaded = true;
+    }
+
+    /*
+       Run the neural net on a planar RGB image with values in [0, 255].
+       Returns the planar output before the tanh, owned by the model and reused
+       by the next call with the same dimensions.
+       The stages run in their layouts, with a transform wherever the layout
+       changes, and the output is converted back to planar if needed.
+     */
+    public float[] process(float[] input, int height, int width) {
+        return processStages(input, height, width, STAGES.length);
+    }
+
+    // Run the stages [0, stages) on the image, and return their output in the
+    // layout of the next stage, or planar at the output of the net.
+    private float[] processStages(float[] input, int height, int width, int stages) {
+        if (!mLoaded) {
+            throw new IllegalStateException("No model loaded");
+        }
+        float[] result = input;
+        Layout layout = Layout.PLANAR;
+        mH = height;
+        mW = width;
+        for (int s = 0; s < stages; s++) {
+            if (mStageNanos != null) {
+                mStagePixels[s] = mH * mW;
+            }
+            if (mLayouts[s] != layout) {
+                result = transform(s, result, layout);
+                layout = mLayouts[s];
+            }
+            long start = mStageNanos == null ? 0 : System.nanoTime();
+            result = processStage(s, result);
+            if (mStageNanos != null) {
+                mStageNanos[s] += System.nanoTime() - start;
+            }
+        }
+        if (mStageNanos != null) {
+            mStagePixels[stages] = mH * mW;
+        }
+        Layout next = stages < STAGES.length ? mLayouts[stages] : Layout.PLANAR;
+        if (layout != next) {
+            result = transform(stages, result, layout);
+        }
+        return result;
+    }
+
+    // Run the stage s on the mH x mW image, and update mH and mW to its output.
+    private float[] processStage(int s, float[] input) {
+        float[] result;
+        if (s < 3) {
+            CpuConvolution2D conv = mConvLayer[s];
+            result = conv.process(input, mH, mW);
+            mH = conv.outH;
+            mW = conv.outW;
+            CpuKernels.elu(result, conv.out_channels * mH * mW);
+            mBatchNormLayer[s].process(result, mH, mW);
+        } else if (s < 3 + mResidualLayer.length) {
+            result = mResidualLayer[s - 3].process(input, mH, mW);
+        } else if (s < STAGES.length - 1) {
+            int d = s - 3 - mResidualLayer.length;
+            CpuDeconvolution2D deconv = mDeconvLayer[d];
+            result = deconv.process(input, mH, mW);
+            mH = deconv.outH;
+            mW = deconv.outW;
+            CpuKernels.elu(result, deconv.out_channels * mH * mW);
+            mBatchNormLayer[3 + d].process(result, mH, mW);
+        } else {
+            CpuDeconvolution2D deconv = mDeconvLayer[2];
+            result = deconv.process(input, mH, mW);
+            mH = deconv.outH;
+            mW = deconv.outW;
+        }
+        return result;
+    }
+
+    // Convert the mH x mW image at the input of the stage s, or at the output of the
+    // net, from the layout to the other one, into the buffer of the boundary.
+    private float[] transform(int boundary, float[] input, Layout from) {
+        int channels = BOUNDARY_CHANNELS[boundary];
+        int size = mH * mW;
+        float[] out = mTransformed[boundary];
+        if (out == null || out.length != channels * size) {
+            out = new float[channels * size];
+            mTransformed[boundary] = out;
+        }
+        if (from == Layout.PLANAR) {
+            CpuKernels.transpose(input, channels, size, out);
+        } else {
+            CpuKernels.transpose(input, size, channels, out);
+        }
+        return out;
+    }
+
+    // The same layout for all the stages.
+    public void setLayout(Layout layout) {
+        Layout[] layouts = new Layout[STAGES.length];
+        Arrays.fill(layouts, layout);
+        setLayouts(layouts);
+    }
+
+    // The layout of each stage of STAGES.
+    public void setLayouts(Layout[] layouts) {
+        if (layouts.length != STAGES.length) {
+            throw new IllegalArgumentException("Expected " + STAGES.length + " layouts");
+        }
+        System.arraycopy(layouts, 0, mLayouts, 0, layouts.length);
+        for (int i = 0; i < mConvLayer.length; i++) {
+            mConvLayer[i].setLayout(layouts[i]);
+            mBatchNormLayer[i].setLayout(layouts[i]);
+        }
+        for (int i = 0; i < mResidualLayer.length; i++) {
+            mResidualLayer[i].setLayout(layouts[3 + i]);
+        }
+        for (int i = 0; i < mDeconvLayer.length; i++) {
+            Layout layout = layouts[3 + mResidualLayer.length + i];
+            mDeconvLayer[i].setLayout(layout);
+            if (3 + i < mBatchNormLayer.length) {
+                mBatchNormLayer[3 + i].setLayout(layout);
+            }
+        }
+    }
+
+    public Layout[] getLayouts() {
+        return mLayouts.clone();
+    }
+
+    /*
+       The layout pass: time each stage in each layout and the transforms at the
+       boundaries on a height x width image, choose the layouts with LayoutPass and
+       set them. Returns the chosen layouts.
+     */
+    public Layout[] chooseLayouts(int height, int width) {
+        float[] input = new float[3 * height * width];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (i * 7919) % 256;
+        }
+
+        long[][] stageCost = new long[STAGES.length][Layout.values().length];
+        for (Layout layout : Layout.values()) {
+            setLayout(layout);
+            // The first run builds the plans and warms up the code.
+            process(input, height, width);
+            mStageNanos = new long[STAGES.length];
+            mStagePixels = new int[STAGES.length + 1];
+            process(input, height, width);
+            for (int s = 0; s < STAGES.length; s++) {
+                stageCost[s][layout.ordinal()] = mStageNanos[s];
+            }
+            mStageNanos = null;
+        }
+
+        long[] transformCost = new long[STAGES.length + 1];
+        for (int b = 0; b <= STAGES.length; b++) {
+            int size = mStagePixels[b];
+            float[] data = new float[BOUNDARY_CHANNELS[b] * size];
+            float[] out = new float[data.length];
+            CpuKernels.transpose(data, BOUNDARY_CHANNELS[b], size, out);
+            long start = System.nanoTime();
+            CpuKernels.transpose(data, BOUNDARY_CHANNELS[b], size, out);
+            transformCost[b] = System.nanoTime() - start;
+        }
+        mStagePixels = null;
+
+        Layout[] layouts = LayoutPass.plan(stageCost, transformCost);
+        setLayouts(layouts);
+        return layouts;
+    }
+
+    // Stylize ARGB pixels, e.g. from Bitmap.getPixels or BufferedImage.getRGB.
+    public int[] stylize(int[] argb, int height, int width) {
+        int[] result = new int[height * width];
+        stylize(argb, height, width, result);
+        return result;
+    }
+
+    // Same as above into the output array. Only the first height * width pixels of
+    // both arrays are used, so buffers sized for a larger image can be reused.
+    public void stylize(int[] argb, int height, int width, int[] output) {
+        CpuKernels.argbToPlanar(argb, height * width, input(height, width));
+        stylizeInput(height, width, output);
+    }
+
+    /*
+       Stylize the center size x size square of the image scaled so that its shorter
+       side is size, into the first size * size pixels of output. The pixels are read
+       once, by CpuKernels.ingest straight into the input of the net, without a
+       scaled nor a cropped copy of the image. Row y of the image starts at
+       offset + y * stride.
+     */
+    public void stylizeCenter(int[] argb, int offset, int stride, int height, int width,
+                              int size, int[] output) {
+        CenterCrop crop = new CenterCrop(height, width, size);
+        CpuKernels.ingest(argb, offset, stride, height, width,
+                crop.scaledH, crop.scaledW, crop.cropY, crop.cropX, size, size, input(size, size));
+        stylizeInput(size, size, output);
+    }
+
+    // Same as above from RGBA bytes, e.g. a direct buffer filled by
+    // Bitmap.copyPixelsToBuffer, row y starting at y * rowStride bytes.
+    public void stylizeCenter(ByteBuffer rgba, int rowStride, int height, int width,
+                              int size, int[] output) {
+        CenterCrop crop = new CenterCrop(height, width, size);
+        CpuKernels.ingest(rgba, rowStride, height, width,
+                crop.scaledH, crop.scaledW, crop.cropY, crop.cropX, size, size, input(size, size));
+        stylizeInput(size, size, output);
+    }
+
+    // The input of the net for the resolution.
+    private float[] input(int height, int width) {
+        if (mInput == null || mInputH != height || mInputW != width) {
+            mInput = new float[3 * height * width];
+            mInputH = height;
+            mInputW = width;
+        }
+        return mInput;
+    }
+
+    // Run the net on mInput into the ARGB pixels of output.
+    private void stylizeInput(int height, int width, int[] output) {
+        // The last deconvolution writes the pixels itself, tanh included.
+        float[] result = processStages(mInput, height, width, STAGES.length - 1);
+        mDeconvLayer[2].processToArgb(result, mH, mW, output);
+    }
+
+    /*
+       Stylize only the rectangle [left, right) x [top, bottom) of the image, into the
+       same rectangle of output; the rest of output is left untouched.
+       The net runs on the rectangle plus RECEPTIVE_RADIUS pixels around it, aligned
+       to ALIGN, which gives the same pixels as stylizing the whole image: each layer
+       adds up the terms of an output pixel in the same order on the crop as on the
+       image, whatever its tiling, see CpuKernels.col2im.
+       The dimensions of the image must be multiples of ALIGN.
+     */
+    public void stylizeRegion(int[] argb, int height, int width,
+                              int left, int top, int right, int bottom, int[] output) {
+        if (height % ALIGN != 0 || width % ALIGN != 0) {
+            throw new IllegalArgumentException("The dimensions must be multiples of " + ALIGN);
+        }
+        left = Math.max(0, left);
+        top = Math.max(0, top);
+        right = Math.min(width, right);
+        bottom = Math.min(height, bottom);
+        if (left >= right || top >= bottom) {
+            return;
+        }
+        int cropLeft = Math.max(0, (left - RECEPTIVE_RADIUS) / ALIGN * ALIGN);
+        int cropTop = Math.max(0, (top - RECEPTIVE_RADIUS) / ALIGN * ALIGN);
+        int cropRight = Math.min(width, (right + RECEPTIVE_RADIUS + ALIGN - 1) / ALIGN * ALIGN);
+        int cropBottom = Math.min(height, (bottom + RECEPTIVE_RADIUS + ALIGN - 1) / ALIGN * ALIGN);
+        int cropW = cropRight - cropLeft;
+        int cropH = cropBottom - cropTop;
+        if (cropW == width && cropH == height) {
+            // The halo covers the whole image.
+            if (mCropOutput == null || mCropOutput.length < height * width) {
+                mCropOutput = new int[height * width];
+            }
+            stylize(argb, height, width, mCropOutput);
+            copyRect(mCropOutput, width, left, top, output, width, left, top, right - left, bottom - top);
+            return;
+        }
+
+        int cropSize = cropW * cropH;
+        if (mCrop == null || mCrop.length < cropSize) {
+            mCrop = new int[cropSize];
+        }
+        if (mCropOutput == null || mCropOutput.length < cropSize) {
+            mCropOutput = new int[cropSize];
+        }
+        copyRect(argb, width, cropLeft, cropTop, mCrop, cropW, 0, 0, cropW, cropH);
+        stylize(mCrop, cropH, cropW, mCropOutput);
+        copyRect(mCropOutput, cropW, left - cropLeft, top - cropTop, output, width, left, top,
+                right - left, bottom - top);
+    }
+
+    /*
+       Update the output of an image after an edit of the rectangle [left, right) x
+       [top, bottom) of its input, e.g. a stroke of a brush.
+       input is the previous input with the edit applied, output the previous output
+       of the model, patched in place. Only the output pixels which see the rectangle,
+       up to RECEPTIVE_RADIUS pixels around it, are recomputed.
+       Returns the patched rectangle {left, top, right, bottom}, to redraw.
+       Only the CPU backend has it: the RenderScript models, FastStyleModel and
+       FastStyleModelTiled, still stylize the whole image after an edit.
+     */
+    public int[] restylize(int[] input, int height, int width,
+                           int left, int top, int right, int bottom, int[] output) {
+        int[] patched = influencedRegion(height, width, left, top, right, bottom);
+        stylizeRegion(input, height, width, patched[0], patched[1], patched[2], patched[3], output);
+        return patched;
+    }
+
+    // The output rectangle {left, top, right, bottom} which an edit of the input
+    // rectangle changes, clamped to the image.
+    public static int[] influencedRegion(int height, int width, int left, int top, int right, int bottom) {
+        return new int[]{
+                Math.max(0, left - RECEPTIVE_RADIUS),
+                Math.max(0, top - RECEPTIVE_RADIUS),
+                Math.min(width, right + RECEPTIVE_RADIUS),
+                Math.min(height, bottom + RECEPTIVE_RADIUS)};
+    }
+
+    // Copy a w x h rectangle between two images of the given row strides.
+    private static void copyRect(int[] src, int srcStride, int srcX, int srcY,
+                                 int[] dst, int dstStride, int dstX, int dstY, int w, int h) {
+        for (int y = 0; y < h; y++) {
+            System.arraycopy(src, (srcY + y) * srcStride + srcX, dst, (dstY + y) * dstStride + dstX, w);
+        }
+    }
+}
@@ -0,0 +1,564 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.cpu;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+   The kernels of the CPU backend, the Java counterparts of the RenderScript
+   kernels in convolve2d.rs, deconvolve2d.rs, batchnormalization.rs, activation.rs,
+   residualblock.rs and img2alloc.rs.
+
+   Images are planar float arrays, like the Allocations of the RenderScript layers:
+   channel c of an h x w image starts at c * h * w. The kernels suffixed with Nhwc
+   work on images of the NHWC layout instead, see Layout.
+*/
+public final class CpuKernels {
+    private CpuKernels() {
+    }
+
+    // Copy the interior of the padded image to the image.
+    public static void unpadd(float[] padded, int channels, int img_h, int img_w, int pad,
+                              float[] img) {
+        int padded_h = img_h + 2 * pad;
+        int padded_w = img_w + 2 * pad;
+        for (int ic = 0; ic < channels; ic++) {
+            for (int ih = 0; ih < img_h; ih++) {
+                int src = (ic * padded_h + ih + pad) * padded_w + pad;
+                int dst = (ic * img_h + ih) * img_w;
+                System.arraycopy(padded, src, img, dst, img_w);
+            }
+        }
+    }
+
+    /*
+       Tiled im2col: rearrange the patches of the output rows [row0, row0 + rows)
+       into the column matrix col, of (channels * ksize * ksize) rows and
+       (rows * out_w) columns.
+       The image is read in place: the pixels of the pad wide border are out of the
+       image and written as zeros, so there is no padded copy of the image. Each
+       row of the column matrix is split into its zero columns on both sides and
+       the columns inside the image, computed once per kernel offset.
+     */
+    public static void im2col(float[] img, int channels, int img_h, int img_w, int pad,
+                              int ksize, int stride, int row0, int rows, int out_w,
+                              float[] col) {
+        int tileSize = rows * out_w;
+        int colRow = 0;
+        for (int ic = 0; ic < channels; ic++) {
+            int plane = ic * img_h * img_w;
+            for (int ikh = 0; ikh < ksize; ikh++) {
+                for (int ikw = 0; ikw < ksize; ikw++) {
+                    // The output columns [iwBegin, iwEnd) read inside the image.
+                    int x0 = ikw - pad;
+                    int iwBegin = x0 >= 0 ? 0 : Math.min(out_w, (-x0 + stride - 1) / stride);
+                    int iwEnd = Math.max(iwBegin, Math.min(out_w, (img_w - x0 + stride - 1) / stride));
+                    int dst = colRow * tileSize;
+                    for (int ih = 0; ih < rows; ih++) {
+                        int y = (row0 + ih) * stride + ikh - pad;
+                        if (y < 0 || y >= img_h) {
+                            Arrays.fill(col, dst, dst + out_w, 0.0f);
+                            dst += out_w;
+                            continue;
+                        }
+                        Arrays.fill(col, dst, dst + iwBegin, 0.0f);
+                        int src = plane + y * img_w + x0;
+                        if (stride == 1) {
+                            System.arraycopy(img, src + iwBegin, col, dst + iwBegin, iwEnd - iwBegin);
+                        } else {
+                            for (int iw = iwBegin; iw < iwEnd; iw++) {
+                                col[dst + iw] = img[src + iw * stride];
+                            }
+                        }
+                        Arrays.fill(col, dst + iwEnd, dst + out_w, 0.0f);
+                        dst += out_w;
+                    }
+                    colRow++;
+                }
+            }
+        }
+    }
+
+    /*
+       Direct convolution of the output rows [row0, row0 + rows), bias included, for
+       the layers with few input channels, see ConvolveUtil.use_direct_conv. There is
+       no column matrix: each weight of the window, held in a register, sweeps a row
+       of output pixels read in place from the image, so the output row stays in the
+       cache over the whole window. The products are summed in the order of
+       im2col + Sgemm, which gives the same output.
+     */
+    public static void convolveDirect(float[] img, int channels, int img_h, int img_w, int pad,
+                                      int ksize, int stride, float[] W, float[] b, int out_channels,
+                                      int row0, int rows, int out_h, int out_w, float[] out) {
+        int K = channels * ksize * ksize;
+        int outSize = out_h * out_w;
+        for (int oc = 0; oc < out_channels; oc++) {
+            for (int ih = row0; ih < row0 + rows; ih++) {
+                int dst = oc * outSize + ih * out_w;
+                Arrays.fill(out, dst, dst + out_w, 0.0f);
+                int k = oc * K;
+                for (int ic = 0; ic < channels; ic++) {
+                    int plane = ic * img_h * img_w;
+                    for (int ikh = 0; ikh < ksize; ikh++) {
+                        int y = ih * stride + ikh - pad;
+                        if (y < 0 || y >= img_h) {
+                            k += ksize;
+                            continue;
+                        }
+                        for (int ikw = 0; ikw < ksize; ikw++) {
+                            float w = W[k++];
+                            if (w == 0.0f) {
+                                continue;
+                            }
+                            // The output columns [iwBegin, iwEnd) read inside the image.
+                            int x0 = ikw - pad;
+                            int iwBegin = x0 >= 0 ? 0 : Math.min(out_w, (-x0 + stride - 1) / stride);
+                            int iwEnd = Math.min(out_w, (img_w - x0 + stride - 1) / stride);
+                            int src = plane + y * img_w + x0;
+                            if (stride == 1) {
+                                for (int iw = iwBegin; iw < iwEnd; iw++) {
+                                    out[dst + iw] += w * img[src + iw];
+                                }
+                            } else {
+                                for (int iw = iwBegin; iw < iwEnd; iw++) {
+                                    out[dst + iw] += w * img[src + iw * stride];
+                                }
+                            }
+                        }
+                    }
+                }
+                float beta = b[oc];
+                for (int iw = 0; iw < out_w; iw++) {
+                    out[dst + iw] += beta;
+                }
+            }
+        }
+    }
+
+    /*
+       NHWC direct convolution of the output rows [row0, row0 + rows), bias included.
+       Each input pixel of the window of an output pixel, held in a register, sweeps
+       the transposed weights Wt of all the output channels, which are accumulated
+       in place in the output pixel. The products are summed in the order of
+       im2colNhwc + Sgemm.
+     */
+    public static void convolveDirectNhwc(float[] img, int channels, int img_h, int img_w, int pad,
+                                          int ksize, int stride, float[] Wt, float[] b, int out_channels,
+                                          int row0, int rows, int out_w, float[] out) {
+        for (int ih = row0; ih < row0 + rows; ih++) {
+            for (int iw = 0; iw < out_w; iw++) {
+                int dst = (ih * out_w + iw) * out_channels;
+                Arrays.fill(out, dst, dst + out_channels, 0.0f);
+                for (int ikh = 0; ikh < ksize; ikh++) {
+                    int y = ih * stride + ikh - pad;
+                    if (y < 0 || y >= img_h) {
+                        continue;
+                    }
+                    for (int ikw = 0; ikw < ksize; ikw++) {
+                        int x = iw * stride + ikw - pad;
+                        if (x < 0 || x >= img_w) {
+                            continue;
+                        }
+                        int src = (y * img_w + x) * channels;
+                        int wRow = (ikh * ksize + ikw) * channels * out_channels;
+                        for (int ic = 0; ic < channels; ic++) {
+                            float v = img[src + ic];
+                            if (v != 0.0f) {
+                                for (int oc = 0; oc < out_channels; oc++) {
+                                    out[dst + oc] += v * Wt[wRow + oc];
+                                }
+                            }
+                            wRow += out_channels;
+                        }
+                    }
+                }
+                for (int oc = 0; oc < out_channels; oc++) {
+                    out[dst + oc] += b[oc];
+                }
+            }
+        }
+    }
+
+    /*
+       Tiled col2im: accumulate the column matrix of the input rows [row0, row0 + rows)
+       into the padded image. col has (channels * ksize * ksize) rows and
+       (rows * col_w) columns.
+       Each output pixel adds up its contributions in the order of the input pixels,
+       row by row, like col2imNhwc: the kernel columns are swept backwards so that the
+       input columns go forward. The sums are then the same whatever the tiling of the
+       rows, and on a crop of the input, as long as it sees all of their terms.
+     */
+    public static void col2im(float[] col, int channels, int ksize, int stride,
+                              int row0, int rows, int col_w,
+                              float[] padded, int padded_h, int padded_w) {
+        int tileSize = rows * col_w;
+        for (int ic = 0; ic < channels; ic++) {
+            int plane = ic * padded_h * padded_w;
+            for (int ih = 0; ih < rows; ih++) {
+                for (int ikh = 0; ikh < ksize; ikh++) {
+                    int dstRow = plane + ((row0 + ih) * stride + ikh) * padded_w;
+                    for (int ikw = ksize - 1; ikw >= 0; ikw--) {
+                        int src = ((ic * ksize + ikh) * ksize + ikw) * tileSize + ih * col_w;
+                        int dst = dstRow + ikw;
+                        for (int iw = 0; iw < col_w; iw++) {
+                            padded[dst + iw * stride] += col[src + iw];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+       NHWC im2col: rearrange the patches of the output rows [row0, row0 + rows) of an
+       NHWC image into the column matrix col, of (rows * out_w) rows, one per output
+       pixel, and (ksize * ksize * channels) columns, ordered by kernel row, kernel
+       column and channel. The padding is written as zeros, like im2col.
+     */
+    public static void im2colNhwc(float[] img, int channels, int img_h, int img_w, int pad,
+                                  int ksize, int stride, int row0, int rows, int out_w,
+                                  float[] col) {
+        int run = ksize * channels;
+        int dst = 0;
+        for (int ih = 0; ih < rows; ih++) {
+            int y0 = (row0 + ih) * stride - pad;
+            for (int iw = 0; iw < out_w; iw++) {
+                int x0 = iw * stride - pad;
+                // The kernel columns [kwBegin, kwEnd) read inside the image.
+                int kwBegin = Math.min(ksize, Math.max(0, -x0));
+                int kwEnd = Math.max(kwBegin, Math.min(ksize, img_w - x0));
+                for (int ikh = 0; ikh < ksize; ikh++) {
+                    int y = y0 + ikh;
+                    if (y < 0 || y >= img_h) {
+                        Arrays.fill(col, dst, dst + run, 0.0f);
+                    } else {
+                        Arrays.fill(col, dst, dst + kwBegin * channels, 0.0f);
+                        System.arraycopy(img, (y * img_w + x0 + kwBegin) * channels,
+                                col, dst + kwBegin * channels, (kwEnd - kwBegin) * channels);
+                        Arrays.fill(col, dst + kwEnd * channels, dst + run, 0.0f);
+                    }
+                    dst += run;
+                }
+            }
+        }
+    }
+
+    /*
+       NHWC col2im: accumulate the column matrix of the input rows [row0, row0 + rows)
+       into the padded NHWC image. col has (rows * col_w) rows, one per input pixel,
+       and (ksize * ksize * channels) columns, ordered like those of im2colNhwc.
+     */
+    public static void col2imNhwc(float[] col, int channels, int ksize, int stride,
+                                  int row0, int rows, int col_w,
+                                  float[] padded, int padded_h, int padded_w) {
+        int run = ksize * channels;
+        int src = 0;
+        for (int ih = 0; ih < rows; ih++) {
+            for (int iw = 0; iw < col_w; iw++) {
+                for (int ikh = 0; ikh < ksize; ikh++) {
+                    int dst = (((row0 + ih) * stride + ikh) * padded_w + iw * stride) * channels;
+                    for (int i = 0; i < run; i++) {
+                        padded[dst + i] += col[src++];
+                    }
+                }
+            }
+        }
+    }
+
+    // Copy the interior of the padded NHWC image to the NHWC image.
+    public static void unpaddNhwc(float[] padded, int channels, int img_h, int img_w, int pad,
+                                  float[] img) {
+        int padded_w = img_w + 2 * pad;
+        for (int ih = 0; ih < img_h; ih++) {
+            System.arraycopy(padded, ((ih + pad) * padded_w + pad) * channels,
+                    img, ih * img_w * channels, img_w * channels);
+        }
+    }
+
+    /*
+       Transpose the rows x cols matrix src into dst, in blocks which stay in the
+       cache. Converts a planar image of c channels and n pixels to NHWC with
+       (c, n), and back with (n, c).
+     */
+    public static void transpose(float[] src, int rows, int cols, float[] dst) {
+        final int block = 32;
+        for (int i0 = 0; i0 < rows; i0 += block) {
+            int iEnd = Math.min(i0 + block, rows);
+            for (int j0 = 0; j0 < cols; j0 += block) {
+                int jEnd = Math.min(j0 + block, cols);
+                for (int i = i0; i < iEnd; i++) {
+                    for (int j = j0; j < jEnd; j++) {
+                        dst[j * rows + i] = src[i * cols + j];
+                    }
+                }
+            }
+        }
+    }
+
+    // Add the bias of each channel to an NHWC image of size pixels.
+    public static void addBetaNhwc(float[] data, int channels, int size, float[] b) {
+        for (int i = 0; i < size; i++) {
+            int base = i * channels;
+            for (int ic = 0; ic < channels; ic++) {
+                data[base + ic] += b[ic];
+            }
+        }
+    }
+
+    // Batch normalization of an NHWC image of size pixels, in place.
+    public static void batchNormNhwc(float[] data, int channels, int size,
+                                     float[] mean, float[] var, float[] gamma, float[] beta) {
+        float[] scale = new float[channels];
+        float[] shift = new float[channels];
+        for (int ic = 0; ic < channels; ic++) {
+            scale[ic] = gamma[ic] / (float) Math.sqrt(var[ic]);
+            shift[ic] = beta[ic] - mean[ic] * scale[ic];
+        }
+        for (int i = 0; i < size; i++) {
+            int base = i * channels;
+            for (int ic = 0; ic < channels; ic++) {
+                data[base + ic] = data[base + ic] * scale[ic] + shift[ic];
+            }
+        }
+    }
+
+    // Add the bias of each channel.
+    public static void addBeta(float[] data, int channels, int size, float[] b) {
+        for (int ic = 0; ic < channels; ic++) {
+            float beta = b[ic];
+            int end = (ic + 1) * size;
+            for (int i = ic * size; i < end; i++) {
+                data[i] += beta;
+            }
+        }
+    }
+
+    // Batch normalization with the averaged statistics, in place.
+    public static void batchNorm(float[] data, int channels, int size,
+                                 float[] mean, float[] var, float[] gamma, float[] beta) {
+        for (int ic = 0; ic < channels; ic++) {
+            float scale = gamma[ic] / (float) Math.sqrt(var[ic]);
+            float shift = beta[ic] - mean[ic] * scale;
+            int end = (ic + 1) * size;
+            for (int i = ic * size; i < end; i++) {
+                data[i] = data[i] * scale + shift;
+            }
+        }
+    }
+
+    public static void relu(float[] data, int count) {
+        for (int i = 0; i < count; i++) {
+            if (data[i] < 0.0f) {
+                data[i] = 0.0f;
+            }
+        }
+    }
+
+    public static void elu(float[] data, int count) {
+        for (int i = 0; i < count; i++) {
+            float in = data[i];
+            if (in < 0.0f) {
+                data[i] = (float) Math.exp(in) - 1.0f;
+            }
+        }
+    }
+
+    // data += other, for the residual connections.
+    public static void add(float[] data, float[] other, int count) {
+        for (int i = 0; i < count; i++) {
+            data[i] += other[i];
+        }
+    }
+
+    // Convert ARGB pixels to a planar RGB float image, with values in [0, 255].
+    public static void argbToPlanar(int[] argb, int size, float[] out) {
+        for (int i = 0; i < size; i++) {
+            int p = argb[i];
+            out[i] = (p >> 16) & 0xff;
+            out[size + i] = (p >> 8) & 0xff;
+            out[2 * size + i] = p & 0xff;
+        }
+    }
+
+    /*
+       Fused output stage of the last layer, a deconvolution to 3 channels: the output
+       rows [row0, row0 + rows) gathered from the planar input, the bias, tanh and the
+       packing to opaque ARGB pixels, without the column matrix, the padded image
+       nor the float output. Wn is the weight of the layer, in_channels x
+       (ksize * ksize * 3). Each weight of a kernel offset, held in a register, sweeps
+       the row of the input it reaches into its row of acc, 3 rows of out_w floats.
+     */
+    public static void deconvolveToArgb(float[] in, int channels, int in_h, int in_w,
+                                        int ksize, int stride, int pad, float[] Wn, float[] b,
+                                        int row0, int rows, int out_w, float[] acc, int[] argb) {
+        int colRows = 3 * ksize * ksize;
+        for (int y = row0; y < row0 + rows; y++) {
+            Arrays.fill(acc, 0, out_w, b[0]);
+            Arrays.fill(acc, out_w, 2 * out_w, b[1]);
+            Arrays.fill(acc, 2 * out_w, 3 * out_w, b[2]);
+            for (int ikh = 0; ikh < ksize; ikh++) {
+                // The input row whose window reaches the output row at ikh.
+                int ty = y + pad - ikh;
+                if (ty < 0 || ty % stride != 0 || ty / stride >= in_h) {
+                    continue;
+                }
+                int iy = ty / stride;
+                for (int ikw = 0; ikw < ksize; ikw++) {
+                    // The input columns [ixBegin, ixEnd) reach the output columns
+                    // x0 + ix * stride inside the output.
+                    int x0 = ikw - pad;
+                    int ixBegin = x0 >= 0 ? 0 : Math.min(in_w, (-x0 + stride - 1) / stride);
+                    int ixEnd = Math.min(in_w, (out_w - x0 + stride - 1) / stride);
+                    int k = (ikh * ksize + ikw) * 3;
+                    for (int ic = 0; ic < channels; ic++) {
+                        int src = (ic * in_h + iy) * in_w;
+                        for (int oc = 0; oc < 3; oc++) {
+                            float w = Wn[ic * colRows + k + oc];
+                            int dst = oc * out_w + x0;
+                            if (stride == 1) {
+                                for (int ix = ixBegin; ix < ixEnd; ix++) {
+                                    acc[dst + ix] += w * in[src + ix];
+                                }
+                            } else {
+                                for (int ix = ixBegin; ix < ixEnd; ix++) {
+                                    acc[dst + ix * stride] += w * in[src + ix];
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            int dst = y * out_w;
+            for (int x = 0; x < out_w; x++) {
+                int r = (int) ((Math.tanh(acc[x]) + 1) * 127.5);
+                int g = (int) ((Math.tanh(acc[out_w + x]) + 1) * 127.5);
+                int bl = (int) ((Math.tanh(acc[2 * out_w + x]) + 1) * 127.5);
+                argb[dst + x] = 0xff000000 | (r << 16) | (g << 8) | bl;
+            }
+        }
+    }
+
+    // Same as above with an NHWC input: the pixels of the window are gathered, their
+    // channels contiguous, for each output pixel, into 3 accumulators.
+    public static void deconvolveToArgbNhwc(float[] in, int channels, int in_h, int in_w,
+                                            int ksize, int stride, int pad, float[] Wn, float[] b,
+                                            int row0, int rows, int out_w, int[] argb) {
+        int colRows = 3 * ksize * ksize;
+        for (int y = row0; y < row0 + rows; y++) {
+            for (int x = 0; x < out_w; x++) {
+                float r = b[0];
+                float g = b[1];
+                float bl = b[2];
+                for (int ikh = 0; ikh < ksize; ikh++) {
+                    int ty = y + pad - ikh;
+                    if (ty < 0 || ty % stride != 0 || ty / stride >= in_h) {
+                        continue;
+                    }
+                    for (int ikw = 0; ikw < ksize; ikw++) {
+                        int tx = x + pad - ikw;
+                        if (tx < 0 || tx % stride != 0 || tx / stride >= in_w) {
+                            continue;
+                        }
+                        int src = ((ty / stride) * in_w + tx / stride) * channels;
+                        int w = (ikh * ksize + ikw) * 3;
+                        for (int ic = 0; ic < channels; ic++) {
+                            float v = in[src + ic];
+                            r += v * Wn[w];
+                            g += v * Wn[w + 1];
+                            bl += v * Wn[w + 2];
+                            w += colRows;
+                        }
+                    }
+                }
+                int ri = (int) ((Math.tanh(r) + 1) * 127.5);
+                int gi = (int) ((Math.tanh(g) + 1) * 127.5);
+                int bi = (int) ((Math.tanh(bl) + 1) * 127.5);
+                argb[y * out_w + x] = 0xff000000 | (ri << 16) | (gi << 8) | bi;
+            }
+        }
+    }
+
+    /*
+       Ingestion of the input in one pass: the out_h x out_w crop at (cropY, cropX) of
+       the srcH x srcW image scaled to scaledH x scaledW, converted to the planar
+       input of the neural net. The scale is nearest neighbour, sampling the source
+       at the centers of the scaled pixels like Bitmap.createScaledBitmap without
+       filtering, so no scaled nor cropped copy of the image is made, and only the
+       sampled source pixels are read.
+       The pixels are ARGB ints, e.g. from Bitmap.getPixels, row y of the source
+       starting at offset + y * stride.
+     */
+    public static void ingest(int[] argb, int offset, int stride, int srcH, int srcW,
+                              int scaledH, int scaledW, int cropY, int cropX,
+                              int out_h, int out_w, float[] out) {
+        int size = out_h * out_w;
+        int[] columns = sampleColumns(srcW, scaledW, cropX, out_w);
+        for (int oy = 0; oy < out_h; oy++) {
+            int row = offset + sample(cropY + oy, srcH, scaledH) * stride;
+            int dst = oy * out_w;
+            for (int ox = 0; ox < out_w; ox++) {
+                int p = argb[row + columns[ox]];
+                out[dst + ox] = (p >> 16) & 0xff;
+                out[size + dst + ox] = (p >> 8) & 0xff;
+                out[2 * size + dst + ox] = p & 0xff;
+            }
+        }
+    }
+
+    // Same as above from RGBA bytes, e.g. Bitmap.copyPixelsToBuffer of an
+    // ARGB_8888 bitmap or a mapped frame, row y starting at y * rowStride bytes.
+    public static void ingest(ByteBuffer rgba, int rowStride, int srcH, int srcW,
+                              int scaledH, int scaledW, int cropY, int cropX,
+                              int out_h, int out_w, float[] out) {
+        int size = out_h * out_w;
+        int[] columns = sampleColumns(srcW, scaledW, cropX, out_w);
+        for (int oy = 0; oy < out_h; oy++) {
+            int row = sample(cropY + oy, srcH, scaledH) * rowStride;
+            int dst = oy * out_w;
+            for (int ox = 0; ox < out_w; ox++) {
+                int src = row + 4 * columns[ox];
+                out[dst + ox] = rgba.get(src) & 0xff;
+                out[size + dst + ox] = rgba.get(src + 1) & 0xff;
+                out[2 * size + dst + ox] = rgba.get(src + 2) & 0xff;
+            }
+        }
+    }
+
+    // The source pixel sampled by the scaled pixel i, when src pixels scale to scaled.
+    private static int sample(int i, int src, int scaled) {
+        return (int) Math.min(src - 1, ((2L * i + 1) * src) / (2L * scaled));
+    }
+
+    // The source columns sampled by the columns [cropX, cropX + out_w) of the scaled image.
+    private static int[] sampleColumns(int srcW, int scaledW, int cropX, int out_w) {
+        int[] columns = new int[out_w];
+        for (int ox = 0; ox < out_w; ox++) {
+            columns[ox] = sample(cropX + ox, srcW, scaledW);
+        }
+        return columns;
+    }
+
+    // Convert the planar output of the neural net to opaque ARGB pixels.
+    public static void planarToArgb(float[] nn, int size, int[] argb) {
+        for (int i = 0; i < size; i++) {
+            int r = (int) ((Math.tanh(nn[i]) + 1) * 127.5);
+            int g = (int) ((Math.tanh(nn[size + i]) + 1) * 127.5);
+            int b = (int) ((Math.tanh(nn[2 * size + i]) + 1) * 127.5);
+            argb[i] = 0xff000000 | (r << 16) | (g << 8) | b;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.cpu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+   Base of the layers of the CPU backend, the counterpart of NeuralNetLayerBase.
+   Like the RenderScript layers, a layer holds its weights and the intermediate
+   buffers of the resolutions it processed; a copy created with the sharing
+   constructor reuses the weights and owns its buffers, so that each thread can
+   run its own copy.
+*/
+public abstract class CpuLayerBase {
+    // Name of the layer in the benchmark reports, e.g. "c1" or "r3.c2".
+    public String mName = "";
+
+    // Set once the weights of the layer are shared with another execution context.
+    protected boolean mWeightsShared = false;
+
+    public CpuLayerBase() {
+    }
+
+    public CpuLayerBase(CpuLayerBase shared) {
+        shared.mWeightsShared = true;
+        mWeightsShared = true;
+        mName = shared.mName;
+    }
+
+    protected void checkWeightsWritable() {
+        if (mWeightsShared) {
+            throw new IllegalStateException("Weights are shared with another execution context");
+        }
+    }
+
+    abstract public void loadModel(WeightSource source, String path) throws IOException;
+
+    // Read count native-order floats from the model file into the array.
+    protected static void readFloats(WeightSource source, String path, float[] out)
+            throws IOException {
+        InputStream in = source.open(path);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, len);
+            }
+            ByteBuffer bb = ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.nativeOrder());
+            if (bb.remaining() < out.length * 4) {
+                throw new IOException(path + ": expected " + out.length + " floats, found " +
+                        bb.remaining() / 4);
+            }
+            bb.asFloatBuffer().get(out);
+        } finally {
+            in.close();
+        }
+    }
+}
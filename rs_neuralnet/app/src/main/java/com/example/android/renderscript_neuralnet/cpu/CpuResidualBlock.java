@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.cpu;
+
+import java.io.IOException;
+
+/*
+    Residual block on the CPU, the counterpart of ResidualBlock:
+
+        out = input + BN2(Conv2(ReLU(BN1(Conv1(input)))))
+
+    The convolutions are 3 x 3, stride 1, pad 1, so the image size is unchanged.
+*/
+public class CpuResidualBlock extends CpuLayerBase {
+    final int channels;
+    final CpuConvolution2D c1, c2;
+    final CpuBatchNormalization b1, b2;
+
+    public CpuResidualBlock(int channels) {
+        this.channels = channels;
+        c1 = new CpuConvolution2D(channels, channels, 3, 1, 1);
+        c2 = new CpuConvolution2D(channels, channels, 3, 1, 1);
+        b1 = new CpuBatchNormalization(channels);
+        b2 = new CpuBatchNormalization(channels);
+    }
+
+    // Create another execution context of the given block, sharing its weights.
+    public CpuResidualBlock(CpuResidualBlock shared) {
+        super(shared);
+        this.channels = shared.channels;
+        c1 = new CpuConvolution2D(shared.c1);
+        c2 = new CpuConvolution2D(shared.c2);
+        b1 = new CpuBatchNormalization(shared.b1);
+        b2 = new CpuBatchNormalization(shared.b2);
+    }
+
+    public void setName(String name) {
+        mName = name;
+        c1.mName = name + ".c1";
+        c2.mName = name + ".c2";
+        b1.mName = name + ".b1";
+        b2.mName = name + ".b2";
+    }
+
+    public void setExecutor(TileExecutor executor) {
+        c1.setExecutor(executor);
+        c2.setExecutor(executor);
+    }
+
+    // The layout of the images, planar by default. ReLU and the sum do not depend on it.
+    public void setLayout(Layout layout) {
+        c1.setLayout(layout);
+        c2.setLayout(layout);
+        b1.setLayout(layout);
+        b2.setLayout(layout);
+    }
+
+    public void loadModel(WeightSource source, String path) throws IOException {
+        checkWeightsWritable();
+        c1.loadModel(source, path + "/c1");
+        c2.loadModel(source, path + "/c2");
+        b1.loadModel(source, path + "/b1");
+        b2.loadModel(source, path + "/b2");
+    }
+
+    // The returned array is owned by the block and reused by the next call.
+    public float[] process(float[] input, int h, int w) {
+        float[] out = c1.process(input, h, w);
+        b1.process(out, h, w);
+        CpuKernels.relu(out, channels * h * w);
+
+        out = c2.process(out, h, w);
+        b2.process(out, h, w);
+        CpuKernels.add(out, input, channels * h * w);
+        return out;
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.cpu;
+
+/*
+   Memory layout of the images of the CPU backend.
+
+   PLANAR : channel c of an h x w image starts at c * h * w, like the Allocations
+            of the RenderScript layers (NCHW).
+   NHWC   : the channels of a pixel are contiguous, pixel i starts at i * channels.
+            The GEMMs then run over the channels of a pixel, and im2col and col2im
+            move runs of channels instead of single floats.
+*/
+public enum Layout {
+    PLANAR,
+    NHWC
+}
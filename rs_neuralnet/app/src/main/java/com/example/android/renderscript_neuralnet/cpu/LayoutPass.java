@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.cpu;
+
+/*
+   Chooses the layout of each stage of a chain of stages, e.g. the layers of the
+   FastStyle net, from the measured cost of each stage in each layout and the cost
+   of a layout transform at each boundary between two stages.
+
+   The chain starts and ends in the planar layout, the layout of the pixels, and a
+   transform is inserted at each boundary where the layout changes. The cheapest
+   assignment is found by dynamic programming over the boundaries: for each stage
+   and layout, the cheapest chain ending there.
+*/
+public final class LayoutPass {
+    private LayoutPass() {
+    }
+
+    /*
+       stageCost     : stageCost[s][layout.ordinal()], the cost of the stage s.
+       transformCost : the cost of a transform at the input of the stage s, and at
+                       the output of the chain for the last element.
+       Returns the layout of each stage.
+     */
+    public static Layout[] plan(long[][] stageCost, long[] transformCost) {
+        Layout[] layouts = Layout.values();
+        int stages = stageCost.length;
+        if (transformCost.length != stages + 1) {
+            throw new IllegalArgumentException("Expected " + (stages + 1) + " transform costs");
+        }
+        if (stages == 0) {
+            return new Layout[0];
+        }
+        int planar = Layout.PLANAR.ordinal();
+
+        // best[s][l]: cost of the cheapest chain of the stages [0, s] with s in l,
+        // from[s][l]: the layout of the stage s - 1 in that chain.
+        long[][] best = new long[stages][layouts.length];
+        int[][] from = new int[stages][layouts.length];
+        for (int l = 0; l < layouts.length; l++) {
+            best[0][l] = stageCost[0][l] + (l != planar ? transformCost[0] : 0);
+        }
+        for (int s = 1; s < stages; s++) {
+            for (int l = 0; l < layouts.length; l++) {
+                long min = Long.MAX_VALUE;
+                for (int p = 0; p < layouts.length; p++) {
+                    long cost = best[s - 1][p] + (p != l ? transformCost[s] : 0);
+                    if (cost < min) {
+                        min = cost;
+                        from[s][l] = p;
+                    }
+                }
+                best[s][l] = min + stageCost[s][l];
+            }
+        }
+
+        // Back to the planar layout at the end.
+        int last = planar;
+        long min = Long.MAX_VALUE;
+        for (int l = 0; l < layouts.length; l++) {
+            long cost = best[stages - 1][l] + (l != planar ? transformCost[stages] : 0);
+            if (cost < min) {
+                min = cost;
+                last = l;
+            }
+        }
+
+        Layout[] plan = new Layout[stages];
+        for (int s = stages - 1; s >= 0; s--) {
+            plan[s] = layouts[last];
+            last = from[s][last];
+        }
+        return plan;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.cpu;
+
+/*
+   Single precision matrix multiplication for the CPU backend:
+
+       C (m x n) = A (m x k) * B (k x n)
+
+   All the matrices are row-major, addressed by an offset and a leading dimension
+   (the distance between two rows), so sub-matrices can be used in place.
+   The loops are blocked so that a block of B stays in the cache while it is
+   reused by every row of A, and the innermost loop runs over contiguous rows
+   of B and C, which the JIT vectorizes.
+*/
+public final class Sgemm {
+    // Rows of B in a block.
+    private static final int BLOCK_K = 64;
+    // Columns of B and C in a block.
+    private static final int BLOCK_N = 512;
+
+    private Sgemm() {
+    }
+
+    public static void sgemm(int m, int n, int k,
+                             float[] a, int aOff, int lda,
+                             float[] b, int bOff, int ldb,
+                             float[] c, int cOff, int ldc) {
+        for (int i = 0; i < m; i++) {
+            int cRow = cOff + i * ldc;
+            for (int j = 0; j < n; j++) {
+                c[cRow + j] = 0.0f;
+            }
+        }
+
+        for (int jb = 0; jb < n; jb += BLOCK_N) {
+            int jEnd = Math.min(jb + BLOCK_N, n);
+            for (int kb = 0; kb < k; kb += BLOCK_K) {
+                int kEnd = Math.min(kb + BLOCK_K, k);
+                for (int i = 0; i < m; i++) {
+                    int aRow = aOff + i * lda;
+                    int cRow = cOff + i * ldc;
+                    for (int p = kb; p < kEnd; p++) {
+                        float av = a[aRow + p];
+                        if (av == 0.0f) {
+                            continue;
+                        }
+                        int bRow = bOff + p * ldb;
+                        for (int j = jb; j < jEnd; j++) {
+                            c[cRow + j] += av * b[bRow + j];
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.cpu;
+
+/*
+   Stylization of a sequence of frames, e.g. a video, which reruns the net only
+   where the frame changed.
+
+   Each frame is compared to the last one tile by tile: a tile whose mean absolute
+   difference per channel is above the threshold has changed. A change moves the
+   output up to CpuFastStyleModel.RECEPTIVE_RADIUS pixels away, so the tiles within
+   that distance of a changed tile are dirty as well. The dirty tiles are merged
+   into rectangles, a run of dirty tiles of a tile row extended down over
+   the rows with the same run, and each rectangle is stylized with
+   CpuFastStyleModel.stylizeRegion, i.e. with its receptive field halo, into the
+   cached output of the last frame. The clean tiles keep their output, and their
+   reference pixels, so slow changes add up until they cross the threshold.
+
+   The compute follows the motion: a static scene costs a comparison, and when most
+   of the frame moves, the whole frame is stylized at once rather than paying for
+   the halos of many rectangles.
+*/
+public class TemporalTileCache {
+    private final CpuFastStyleModel mModel;
+    private final int mTileSize;
+    private final int mThreshold;
+    // Above this fraction of dirty tiles, the whole frame is stylized.
+    private final float mFullFrameFraction;
+
+    private int mHeight, mWidth;
+    // The pixels each tile of the output was computed from.
+    private int[] mReference;
+    private int[] mOutput;
+    private boolean[] mChanged;
+    private boolean[] mDirty;
+
+    // Statistics.
+    private long mFrames = 0;
+    private long mTiles = 0;
+    private long mDirtyTiles = 0;
+    private long mComputedPixels = 0;
+    private long mFramePixels = 0;
+
+    /*
+       tileSize  : size of the compared tiles, a multiple of CpuFastStyleModel.ALIGN.
+       threshold : mean absolute difference per channel, in [0, 255], above which a
+                   tile is dirty. 0 recomputes any change.
+     */
+    public TemporalTileCache(CpuFastStyleModel model, int tileSize, int threshold) {
+        if (tileSize <= 0 || tileSize % CpuFastStyleModel.ALIGN != 0) {
+            throw new IllegalArgumentException("tileSize must be a multiple of " + CpuFastStyleModel.ALIGN);
+        }
+        mModel = model;
+        mTileSize = tileSize;
+        mThreshold = threshold;
+        mFullFrameFraction = 0.5f;
+    }
+
+    public TemporalTileCache(CpuFastStyleModel model) {
+        this(model, 64, 2);
+    }
+
+    /*
+       Stylize the next frame. Returns the output, owned by the cache and updated in
+       place by the next frames.
+       The dimensions of the frames must be multiples of CpuFastStyleModel.ALIGN, as
+       for stylizeRegion; this is checked on the first frame of each size, rather than
+       on the first partial update.
+     */
+    public int[] process(int[] argb, int height, int width) {
+        boolean resized = mOutput == null || height != mHeight || width != mWidth;
+        if (resized && (height % CpuFastStyleModel.ALIGN != 0 || width % CpuFastStyleModel.ALIGN != 0)) {
+            throw new IllegalArgumentException("The dimensions must be multiples of "
+                    + CpuFastStyleModel.ALIGN);
+        }
+        mFrames++;
+        mFramePixels += (long) height * width;
+        if (resized) {
+            mHeight = height;
+            mWidth = width;
+            mReference = new int[height * width];
+            mOutput = new int[height * width];
+            int tiles = tilesY() * tilesX();
+            mChanged = new boolean[tiles];
+            mDirty = new boolean[tiles];
+            mTiles += tiles;
+            mDirtyTiles += tiles;
+            return stylizeFrame(argb);
+        }
+
+        int tilesX = tilesX();
+        int tilesY = tilesY();
+        boolean changed = false;
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                mChanged[ty * tilesX + tx] = isChanged(argb, tx, ty);
+                changed |= mChanged[ty * tilesX + tx];
+            }
+        }
+        int dirty = changed ? dilate(tilesX, tilesY) : 0;
+        mTiles += tilesX * tilesY;
+        mDirtyTiles += dirty;
+        if (dirty == 0) {
+            return mOutput;
+        }
+        if (dirty > mFullFrameFraction * tilesX * tilesY) {
+            return stylizeFrame(argb);
+        }
+
+        for (int ty = 0; ty < tilesY; ty++) {
+            int tx = 0;
+            while (tx < tilesX) {
+                if (!mDirty[ty * tilesX + tx]) {
+                    tx++;
+                    continue;
+                }
+                // A run of dirty tiles, extended down over the same runs.
+                int tx1 = tx;
+                while (tx1 < tilesX && mDirty[ty * tilesX + tx1]) {
+                    tx1++;
+                }
+                int ty1 = ty + 1;
+                while (ty1 < tilesY && isRun(ty1, tx, tx1)) {
+                    for (int i = tx; i < tx1; i++) {
+                        mDirty[ty1 * tilesX + i] = false;
+                    }
+                    ty1++;
+                }
+                stylizeRect(argb, tx * mTileSize, ty * mTileSize,
+                        Math.min(mWidth, tx1 * mTileSize), Math.min(mHeight, ty1 * mTileSize));
+                tx = tx1;
+            }
+        }
+        return mOutput;
+    }
+
+    // Mark dirty the tiles within the receptive field of a changed tile.
+    // Returns the number of dirty tiles.
+    private int dilate(int tilesX, int tilesY) {
+        int radius = (CpuFastStyleModel.RECEPTIVE_RADIUS + mTileSize - 1) / mTileSize;
+        int dirty = 0;
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                boolean d = false;
+                for (int y = Math.max(0, ty - radius); !d && y <= Math.min(tilesY - 1, ty + radius); y++) {
+                    for (int x = Math.max(0, tx - radius); x <= Math.min(tilesX - 1, tx + radius); x++) {
+                        if (mChanged[y * tilesX + x]) {
+                            d = true;
+                            break;
+                        }
+                    }
+                }
+                mDirty[ty * tilesX + tx] = d;
+                if (d) {
+                    dirty++;
+                }
+            }
+        }
+        return dirty;
+    }
+
+    private int tilesX() {
+        return (mWidth + mTileSize - 1) / mTileSize;
+    }
+
+    private int tilesY() {
+        return (mHeight + mTileSize - 1) / mTileSize;
+    }
+
+    // Whether the tiles [tx0, tx1) of the row are dirty, and its neighbours are not.
+    private boolean isRun(int ty, int tx0, int tx1) {
+        int tilesX = tilesX();
+        for (int tx = tx0; tx < tx1; tx++) {
+            if (!mDirty[ty * tilesX + tx]) {
+                return false;
+            }
+        }
+        return (tx0 == 0 || !mDirty[ty * tilesX + tx0 - 1])
+                && (tx1 == tilesX || !mDirty[ty * tilesX + tx1]);
+    }
+
+    // Compare the tile to its reference pixels, stopping as soon as it is dirty.
+    private boolean isChanged(int[] argb, int tx, int ty) {
+        int x0 = tx * mTileSize;
+        int y0 = ty * mTileSize;
+        int x1 = Math.min(mWidth, x0 + mTileSize);
+        int y1 = Math.min(mHeight, y0 + mTileSize);
+        long limit = (long) mThreshold * 3 * (x1 - x0) * (y1 - y0);
+        long diff = 0;
+        for (int y = y0; y < y1; y++) {
+            int row = y * mWidth;
+            for (int x = x0; x < x1; x++) {
+                int p = argb[row + x];
+                int q = mReference[row + x];
+                if (p == q) {
+                    continue;
+                }
+                diff += Math.abs(((p >> 16) & 0xff) - ((q >> 16) & 0xff))
+                        + Math.abs(((p >> 8) & 0xff) - ((q >> 8) & 0xff))
+                        + Math.abs((p & 0xff) - (q & 0xff));
+                if (diff > limit) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private int[] stylizeFrame(int[] argb) {
+        mModel.stylize(argb, mHeight, mWidth, mOutput);
+        System.arraycopy(argb, 0, mReference, 0, mHeight * mWidth);
+        mComputedPixels += (long) mHeight * mWidth;
+        return mOutput;
+    }
+
+    private void stylizeRect(int[] argb, int left, int top, int right, int bottom) {
+        mModel.stylizeRegion(argb, mHeight, mWidth, left, top, right, bottom, mOutput);
+        for (int y = top; y < bottom; y++) {
+            System.arraycopy(argb, y * mWidth + left, mReference, y * mWidth + left, right - left);
+        }
+        // The net runs on the rectangle and its halo.
+        int r = CpuFastStyleModel.RECEPTIVE_RADIUS;
+        long w = Math.min(mWidth, right + r) - Math.max(0, left - r);
+        long h = Math.min(mHeight, bottom + r) - Math.max(0, top - r);
+        mComputedPixels += w * h;
+    }
+
+    // Fraction of the tiles found dirty since the cache was created.
+    public float getDirtyFraction() {
+        return mTiles == 0 ? 0 : (float) mDirtyTiles / mTiles;
+    }
+
+    // Pixels run through the net, halos included, relative to stylizing every frame.
+    public float getComputeFraction() {
+        return mFramePixels == 0 ? 0 : (float) mComputedPixels / mFramePixels;
+    }
+
+    public long getFrames() {
+        return mFrames;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.cpu;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+   Runs the tiles of a layer on several cores.
+
+   The calling thread and up to parallelism - 1 pool threads take the tiles in
+   turn from a shared counter until none is left. Each of them has a worker index
+   in [0, parallelism), which selects its scratch buffers, so the buffers are never
+   shared by two tiles at the same time. The caller always takes part, so a tile
+   loop completes even when the pool is busy with the loops of other models, and
+   once the caller has run out of tiles it only waits for the helpers which started.
+*/
+public class TileExecutor {
+    public interface Task {
+        void run(int tile, int worker);
+    }
+
+    // Runs the tiles on the calling thread only.
+    public static final TileExecutor SEQUENTIAL = new TileExecutor(1);
+
+    private final int mParallelism;
+    private final ExecutorService mPool;
+
+    public TileExecutor(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        mParallelism = parallelism;
+        if (parallelism == 1) {
+            mPool = null;
+        } else {
+            mPool = Executors.newFixedThreadPool(parallelism - 1, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "tile-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    // Run task on the tiles [0, tiles), and return once they are all done.
+    public void run(final int tiles, final Task task) {
+        int runners = Math.min(mParallelism, tiles);
+        if (runners <= 1) {
+            for (int it = 0; it < tiles; it++) {
+                task.run(it, 0);
+            }
+            return;
+        }
+
+        final AtomicInteger next = new AtomicInteger();
+        Future<?>[] helpers = new Future<?>[runners - 1];
+        // Claimed by a helper when it starts, or by the caller once it has drained the
+        // tiles: a helper still queued behind the loops of other models is dropped
+        // then, rather than waited for.
+        final AtomicBoolean[] claims = new AtomicBoolean[runners - 1];
+        for (int i = 0; i < helpers.length; i++) {
+            final int worker = i + 1;
+            final AtomicBoolean claim = new AtomicBoolean();
+            claims[i] = claim;
+            helpers[i] = mPool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (claim.compareAndSet(false, true)) {
+                        drain(next, tiles, task, worker);
+                    }
+                }
+            });
+        }
+
+        Throwable failure = null;
+        try {
+            drain(next, tiles, task, 0);
+        } catch (RuntimeException | Error e) {
+            failure = e;
+            // Stop the helpers at their next tile.
+            next.set(tiles);
+        }
+        boolean interrupted = false;
+        for (int i = 0; i < helpers.length; i++) {
+            if (claims[i].compareAndSet(false, true)) {
+                // Never started, and never will take a tile.
+                helpers[i].cancel(false);
+                continue;
+            }
+            while (true) {
+                try {
+                    helpers[i].get();
+                    break;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                    break;
+                } catch (InterruptedException e) {
+                    // The helpers write into the buffers of the caller, wait for them.
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+    }
+
+    private static void drain(AtomicInteger next, int tiles, Task task, int worker) {
+        int it;
+        while ((it = next.getAndIncrement()) < tiles) {
+            try {
+                task.run(it, worker);
+            } catch (RuntimeException | Error e) {
+                // Stop the other workers at their next tile.
+                next.set(tiles);
+                throw e;
+            }
+        }
+    }
+
+    // Stop the pool threads. The executor must not be used afterwards.
+    public void shutdown() {
+        if (mPool != null) {
+            mPool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.cpu;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+   Where the CPU backend reads the model files from, e.g. "candy/c1/W".
+   On Android the files are assets; on a desktop JVM they are read from the
+   assets directory of the app.
+*/
+public interface WeightSource {
+    InputStream open(String path) throws IOException;
+
+    // Reads the model files from a directory laid out like the assets of the app.
+    class Directory implements WeightSource {
+        private final File mRoot;
+
+        public Directory(File root) {
+            mRoot = root;
+        }
+
+        public InputStream open(String path) throws IOException {
+            return new FileInputStream(new File(mRoot, path));
+        }
+    }
+}
@@ -18,7 +18,9 @@
 #pragma rs java_package_name(com.example.android.renderscript_neuralnet)
 #pragma rs_fp_relaxed
 
-rs_allocation img_alloc, padded_alloc, beta_alloc;
+// The input is read in place: the pixels of the padding are out of the image
+// and read as zeros, so there is no padded copy of the input.
+rs_allocation img_alloc, beta_alloc;
 int img_h, img_w, img_channel;
 int step_y, step_x, kernel_h, kernel_w, pad_h, pad_w;
 int outH, outW;
@@ -33,24 +35,12 @@ float RS_KERNEL addBeta(float in, uint32_t x, uint32_t y) {
     return in + beta;
 }
 
-float RS_KERNEL zero(float in) {
-    return 0.0f;
-}
-
-void padd() {
-    int padded_h = img_h + 2 * pad_h;
-    int padded_w = img_w + 2 * pad_w;
-
-    for (int ic = 0; ic < img_channel; ic++) {
-        for (int ih = 0; ih < img_h; ih++) {
-            int srcXoff = ih * img_w;
-            int dstXoff = (ih + pad_h) * padded_w + pad_w;
-            for (int iw = 0; iw < img_w; iw++) {
-                float value = rsGetElementAt_float(img_alloc, srcXoff + iw, ic);
-                rsSetElementAt_float(padded_alloc, value, dstXoff + iw, ic);
-            }
-        }
+// The pixel (img_y, img_x) of the channel ic, or 0 in the padding.
+static float get_pixel(rs_allocation img, int img_y, int img_x, int ic) {
+    if (img_y < 0 || img_y >= img_h || img_x < 0 || img_x >= img_w) {
+        return 0.0f;
     }
+    return rsGetElementAt_float(img, img_y * img_w + img_x, ic);
 }
 
 // Parallel Tiled im2col
@@ -67,21 +57,15 @@ float RS_KERNEL im2col(uint32_t x, uint32_t y) {
     int ikh = (y - ic * (kernel_h * kernel_w)) / kernel_w;
     int ikw = y - ic * (kernel_h * kernel_w) - ikh * kernel_w;
 
-    int h_padded = img_h + pad_h * 2;
-    int w_padded = img_w + pad_w * 2;
-
-    int img_ih = (ih + outH * tile_num) * step_y;
-    float value = rsGetElementAt_float(padded_alloc, img_ih * w_padded + iw * step_x + ikh * w_padded + ikw, ic);
-    return value;
+    int img_ih = (ih + outH * tile_num) * step_y + ikh - pad_h;
+    int img_iw = iw * step_x + ikw - pad_w;
+    return get_pixel(img_alloc, img_ih, img_iw, ic);
 }
 
 // Reference implementation of convolve kernel.
 // Performance not on par with (im2col + GEMM).
-rs_allocation input_padded, W_alloc;
+rs_allocation W_alloc;
 float RS_KERNEL convolve2D(uint32_t x, uint32_t y) {
-    int h_padded = img_h + pad_h * 2;
-    int w_padded = img_w + pad_w * 2;
-
     int ih = x / outW;
     int iw = x - outW * ih;
     float out = 0.0f;
@@ -89,10 +73,43 @@ float RS_KERNEL convolve2D(uint32_t x, uint32_t y) {
         for (int ikh = 0; ikh < kernel_h; ikh++) {
             for (int ikw = 0; ikw < kernel_w; ikw++ ) {
                 float cur_w = rsGetElementAt_float(W_alloc, ic * kernel_h * kernel_w + ikh * kernel_w + ikw, y);
-                float cur_in = rsGetElementAt_float(input_padded, ih * step_y * w_padded + iw * step_x + ikh * w_padded + ikw, ic);
+                float cur_in = get_pixel(img_alloc, ih * step_y + ikh - pad_h, iw * step_x + ikw - pad_w, ic);
                 out += cur_w * cur_in;
             }
         }
     }
     return out;
 }
+
+// Direct convolution of the layers with few input channels, see
+// ConvolveUtil.use_direct_conv: no column image, the input is read in place.
+// Launched over pixel_alloc, one cell per output pixel, whose values are not used.
+// Each invocation loads the window of its output pixel once, in_channels * ksize *
+// ksize values held in registers, and sweeps the output channels with it, writing
+// them to direct_out, bias included. An input pixel is then read once per output
+// pixel whose window covers it, rather than once more for each output channel.
+rs_allocation direct_out;
+int out_channels;
+
+void RS_KERNEL convolveDirect(uchar in, uint32_t x) {
+    int ih = x / outW;
+    int iw = x - outW * ih;
+    // ConvolveUtil.DIRECT_MAX_WINDOW.
+    float window[243];
+    int size = 0;
+    for (int ic = 0; ic < img_channel; ic++) {
+        for (int ikh = 0; ikh < kernel_h; ikh++) {
+            for (int ikw = 0; ikw < kernel_w; ikw++) {
+                window[size++] = get_pixel(img_alloc, ih * step_y + ikh - pad_h, iw * step_x + ikw - pad_w, ic);
+            }
+        }
+    }
+
+    for (int oc = 0; oc < out_channels; oc++) {
+        float out = 0.0f;
+        for (int i = 0; i < size; i++) {
+            out += rsGetElementAt_float(W_alloc, i, oc) * window[i];
+        }
+        rsSetElementAt_float(direct_out, out + rsGetElementAt_float(beta_alloc, oc), x, oc);
+    }
+}
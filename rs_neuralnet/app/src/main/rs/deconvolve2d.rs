@@ -166,3 +166,46 @@ void col2im() {
         }
     }
 }
+
+// Fused output stage of the last layer, for 3 output channels: the deconvolution
+// of in_alloc gathered per output pixel, instead of SGEMM + col2im + unpadd, then
+// the bias, tanh and the packing to RGBA, instead of addBeta + alloc2img.
+// Launched on the RGBA output image. An output pixel is the sum of the input
+// pixels whose window covers it, i.e. those at (y + pad - ikh) / step of the
+// kernel rows ikh where the division is exact, and likewise for the columns.
+rs_allocation in_alloc, W_alloc;
+int in_h, in_w, in_channel;
+
+uchar4 RS_KERNEL deconvolveToImage(uint32_t x, uint32_t y) {
+    int kernel_size = kernel_h * kernel_w;
+    float r = rsGetElementAt_float(beta_alloc, 0);
+    float g = rsGetElementAt_float(beta_alloc, 1);
+    float b = rsGetElementAt_float(beta_alloc, 2);
+    for (int ikh = 0; ikh < kernel_h; ikh++) {
+        int ty = (int) y + pad_h - ikh;
+        if (ty < 0 || ty % step_y != 0 || ty / step_y >= in_h) {
+            continue;
+        }
+        for (int ikw = 0; ikw < kernel_w; ikw++) {
+            int tx = (int) x + pad_w - ikw;
+            if (tx < 0 || tx % step_x != 0 || tx / step_x >= in_w) {
+                continue;
+            }
+            int inX = (ty / step_y) * in_w + tx / step_x;
+            // Row of W for the output channel 0: W_alloc is in_channel x (3 * kernel_size).
+            int wY = ikh * kernel_w + ikw;
+            for (int ic = 0; ic < in_channel; ic++) {
+                float v = rsGetElementAt_float(in_alloc, inX, ic);
+                r += v * rsGetElementAt_float(W_alloc, ic, wY);
+                g += v * rsGetElementAt_float(W_alloc, ic, wY + kernel_size);
+                b += v * rsGetElementAt_float(W_alloc, ic, wY + 2 * kernel_size);
+            }
+        }
+    }
+    uchar4 out;
+    out.r = (tanh(r) + 1) * 127.5;
+    out.g = (tanh(g) + 1) * 127.5;
+    out.b = (tanh(b) + 1) * 127.5;
+    out.a = 255;
+    return out;
+}
@@ -31,6 +31,25 @@ float RS_KERNEL img2alloc(uint32_t x, uint32_t y) {
     return (float)rgb[y];
 }
 
+// Ingestion of the input in one pass: the out_h x out_w crop at (crop_x, crop_y)
+// of src_alloc scaled to scaled_w x scaled_h, converted to the float input of the
+// neural net. The scale is nearest neighbour, sampling the source at the centers
+// of the scaled pixels like Bitmap.createScaledBitmap without filtering, so no
+// scaled nor cropped bitmap is needed.
+// Like img2alloc, each invocation returns the channel y of the pixel x of the
+// float input. weight is out_w.
+rs_allocation src_alloc;
+int src_w, src_h, scaled_w, scaled_h, crop_x, crop_y;
+
+float RS_KERNEL ingest(uint32_t x, uint32_t y) {
+    int outY = x / weight;
+    int outX = x - outY * weight;
+    int srcX = min(((crop_x + outX) * 2 + 1) * src_w / (2 * scaled_w), src_w - 1);
+    int srcY = min(((crop_y + outY) * 2 + 1) * src_h / (2 * scaled_h), src_h - 1);
+    uchar4 rgb = rsGetElementAt_uchar4(src_alloc, srcX, srcY);
+    return (float) rgb[y];
+}
+
 // Output Allocation of neural net.
 rs_allocation nn_alloc;
 // Convert the float neural net output to RGB image.
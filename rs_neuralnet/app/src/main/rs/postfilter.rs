@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#pragma version(1)
+#pragma rs java_package_name(com.example.android.renderscript_neuralnet)
+#pragma rs_fp_relaxed
+
+// The FUSED mode of PostFilter: the blur and the sharpen convolved into one
+// square kernel of 2 * radius + 1 taps per side, precomputed by
+// PostFilter.createKernel, in a single pass.
+rs_allocation in_alloc;
+int width, height;
+int radius;
+// PostFilter.MAX_KERNEL_SIZE squared.
+float coeffs[49];
+
+// The pixels out of the image are those of the nearest border, like for the
+// intrinsics. The alpha is kept.
+uchar4 RS_KERNEL filter(uint32_t x, uint32_t y) {
+    float3 sum = 0.0f;
+    int i = 0;
+    for (int dy = -radius; dy <= radius; dy++) {
+        int sy = clamp((int) y + dy, 0, height - 1);
+        for (int dx = -radius; dx <= radius; dx++) {
+            int sx = clamp((int) x + dx, 0, width - 1);
+            sum += coeffs[i++] * convert_float3(rsGetElementAt_uchar4(in_alloc, sx, sy).rgb);
+        }
+    }
+    uchar4 out;
+    out.rgb = convert_uchar3(clamp(sum + 0.5f, 0.0f, 255.0f));
+    out.a = rsGetElementAt_uchar4(in_alloc, x, y).a;
+    return out;
+}
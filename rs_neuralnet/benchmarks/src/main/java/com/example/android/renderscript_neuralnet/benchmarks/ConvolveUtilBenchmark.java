@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.benchmarks;
+
+import com.example.android.renderscript_neuralnet.ConvolveUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+   The whole-image reference implementations of ConvolveUtil, at the shapes of
+   the network layers. im2col runs on the inputs of the convolutions, col2im on
+   the inputs of the deconvolutions.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ConvolveUtilBenchmark {
+    @Param({"c1", "c2", "c3", "r", "d1", "d2", "d3"})
+    public LayerShape layer;
+
+    @Param({"256", "512"})
+    public int size;
+
+    private float[] img;
+    private float[] col;
+    private int inSize;
+
+    @Setup
+    public void setup() {
+        inSize = layer.inputSize(size);
+        img = LayerShape.randomInput(layer.in_channels * inSize * inSize);
+        if (layer.deconv) {
+            col = LayerShape.randomInput(layer.out_channels * layer.ksize * layer.ksize * inSize * inSize);
+        }
+    }
+
+    @Benchmark
+    public float[] padd() {
+        return ConvolveUtil.padd(img, layer.in_channels, inSize, inSize, layer.pad, layer.pad);
+    }
+
+    @Benchmark
+    public float[] im2col() {
+        if (layer.deconv) {
+            return null;
+        }
+        return ConvolveUtil.im2col(img, inSize, inSize, layer.in_channels, layer.ksize, layer.ksize,
+                layer.stride, layer.stride, layer.pad, layer.pad);
+    }
+
+    @Benchmark
+    public float[] col2im() {
+        if (!layer.deconv) {
+            return null;
+        }
+        return ConvolveUtil.col2im(col, inSize, inSize, layer.out_channels, layer.ksize, layer.ksize,
+                layer.stride, layer.stride, layer.pad, layer.pad);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.benchmarks;
+
+import com.example.android.renderscript_neuralnet.cpu.CpuConvolution2D;
+import com.example.android.renderscript_neuralnet.cpu.CpuKernels;
+import com.example.android.renderscript_neuralnet.cpu.Sgemm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+   Each kernel of the CPU backend on one layer, at the shapes of a real inference.
+   The tiled kernels (im2col, col2im, sgemm) process one tile of
+   CpuConvolution2D.TILE_PIXELS pixels, as the layers do; the element-wise ones
+   process the whole output of the layer.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class KernelBenchmark {
+    @Param({"c1", "c2", "c3", "r", "d1", "d2", "d3"})
+    public LayerShape layer;
+
+    @Param({"256", "512"})
+    public int size;
+
+    private int inSize, outSize;
+    private int paddedH, paddedW;
+    private int rows, cols;
+    private int colRows;
+
+    private float[] img, padded;
+    private float[] weights, col, tile;
+    private float[] layerOutput, output;
+    private float[] beta, mean, var, gamma;
+
+    @Setup
+    public void setup() {
+        inSize = layer.inputSize(size);
+        outSize = layer.outputSize(size);
+        img = LayerShape.randomInput(layer.in_channels * inSize * inSize);
+
+        if (layer.deconv) {
+            // col2im accumulates the tile of input rows into the padded output.
+            cols = inSize;
+            paddedH = outSize + 2 * layer.pad;
+            paddedW = outSize + 2 * layer.pad;
+            colRows = layer.out_channels * layer.ksize * layer.ksize;
+            rows = Math.max(1, Math.min(inSize, CpuConvolution2D.TILE_PIXELS / cols));
+            weights = LayerShape.randomInput(colRows * layer.in_channels);
+            tile = LayerShape.randomInput(layer.in_channels * rows * cols);
+            padded = new float[layer.out_channels * paddedH * paddedW];
+        } else {
+            // im2col rearranges a tile of output rows of the input.
+            cols = outSize;
+            colRows = layer.in_channels * layer.ksize * layer.ksize;
+            rows = Math.max(1, Math.min(outSize, CpuConvolution2D.TILE_PIXELS / cols));
+            weights = LayerShape.randomInput(layer.out_channels * colRows);
+            tile = new float[layer.out_channels * rows * cols];
+        }
+        col = LayerShape.randomInput(colRows * rows * cols);
+
+        layerOutput = LayerShape.randomInput(layer.out_channels * outSize * outSize);
+        output = new float[layerOutput.length];
+        beta = LayerShape.randomInput(layer.out_channels);
+        mean = LayerShape.randomInput(layer.out_channels);
+        gamma = LayerShape.randomInput(layer.out_channels);
+        var = new float[layer.out_channels];
+        for (int i = 0; i < var.length; i++) {
+            var[i] = 1.0f + Math.abs(mean[i]);
+        }
+    }
+
+    @Benchmark
+    public float[] im2col() {
+        if (layer.deconv) {
+            return null;
+        }
+        CpuKernels.im2col(img, layer.in_channels, inSize, inSize, layer.pad, layer.ksize, layer.stride,
+                0, rows, cols, col);
+        return col;
+    }
+
+    @Benchmark
+    public float[] col2im() {
+        if (!layer.deconv) {
+            return null;
+        }
+        CpuKernels.col2im(col, layer.out_channels, layer.ksize, layer.stride, 0, rows, cols,
+                padded, paddedH, paddedW);
+        return padded;
+    }
+
+    @Benchmark
+    public float[] sgemm() {
+        int n = rows * cols;
+        if (layer.deconv) {
+            // col = W^T * tile, W^T is (out * k * k) x in.
+            Sgemm.sgemm(colRows, n, layer.in_channels, weights, 0, layer.in_channels,
+                    tile, 0, n, col, 0, n);
+            return col;
+        }
+        // tile = W * col, W is out x (in * k * k).
+        Sgemm.sgemm(layer.out_channels, n, colRows, weights, 0, colRows, col, 0, n, tile, 0, n);
+        return tile;
+    }
+
+    /*
+       The element-wise kernels work in place: start each call from the same data,
+       or repeated calls drift to denormals (elu) or infinities (batchNorm). The
+       copy is included in their timings.
+     */
+    private void reset() {
+        System.arraycopy(layerOutput, 0, output, 0, output.length);
+    }
+
+    @Benchmark
+    public float[] addBeta() {
+        reset();
+        CpuKernels.addBeta(output, layer.out_channels, outSize * outSize, beta);
+        return output;
+    }
+
+    @Benchmark
+    public float[] batchNorm() {
+        reset();
+        CpuKernels.batchNorm(output, layer.out_channels, outSize * outSize, mean, var, gamma, beta);
+        return output;
+    }
+
+    @Benchmark
+    public float[] elu() {
+        reset();
+        CpuKernels.elu(output, layer.out_channels * outSize * outSize);
+        return output;
+    }
+}
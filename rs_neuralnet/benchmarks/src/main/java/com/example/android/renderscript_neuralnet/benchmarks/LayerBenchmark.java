@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.benchmarks;
+
+import com.example.android.renderscript_neuralnet.cpu.CpuConvolution2D;
+import com.example.android.renderscript_neuralnet.cpu.CpuDeconvolution2D;
+import com.example.android.renderscript_neuralnet.cpu.CpuResidualBlock;
+import com.example.android.renderscript_neuralnet.cpu.Layout;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+   One layer of the CPU backend with the real weights of a bundled style, from
+   the input to the biased output, in each layout. "r" is the convolution of a
+   residual block; residualBlock runs the whole block.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class LayerBenchmark {
+    private static final String MODEL = "composition";
+
+    @Param({"c1", "c2", "c3", "r", "d1", "d2", "d3"})
+    public LayerShape layer;
+
+    @Param({"256", "512"})
+    public int size;
+
+    @Param({"PLANAR", "NHWC"})
+    public Layout layout;
+
+    private int inSize;
+    private float[] input;
+    private CpuConvolution2D conv;
+    private CpuDeconvolution2D deconv;
+    private CpuResidualBlock block;
+
+    @Setup
+    public void setup() throws IOException {
+        inSize = layer.inputSize(size);
+        input = LayerShape.randomInput(layer.in_channels * inSize * inSize);
+        if (layer.deconv) {
+            deconv = new CpuDeconvolution2D(layer.in_channels, layer.out_channels,
+                    layer.ksize, layer.stride, layer.pad);
+            deconv.loadModel(LayerShape.assets(), layer.path(MODEL));
+            deconv.setLayout(layout);
+        } else {
+            conv = new CpuConvolution2D(layer.in_channels, layer.out_channels,
+                    layer.ksize, layer.stride, layer.pad);
+            conv.loadModel(LayerShape.assets(), layer.path(MODEL));
+            conv.setLayout(layout);
+        }
+        if (layer == LayerShape.r) {
+            block = new CpuResidualBlock(layer.in_channels);
+            block.loadModel(LayerShape.assets(), MODEL + "/r1");
+            block.setLayout(layout);
+        }
+    }
+
+    @Benchmark
+    public float[] layer() {
+        if (layer.deconv) {
+            return deconv.process(input, inSize, inSize);
+        }
+        return conv.process(input, inSize, inSize);
+    }
+
+    @Benchmark
+    public float[] residualBlock() {
+        if (block == null) {
+            return null;
+        }
+        return block.process(input, inSize, inSize);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.benchmarks;
+
+import com.example.android.renderscript_neuralnet.ConvolveUtil;
+import com.example.android.renderscript_neuralnet.cpu.WeightSource;
+
+import java.io.File;
+import java.util.Random;
+
+/*
+   The convolution and deconvolution layers of the FastStyle network, with their
+   real configurations. The input of a layer is inputScale times smaller than the
+   image processed by the network.
+*/
+public enum LayerShape {
+    c1(false, 3, 32, 9, 1, 4, 1),
+    c2(false, 32, 64, 4, 2, 1, 1),
+    c3(false, 64, 128, 4, 2, 1, 2),
+    r(false, 128, 128, 3, 1, 1, 4),
+    d1(true, 128, 64, 4, 2, 1, 4),
+    d2(true, 64, 32, 4, 2, 1, 2),
+    d3(true, 32, 3, 9, 1, 4, 1);
+
+    public final boolean deconv;
+    public final int in_channels, out_channels;
+    public final int ksize, stride, pad;
+    public final int inputScale;
+
+    LayerShape(boolean deconv, int in_channels, int out_channels, int ksize, int stride, int pad,
+               int inputScale) {
+        this.deconv = deconv;
+        this.in_channels = in_channels;
+        this.out_channels = out_channels;
+        this.ksize = ksize;
+        this.stride = stride;
+        this.pad = pad;
+        this.inputScale = inputScale;
+    }
+
+    public int inputSize(int imageSize) {
+        return imageSize / inputScale;
+    }
+
+    public int outputSize(int imageSize) {
+        int size = inputSize(imageSize);
+        return deconv ? ConvolveUtil.get_deconv_outsize(size, ksize, stride, pad)
+                : ConvolveUtil.get_conv_outsize(size, ksize, stride, pad);
+    }
+
+    // Path of the weights of the layer in a model, e.g. "composition/r1/c1".
+    public String path(String model) {
+        return this == r ? model + "/r1/c1" : model + "/" + name();
+    }
+
+    // The model files of the app.
+    public static WeightSource assets() {
+        return new WeightSource.Directory(
+                new File(System.getProperty("assets.dir", "../app/src/main/assets")));
+    }
+
+    // A reproducible random input of the given number of floats.
+    public static float[] randomInput(int count) {
+        Random random = new Random(42);
+        float[] data = new float[count];
+        for (int i = 0; i < count; i++) {
+            data[i] = random.nextFloat() * 2.0f - 1.0f;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.benchmarks;
+
+import com.example.android.renderscript_neuralnet.cpu.CpuFastStyleModel;
+import com.example.android.renderscript_neuralnet.cpu.Layout;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/*
+   The whole network on the CPU backend with all the stages planar, all NHWC, or
+   the layouts chosen by the layout pass ("AUTO") for the image size.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class LayoutBenchmark {
+    @Param({"PLANAR", "NHWC", "AUTO"})
+    public String layout;
+
+    @Param({"256", "512"})
+    public int size;
+
+    private CpuFastStyleModel model;
+    private float[] input;
+
+    @Setup
+    public void setup() throws IOException {
+        model = new CpuFastStyleModel();
+        model.loadModel(LayerShape.assets(), CpuFastStyleModel.DEFAULT_MODEL);
+        if (layout.equals("AUTO")) {
+            Layout[] layouts = model.chooseLayouts(size, size);
+            System.out.println("layouts " + Arrays.toString(CpuFastStyleModel.STAGES) +
+                    ": " + Arrays.toString(layouts));
+        } else {
+            model.setLayout(Layout.valueOf(layout));
+        }
+        input = LayerShape.randomInput(3 * size * size);
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (input[i] + 1.0f) * 127.5f;
+        }
+    }
+
+    @Benchmark
+    public float[] inference() {
+        return model.process(input, size, size);
+    }
+}
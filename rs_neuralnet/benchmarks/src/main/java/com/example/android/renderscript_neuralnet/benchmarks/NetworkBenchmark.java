@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.benchmarks;
+
+import com.example.android.renderscript_neuralnet.cpu.CpuFastStyleModel;
+import com.example.android.renderscript_neuralnet.cpu.TileExecutor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+   The whole network on the CPU backend: an inference per bundled style, image
+   size and number of threads running the tiles, and the loading of the model
+   files of a style.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class NetworkBenchmark {
+    @Param({"candy", "composition", "fur", "kanagawa", "seurat", "starrynight"})
+    public String style;
+
+    @Param({"256", "512"})
+    public int size;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private TileExecutor executor;
+    private CpuFastStyleModel model;
+    private int[] pixels;
+
+    @Setup
+    public void setup() throws IOException {
+        model = new CpuFastStyleModel();
+        model.loadModel(LayerShape.assets(), style);
+        executor = new TileExecutor(parallelism);
+        model.setExecutor(executor);
+        float[] random = LayerShape.randomInput(size * size);
+        pixels = new int[size * size];
+        for (int i = 0; i < pixels.length; i++) {
+            int v = (int) ((random[i] + 1.0f) * 127.5f);
+            pixels[i] = 0xFF000000 | (v << 16) | ((255 - v) << 8) | (v ^ 0x55);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public int[] inference() {
+        return model.stylize(pixels, size, size);
+    }
+
+    @Benchmark
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public CpuFastStyleModel loadModel() throws IOException {
+        CpuFastStyleModel loaded = new CpuFastStyleModel();
+        loaded.loadModel(LayerShape.assets(), style);
+        return loaded;
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.headless;
+
+import com.example.android.renderscript_neuralnet.BenchmarkRecorder;
+import com.example.android.renderscript_neuralnet.cpu.CpuFastStyleModel;
+import com.example.android.renderscript_neuralnet.cpu.WeightSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+   Stylize a directory of images on the CPU backend, from the command line:
+
+     BatchStylizer --input <dir|glob> --output <dir> [--style candy] [--size 512]
+                   [--threads N] [--assets <dir>]
+
+   The images are stylized in parallel, each thread on its own execution context of
+   the model. At most two images per thread are decoded at a time, whatever the
+   number of inputs, so the memory stays bounded. The outputs are PNG files with the
+   relative paths of the inputs. A summary of the throughput and of the latency of
+   each image, from decoding to writing, is printed at the end.
+*/
+public class BatchStylizer {
+    private static final String USAGE = "usage: BatchStylizer --input <dir|glob> --output <dir>"
+            + " [--style name] [--size pixels] [--threads n] [--assets dir]";
+
+    private final CpuFastStyleModel mWeights;
+    private final int mSize;
+    private final File mOutput;
+
+    private final BenchmarkRecorder.Histogram mLatency = new BenchmarkRecorder.Histogram();
+    private final AtomicInteger mDone = new AtomicInteger();
+    private final AtomicInteger mFailed = new AtomicInteger();
+
+    // One execution context of the model per worker thread.
+    private final ThreadLocal<CpuFastStyleModel> mContexts = new ThreadLocal<CpuFastStyleModel>() {
+        @Override
+        protected CpuFastStyleModel initialValue() {
+            return new CpuFastStyleModel(mWeights);
+        }
+    };
+
+    public BatchStylizer(CpuFastStyleModel weights, int size, File output) {
+        mWeights = weights;
+        mSize = size;
+        mOutput = output;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String input = null;
+        String output = null;
+        String style = CpuFastStyleModel.DEFAULT_MODEL;
+        String assets = System.getProperty("assets.dir", "app/src/main/assets");
+        int size = 512;
+        int threads = Runtime.getRuntime().availableProcessors();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value of " + arg);
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--input":
+                        input = value;
+                        break;
+                    case "--output":
+                        output = value;
+                        break;
+                    case "--style":
+                        style = value;
+                        break;
+                    case "--size":
+                        size = Integer.parseInt(value);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    case "--assets":
+                        assets = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (input == null || output == null) {
+                throw new IllegalArgumentException("--input and --output are required");
+            }
+            if (size < 4 || threads < 1) {
+                throw new IllegalArgumentException("Invalid size or thread count");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        List<Path> files = listInputs(input);
+        if (files.isEmpty()) {
+            System.err.println("No image matches " + input);
+            System.exit(1);
+        }
+
+        long time = System.nanoTime();
+        CpuFastStyleModel weights = new CpuFastStyleModel();
+        weights.loadModel(new WeightSource.Directory(new File(assets)), style);
+        System.out.printf("loaded %s in %d ms, %d images, size %d, %d threads%n", style,
+                (System.nanoTime() - time) / 1000000, files.size(), size, threads);
+
+        BatchStylizer stylizer = new BatchStylizer(weights, size, new File(output));
+        stylizer.run(root(input), files, threads);
+        System.exit(stylizer.mFailed.get() == 0 ? 0 : 1);
+    }
+
+    // Stylize all the files, relative to root, and print the summary.
+    public void run(final Path root, List<Path> files, int threads) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // Bounds the decoded images in flight.
+        final Semaphore inFlight = new Semaphore(2 * threads);
+        long start = System.nanoTime();
+        for (final Path file : files) {
+            inFlight.acquire();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        stylize(root, file);
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        long elapsed = System.nanoTime() - start;
+
+        int done = mDone.get();
+        synchronized (mLatency) {
+            System.out.printf("%d images in %.1f s, %.2f images/s, %d failed%n", done,
+                    elapsed / 1e9, done * 1e9 / elapsed, mFailed.get());
+            System.out.printf("latency p50 %.1f ms, p90 %.1f ms, p99 %.1f ms%n",
+                    mLatency.percentile(50) / 1e6, mLatency.percentile(90) / 1e6,
+                    mLatency.percentile(99) / 1e6);
+        }
+    }
+
+    private void stylize(Path root, Path file) {
+        long start = System.nanoTime();
+        try {
+            ImageCodec.Pixels pixels = ImageCodec.scale(ImageCodec.read(file.toFile()), mSize);
+            int[] result = mContexts.get().stylize(pixels.argb, pixels.height, pixels.width);
+
+            File out = new File(mOutput, outputName(root.relativize(file).toString()));
+            File parent = out.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+                throw new IOException("Can not create " + parent);
+            }
+            ImageCodec.writePng(ImageCodec.toImage(result, pixels.height, pixels.width), out);
+            mDone.incrementAndGet();
+            long latency = System.nanoTime() - start;
+            synchronized (mLatency) {
+                mLatency.record(latency);
+            }
+        } catch (IOException | RuntimeException e) {
+            mFailed.incrementAndGet();
+            System.err.println(file + ": " + e);
+        }
+    }
+
+    // "a/b.jpg" -> "a/b.png".
+    private static String outputName(String relative) {
+        int dot = relative.lastIndexOf('.');
+        int slash = relative.lastIndexOf(File.separatorChar);
+        return (dot > slash ? relative.substring(0, dot) : relative) + ".png";
+    }
+
+    // The directory the outputs are relative to: the input directory, or the
+    // part of the glob before its first wildcard.
+    private static Path root(String input) {
+        Path path = Paths.get(input);
+        if (Files.isDirectory(path)) {
+            return path;
+        }
+        Path root = path.isAbsolute() ? path.getRoot() : Paths.get("");
+        for (Path part : path) {
+            if (hasWildcard(part.toString())) {
+                break;
+            }
+            root = root.resolve(part);
+        }
+        return root;
+    }
+
+    private static boolean hasWildcard(String s) {
+        return s.indexOf('*') >= 0 || s.indexOf('?') >= 0 || s.indexOf('[') >= 0 || s.indexOf('{') >= 0;
+    }
+
+    /*
+       The images of a directory, or the files matching a glob, e.g. "photos/*.jpg"
+       or "photos/**.png" to look into the sub-directories as well. Sorted, so the
+       runs are reproducible.
+     */
+    static List<Path> listInputs(String input) throws IOException {
+        final Path root = root(input);
+        final PathMatcher matcher;
+        if (Files.isDirectory(Paths.get(input))) {
+            matcher = FileSystems.getDefault().getPathMatcher("glob:*.{jpg,jpeg,png,bmp,gif,JPG,JPEG,PNG}");
+        } else {
+            matcher = FileSystems.getDefault().getPathMatcher(
+                    "glob:" + root.relativize(Paths.get(input)).toString());
+        }
+        final List<Path> files = new ArrayList<>();
+        if (!Files.isDirectory(root)) {
+            return files;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && matcher.matches(root.relativize(file))) {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(files);
+        return files;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.headless;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.imageio.ImageIO;
+
+/*
+   Decoding, scaling and encoding of the images with ImageIO, the desktop
+   counterpart of BitmapFactory and Bitmap.compress.
+*/
+public final class ImageCodec {
+    private ImageCodec() {
+    }
+
+    // ARGB pixels of an image, as CpuFastStyleModel.stylize takes them.
+    public static class Pixels {
+        public final int[] argb;
+        public final int height, width;
+
+        public Pixels(int[] argb, int height, int width) {
+            this.argb = argb;
+            this.height = height;
+            this.width = width;
+        }
+    }
+
+    public static BufferedImage read(File file) throws IOException {
+        BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            throw new IOException("Unsupported image format: " + file);
+        }
+        return image;
+    }
+
+    public static BufferedImage read(InputStream in) throws IOException {
+        BufferedImage image = ImageIO.read(in);
+        if (image == null) {
+            throw new IOException("Unsupported image format");
+        }
+        return image;
+    }
+
+    /*
+       Scale the image so that its longer side is size, keeping the aspect ratio.
+       Both sides are rounded down to a multiple of 4, so the two stride-2
+       convolutions and deconvolutions of the net give back the same dimensions.
+     */
+    public static Pixels scale(BufferedImage image, int size) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        double ratio = (double) size / Math.max(w, h);
+        int width = Math.max(4, (int) (w * ratio) / 4 * 4);
+        int height = Math.max(4, (int) (h * ratio) / 4 * 4);
+
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+
+        int[] argb = scaled.getRGB(0, 0, width, height, null, 0, width);
+        return new Pixels(argb, height, width);
+    }
+
+    public static BufferedImage toImage(int[] argb, int height, int width) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, width, height, argb, 0, width);
+        return image;
+    }
+
+    public static void writePng(BufferedImage image, File file) throws IOException {
+        if (!ImageIO.write(image, "png", file)) {
+            throw new IOException("No PNG writer");
+        }
+    }
+
+    public static byte[] encodePng(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, "png", out)) {
+            throw new IOException("No PNG writer");
+        }
+        return out.toByteArray();
+    }
+}
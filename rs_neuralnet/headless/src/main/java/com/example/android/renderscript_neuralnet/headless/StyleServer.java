@@ -0,0 +1,455 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.headless;
+
+import com.example.android.renderscript_neuralnet.BenchmarkRecorder;
+import com.example.android.renderscript_neuralnet.cpu.CpuFastStyleModel;
+import com.example.android.renderscript_neuralnet.cpu.WeightSource;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+   Local HTTP stylization service on the CPU backend, with the HTTP server of the JDK:
+
+     POST /stylize?style=candy&size=256   body: the image   response: the PNG
+     GET  /metrics                        queue depth, batch sizes, latency
+
+   A request is admitted before its body is read: at most queue + workers * max
+   batch requests are in flight, waiting in the queue or run by a worker. Past that,
+   the request is refused at once with a 503 and a Retry-After header, without
+   reading or decoding its image, so the backpressure protects the host as well as
+   the workers, and a load test sees it. A request not done within the timeout is
+   answered with a 504 and skipped by the workers.
+
+   The workers coalesce the requests rather than batch them: each worker takes the
+   oldest request, then gathers the requests arriving within the window, up to the
+   maximum batch size, and runs those of the same style and size one after the
+   other on its own execution context of the model. The CPU backend has no batch
+   dimension, each image goes through the whole net before the next one starts, so
+   a batch only saves the hand-offs between the threads, not any compute.
+*/
+public class StyleServer {
+    private static final String USAGE = "usage: StyleServer [--port 8080] [--threads n]"
+            + " [--window-ms 5] [--max-batch 8] [--queue 64] [--assets dir]";
+    private static final int MAX_SIZE = 1024;
+    private static final long REQUEST_TIMEOUT_SECONDS = 120;
+    private static final int EXTRA_HANDLERS = 4;
+
+    // One stylization request, completed by a worker.
+    private static class Request {
+        final String style;
+        final ImageCodec.Pixels pixels;
+        final long start = System.nanoTime();
+        final CountDownLatch done = new CountDownLatch(1);
+        // Set when the client got a timeout, so that the workers skip the request.
+        volatile boolean abandoned = false;
+        int[] result;
+        Exception error;
+
+        Request(String style, ImageCodec.Pixels pixels) {
+            this.style = style;
+            this.pixels = pixels;
+        }
+
+        // Requests with the same key can be batched.
+        String key() {
+            return style + "/" + pixels.width + "x" + pixels.height;
+        }
+    }
+
+    private final WeightSource mSource;
+    private final long mWindowNanos;
+    private final int mMaxBatch;
+    private final BlockingQueue<Request> mQueue;
+    private final int mQueueCapacity;
+    private final int mWorkers;
+    // The requests in flight, acquired before the body is read.
+    private final Semaphore mAdmission;
+    private final int mMaxInFlight;
+
+    // The loaded weights, by style.
+    private final HashMap<String, CpuFastStyleModel> mWeights = new HashMap<>();
+    // The execution contexts of each worker, by style.
+    private final ThreadLocal<HashMap<String, CpuFastStyleModel>> mContexts =
+            new ThreadLocal<HashMap<String, CpuFastStyleModel>>() {
+                @Override
+                protected HashMap<String, CpuFastStyleModel> initialValue() {
+                    return new HashMap<>();
+                }
+            };
+
+    // Metrics.
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private final AtomicLong mTimeouts = new AtomicLong();
+    private final AtomicLong mBatches = new AtomicLong();
+    // mBatchSizes[n] : number of batches of n requests.
+    private final long[] mBatchSizes;
+    private final BenchmarkRecorder.Histogram mLatency = new BenchmarkRecorder.Histogram();
+
+    private HttpServer mServer;
+
+    public StyleServer(WeightSource source, int workers, long windowMillis, int maxBatch, int queueCapacity) {
+        mSource = source;
+        mWorkers = workers;
+        mWindowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        mMaxBatch = maxBatch;
+        mQueueCapacity = queueCapacity;
+        // The requests waiting, and a batch taken off the queue by each worker. The
+        // queue can hold all of them, so that an admitted request always finds room:
+        // it only holds more than queueCapacity while the workers are between batches.
+        mMaxInFlight = queueCapacity + workers * maxBatch;
+        mAdmission = new Semaphore(mMaxInFlight);
+        mQueue = new ArrayBlockingQueue<>(mMaxInFlight);
+        mBatchSizes = new long[maxBatch + 1];
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = 8080;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long window = 5;
+        int maxBatch = 8;
+        int queue = 64;
+        String assets = System.getProperty("assets.dir", "app/src/main/assets");
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value of " + arg);
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--port":
+                        port = Integer.parseInt(value);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    case "--window-ms":
+                        window = Long.parseLong(value);
+                        break;
+                    case "--max-batch":
+                        maxBatch = Integer.parseInt(value);
+                        break;
+                    case "--queue":
+                        queue = Integer.parseInt(value);
+                        break;
+                    case "--assets":
+                        assets = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (threads < 1 || window < 0 || maxBatch < 1 || queue < 1) {
+                throw new IllegalArgumentException("Invalid option value");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        StyleServer server = new StyleServer(new WeightSource.Directory(new File(assets)),
+                threads, window, maxBatch, queue);
+        server.start(port);
+        System.out.printf("listening on port %d, %d workers, window %d ms, batches of %d, queue %d%n",
+                port, threads, window, maxBatch, queue);
+    }
+
+    public void start(int port) throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(port), 0);
+        mServer.createContext("/stylize", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleStylize(exchange);
+            }
+        });
+        mServer.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                send(exchange, 200, "text/plain", getMetrics().getBytes("UTF-8"));
+            }
+        });
+        // The handlers wait for their request to be processed: one thread per request
+        // in flight, and a few more to answer the refused requests and the metrics.
+        // The connections beyond wait in the executor until a thread is free.
+        mServer.setExecutor(Executors.newFixedThreadPool(mMaxInFlight + EXTRA_HANDLERS));
+
+        for (int i = 0; i < mWorkers; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "stylize-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        mServer.start();
+    }
+
+    public void stop() {
+        mServer.stop(0);
+    }
+
+    private void handleStylize(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "text/plain", "POST an image\n".getBytes("UTF-8"));
+                return;
+            }
+            mRequests.incrementAndGet();
+            // Admission control: refuse before reading the body rather than queue
+            // without bound.
+            if (!mAdmission.tryAcquire()) {
+                reject(exchange);
+                return;
+            }
+            try {
+                stylize(exchange);
+            } finally {
+                mAdmission.release();
+            }
+        } catch (Exception e) {
+            mErrors.incrementAndGet();
+            send(exchange, 500, "text/plain", (e + "\n").getBytes("UTF-8"));
+        }
+    }
+
+    private void stylize(HttpExchange exchange) throws Exception {
+        String style;
+        int size;
+        ImageCodec.Pixels pixels;
+        try {
+            Map<String, String> query = parseQuery(exchange.getRequestURI());
+            style = query.containsKey("style") ? query.get("style") : CpuFastStyleModel.DEFAULT_MODEL;
+            size = query.containsKey("size") ? Integer.parseInt(query.get("size")) : 256;
+            if (size < 4 || size > MAX_SIZE || !Arrays.asList(CpuFastStyleModel.STYLES).contains(style)) {
+                throw new IllegalArgumentException("Unknown style or invalid size");
+            }
+            InputStream body = exchange.getRequestBody();
+            try {
+                pixels = ImageCodec.scale(ImageCodec.read(body), size);
+            } finally {
+                body.close();
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            // A bad query or image: the client's error.
+            mErrors.incrementAndGet();
+            send(exchange, 400, "text/plain", (e + "\n").getBytes("UTF-8"));
+            return;
+        }
+
+        Request request = new Request(style, pixels);
+        // Never full: the queue has room for every admitted request.
+        mQueue.add(request);
+        if (!request.done.await(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            request.abandoned = true;
+            mTimeouts.incrementAndGet();
+            send(exchange, 504, "text/plain", "Timed out\n".getBytes("UTF-8"));
+            return;
+        }
+        if (request.error != null) {
+            throw request.error;
+        }
+        byte[] png = ImageCodec.encodePng(
+                ImageCodec.toImage(request.result, pixels.height, pixels.width));
+        send(exchange, 200, "image/png", png);
+        long latency = System.nanoTime() - request.start;
+        synchronized (mLatency) {
+            mLatency.record(latency);
+        }
+    }
+
+    private void reject(HttpExchange exchange) throws IOException {
+        mRejected.incrementAndGet();
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        send(exchange, 503, "text/plain", "Overloaded\n".getBytes("UTF-8"));
+    }
+
+    // Loop of a worker: gather a batch, run it, repeat.
+    private void work() {
+        List<Request> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.clear();
+                batch.add(mQueue.take());
+                // Coalesce the requests arriving within the window.
+                long deadline = System.nanoTime() + mWindowNanos;
+                while (batch.size() < mMaxBatch) {
+                    long wait = deadline - System.nanoTime();
+                    Request next = wait > 0 ? mQueue.poll(wait, TimeUnit.NANOSECONDS) : mQueue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            // Requests of different styles or sizes run as separate batches.
+            LinkedHashMap<String, List<Request>> groups = new LinkedHashMap<>();
+            for (Request request : batch) {
+                if (request.abandoned) {
+                    continue;
+                }
+                List<Request> group = groups.get(request.key());
+                if (group == null) {
+                    group = new ArrayList<>();
+                    groups.put(request.key(), group);
+                }
+                group.add(request);
+            }
+            for (List<Request> group : groups.values()) {
+                runBatch(group);
+            }
+        }
+    }
+
+    // Run the coalesced requests of one style and size, one image at a time.
+    private void runBatch(List<Request> batch) {
+        mBatches.incrementAndGet();
+        synchronized (mBatchSizes) {
+            mBatchSizes[batch.size()]++;
+        }
+        CpuFastStyleModel model = null;
+        Exception error = null;
+        try {
+            model = getContext(batch.get(0).style);
+        } catch (IOException e) {
+            error = e;
+        }
+        for (Request request : batch) {
+            // Skip the requests timed out while the batch ran.
+            if (!request.abandoned) {
+                try {
+                    if (error != null) {
+                        request.error = error;
+                    } else {
+                        ImageCodec.Pixels pixels = request.pixels;
+                        request.result = model.stylize(pixels.argb, pixels.height, pixels.width);
+                    }
+                } catch (RuntimeException e) {
+                    request.error = e;
+                }
+            }
+            request.done.countDown();
+        }
+    }
+
+    // The execution context of the style for the calling worker.
+    private CpuFastStyleModel getContext(String style) throws IOException {
+        HashMap<String, CpuFastStyleModel> contexts = mContexts.get();
+        CpuFastStyleModel context = contexts.get(style);
+        if (context == null) {
+            CpuFastStyleModel weights;
+            synchronized (mWeights) {
+                weights = mWeights.get(style);
+                if (weights == null) {
+                    weights = new CpuFastStyleModel();
+                    weights.loadModel(mSource, style);
+                    mWeights.put(style, weights);
+                }
+            }
+            context = new CpuFastStyleModel(weights);
+            contexts.put(style, context);
+        }
+        return context;
+    }
+
+    // Plain text metrics, one "name value" per line.
+    public String getMetrics() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("queue_depth ").append(mQueue.size()).append('\n');
+        sb.append("queue_capacity ").append(mQueueCapacity).append('\n');
+        sb.append("requests_total ").append(mRequests.get()).append('\n');
+        sb.append("rejected_total ").append(mRejected.get()).append('\n');
+        sb.append("errors_total ").append(mErrors.get()).append('\n');
+        sb.append("timeouts_total ").append(mTimeouts.get()).append('\n');
+        sb.append("in_flight ").append(mMaxInFlight - mAdmission.availablePermits()).append('\n');
+        sb.append("batches_total ").append(mBatches.get()).append('\n');
+        synchronized (mBatchSizes) {
+            long images = 0;
+            for (int i = 1; i < mBatchSizes.length; i++) {
+                images += i * mBatchSizes[i];
+                if (mBatchSizes[i] > 0) {
+                    sb.append("batch_size{size=\"").append(i).append("\"} ").append(mBatchSizes[i]).append('\n');
+                }
+            }
+            long batches = mBatches.get();
+            sb.append(String.format(Locale.US, "batch_size_mean %.2f%n", batches == 0 ? 0.0 : (double) images / batches));
+        }
+        synchronized (mLatency) {
+            sb.append(String.format(Locale.US, "latency_ms{quantile=\"0.5\"} %.1f%n", mLatency.percentile(50) / 1e6));
+            sb.append(String.format(Locale.US, "latency_ms{quantile=\"0.99\"} %.1f%n", mLatency.percentile(99) / 1e6));
+        }
+        return sb.toString();
+    }
+
+    private static Map<String, String> parseQuery(URI uri) throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<>();
+        String raw = uri.getRawQuery();
+        if (raw == null) {
+            return query;
+        }
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                query.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return query;
+    }
+
+    private static void send(HttpExchange exchange, int status, String type, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.cpu;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*
+   The variants of the net against a plain sequential run of the whole image.
+   The model files are read from the assets.dir system property, set by the build.
+*/
+public class CpuFastStyleModelTest {
+    private static final int HEIGHT = 160;
+    private static final int WIDTH = 224;
+
+    private static CpuFastStyleModel sWeights;
+    private static int[] sImage;
+    private static int[] sExpected;
+
+    @BeforeClass
+    public static void loadModel() throws IOException {
+        String assets = System.getProperty("assets.dir", "../app/src/main/assets");
+        sWeights = new CpuFastStyleModel();
+        sWeights.loadModel(new WeightSource.Directory(new File(assets)), CpuFastStyleModel.DEFAULT_MODEL);
+
+        // A gradient with noise, so that every layer sees some detail.
+        Random random = new Random(7);
+        sImage = new int[HEIGHT * WIDTH];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                sImage[y * WIDTH + x] = 0xff000000 | ((x * 255 / WIDTH) << 16)
+                        | ((y * 255 / HEIGHT) << 8) | random.nextInt(256);
+            }
+        }
+        sExpected = new CpuFastStyleModel(sWeights).stylize(sImage, HEIGHT, WIDTH);
+    }
+
+    @Test
+    public void parallelMatchesSequential() {
+        TileExecutor executor = new TileExecutor(4);
+        try {
+            CpuFastStyleModel model = new CpuFastStyleModel(sWeights);
+            model.setExecutor(executor);
+            assertArrayEquals(sExpected, model.stylize(sImage, HEIGHT, WIDTH));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void nhwcMatchesPlanar() {
+        CpuFastStyleModel model = new CpuFastStyleModel(sWeights);
+        model.setLayout(Layout.NHWC);
+        int[] actual = model.stylize(sImage, HEIGHT, WIDTH);
+        // The layouts add up the terms of the convolutions in different orders, a
+        // channel may round to the next value.
+        for (int i = 0; i < actual.length; i++) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                int expected = (sExpected[i] >>> shift) & 0xff;
+                assertEquals("pixel " + i, expected, (actual[i] >>> shift) & 0xff, 1);
+            }
+        }
+    }
+
+    @Test
+    public void regionMatchesFullRun() {
+        CpuFastStyleModel model = new CpuFastStyleModel(sWeights);
+        int[][] rects = {
+                // left, top, right, bottom
+                {0, 0, 32, 32},
+                {64, 48, 128, 112},
+                {150, 100, 224, 160},
+                {61, 37, 99, 41},
+                // The halo covers the whole image.
+                {40, 10, 170, 140},
+        };
+        for (int[] rect : rects) {
+            int[] output = new int[HEIGHT * WIDTH];
+            model.stylizeRegion(sImage, HEIGHT, WIDTH, rect[0], rect[1], rect[2], rect[3], output);
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    boolean inside = x >= rect[0] && x < rect[2] && y >= rect[1] && y < rect[3];
+                    int expected = inside ? sExpected[y * WIDTH + x] : 0;
+                    assertEquals("(" + x + ", " + y + ")", expected, output[y * WIDTH + x]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void restylizePatchesTheInfluencedRegion() {
+        CpuFastStyleModel model = new CpuFastStyleModel(sWeights);
+        int[] edited = sImage.clone();
+        for (int y = 70; y < 80; y++) {
+            for (int x = 100; x < 110; x++) {
+                edited[y * WIDTH + x] = 0xffffffff;
+            }
+        }
+        int[] output = sExpected.clone();
+        int[] patched = model.restylize(edited, HEIGHT, WIDTH, 100, 70, 110, 80, output);
+        assertTrue(patched[0] <= 100 && patched[1] <= 70 && patched[2] >= 110 && patched[3] >= 80);
+        assertArrayEquals(new CpuFastStyleModel(sWeights).stylize(edited, HEIGHT, WIDTH), output);
+    }
+}
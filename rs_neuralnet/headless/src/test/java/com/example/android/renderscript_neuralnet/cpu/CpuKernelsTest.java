@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.cpu;
+
+import com.example.android.renderscript_neuralnet.ConvolveUtil;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/*
+   The tiled kernels against the reference implementations of ConvolveUtil, which
+   pad the image and build the whole column matrix at once.
+   The shapes are those of the layers of the net: 9x9 stride 1 pad 4, and 4x4
+   stride 2 pad 1.
+*/
+public class CpuKernelsTest {
+    private static final float EPSILON = 1e-5f;
+
+    private static final int[][] SHAPES = {
+            // channels, ksize, stride, pad
+            {3, 9, 1, 4},
+            {5, 4, 2, 1},
+            {2, 3, 1, 1},
+    };
+
+    private static float[] random(Random random, int size) {
+        float[] data = new float[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = random.nextFloat() * 2 - 1;
+        }
+        return data;
+    }
+
+    @Test
+    public void im2colMatchesReference() {
+        Random random = new Random(2);
+        for (int[] shape : SHAPES) {
+            int channels = shape[0], ksize = shape[1], stride = shape[2], pad = shape[3];
+            int img_h = 14, img_w = 18;
+            int out_h = ConvolveUtil.get_conv_outsize(img_h, ksize, stride, pad);
+            int out_w = ConvolveUtil.get_conv_outsize(img_w, ksize, stride, pad);
+            int K = channels * ksize * ksize;
+            float[] img = random(random, channels * img_h * img_w);
+            // One row per output pixel.
+            float[] reference = ConvolveUtil.im2col(img, img_h, img_w, channels,
+                    ksize, ksize, stride, stride, pad, pad);
+
+            // Tiles of 3 rows, the last one partial.
+            for (int row0 = 0; row0 < out_h; row0 += 3) {
+                int rows = Math.min(3, out_h - row0);
+                float[] col = random(random, K * rows * out_w);
+                CpuKernels.im2col(img, channels, img_h, img_w, pad, ksize, stride,
+                        row0, rows, out_w, col);
+                for (int k = 0; k < K; k++) {
+                    for (int i = 0; i < rows * out_w; i++) {
+                        int pixel = row0 * out_w + i;
+                        assertEquals(reference[pixel * K + k], col[k * rows * out_w + i], 0.0f);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void col2imMatchesReference() {
+        Random random = new Random(3);
+        for (int[] shape : SHAPES) {
+            int channels = shape[0], ksize = shape[1], stride = shape[2], pad = shape[3];
+            int col_h = 7, col_w = 9;
+            int img_h = ConvolveUtil.get_deconv_outsize(col_h, ksize, stride, pad);
+            int img_w = ConvolveUtil.get_deconv_outsize(col_w, ksize, stride, pad);
+            int padded_h = img_h + 2 * pad;
+            int padded_w = img_w + 2 * pad;
+            int K = channels * ksize * ksize;
+            float[] col = random(random, K * col_h * col_w);
+            float[] reference = ConvolveUtil.col2im(col, col_h, col_w, channels,
+                    ksize, ksize, stride, stride, pad, pad);
+
+            // Tiles of 2 input rows, each with its own slice of the column matrix.
+            float[] padded = new float[channels * padded_h * padded_w];
+            for (int row0 = 0; row0 < col_h; row0 += 2) {
+                int rows = Math.min(2, col_h - row0);
+                float[] tile = new float[K * rows * col_w];
+                for (int k = 0; k < K; k++) {
+                    System.arraycopy(col, (k * col_h + row0) * col_w, tile, k * rows * col_w, rows * col_w);
+                }
+                CpuKernels.col2im(tile, channels, ksize, stride, row0, rows, col_w,
+                        padded, padded_h, padded_w);
+            }
+            float[] img = new float[channels * img_h * img_w];
+            CpuKernels.unpadd(padded, channels, img_h, img_w, pad, img);
+            assertArrayEquals(reference, img, EPSILON);
+        }
+    }
+
+    @Test
+    public void col2imSumsDoNotDependOnTheTiling() {
+        Random random = new Random(4);
+        int channels = 4, ksize = 4, stride = 2, col_h = 10, col_w = 6;
+        int padded_h = (col_h - 1) * stride + ksize;
+        int padded_w = (col_w - 1) * stride + ksize;
+        int K = channels * ksize * ksize;
+        float[] col = random(random, K * col_h * col_w);
+
+        float[] whole = new float[channels * padded_h * padded_w];
+        CpuKernels.col2im(col, channels, ksize, stride, 0, col_h, col_w, whole, padded_h, padded_w);
+        float[] tiled = new float[whole.length];
+        for (int row0 = 0; row0 < col_h; row0++) {
+            float[] tile = new float[K * col_w];
+            for (int k = 0; k < K; k++) {
+                System.arraycopy(col, (k * col_h + row0) * col_w, tile, k * col_w, col_w);
+            }
+            CpuKernels.col2im(tile, channels, ksize, stride, row0, 1, col_w, tiled, padded_h, padded_w);
+        }
+        assertArrayEquals(whole, tiled, 0.0f);
+    }
+
+    @Test
+    public void nhwcKernelsMatchPlanar() {
+        Random random = new Random(5);
+        for (int[] shape : SHAPES) {
+            int channels = shape[0], ksize = shape[1], stride = shape[2], pad = shape[3];
+            int img_h = 12, img_w = 10;
+            int out_h = ConvolveUtil.get_conv_outsize(img_h, ksize, stride, pad);
+            int out_w = ConvolveUtil.get_conv_outsize(img_w, ksize, stride, pad);
+            int K = channels * ksize * ksize;
+            int pixels = out_h * out_w;
+            float[] img = random(random, channels * img_h * img_w);
+            float[] nhwc = new float[img.length];
+            CpuKernels.transpose(img, channels, img_h * img_w, nhwc);
+
+            float[] col = new float[K * pixels];
+            CpuKernels.im2col(img, channels, img_h, img_w, pad, ksize, stride, 0, out_h, out_w, col);
+            float[] colNhwc = new float[pixels * K];
+            CpuKernels.im2colNhwc(nhwc, channels, img_h, img_w, pad, ksize, stride, 0, out_h, out_w, colNhwc);
+            // Planar rows are ordered by channel, kernel row and column, NHWC columns
+            // by kernel row, column and channel.
+            for (int ic = 0; ic < channels; ic++) {
+                for (int ikh = 0; ikh < ksize; ikh++) {
+                    for (int ikw = 0; ikw < ksize; ikw++) {
+                        int k = (ic * ksize + ikh) * ksize + ikw;
+                        int kNhwc = (ikh * ksize + ikw) * channels + ic;
+                        for (int i = 0; i < pixels; i++) {
+                            assertEquals(col[k * pixels + i], colNhwc[i * K + kNhwc], 0.0f);
+                        }
+                    }
+                }
+            }
+
+            // Both directions of the transpose.
+            float[] back = new float[img.length];
+            CpuKernels.transpose(nhwc, img_h * img_w, channels, back);
+            assertArrayEquals(img, back, 0.0f);
+        }
+    }
+}
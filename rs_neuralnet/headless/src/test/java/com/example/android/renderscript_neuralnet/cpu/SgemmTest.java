@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.cpu;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class SgemmTest {
+    private static final float EPSILON = 1e-4f;
+
+    private static float[] random(Random random, int size) {
+        float[] data = new float[size];
+        for (int i = 0; i < size; i++) {
+            // Some zeros, which Sgemm skips.
+            data[i] = random.nextInt(8) == 0 ? 0.0f : random.nextFloat() * 2 - 1;
+        }
+        return data;
+    }
+
+    // C = A * B, one dot product per element.
+    private static void naive(int m, int n, int k,
+                              float[] a, int aOff, int lda,
+                              float[] b, int bOff, int ldb,
+                              float[] c, int cOff, int ldc) {
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < n; j++) {
+                float sum = 0.0f;
+                for (int p = 0; p < k; p++) {
+                    sum += a[aOff + i * lda + p] * b[bOff + p * ldb + j];
+                }
+                c[cOff + i * ldc + j] = sum;
+            }
+        }
+    }
+
+    private static void check(int m, int n, int k) {
+        Random random = new Random(m * 31 + n * 17 + k);
+        float[] a = random(random, m * k);
+        float[] b = random(random, k * n);
+        float[] expected = new float[m * n];
+        float[] actual = random(random, m * n);
+        naive(m, n, k, a, 0, k, b, 0, n, expected, 0, n);
+        Sgemm.sgemm(m, n, k, a, 0, k, b, 0, n, actual, 0, n);
+        for (int i = 0; i < m * n; i++) {
+            assertEquals(m + "x" + n + "x" + k + " at " + i, expected[i], actual[i], EPSILON);
+        }
+    }
+
+    @Test
+    public void matchesNaive() {
+        check(1, 1, 1);
+        check(3, 5, 7);
+        check(32, 81, 27);
+        // Larger than the blocks of B, with partial blocks.
+        check(17, 1100, 130);
+        check(64, 513, 65);
+    }
+
+    @Test
+    public void honoursOffsetsAndLeadingDimensions() {
+        int m = 5, n = 9, k = 6;
+        int lda = k + 3, ldb = n + 2, ldc = n + 4;
+        int aOff = 7, bOff = 11, cOff = 13;
+        Random random = new Random(1);
+        float[] a = random(random, aOff + m * lda);
+        float[] b = random(random, bOff + k * ldb);
+        float[] expected = new float[cOff + m * ldc];
+        float[] actual = new float[cOff + m * ldc];
+        naive(m, n, k, a, aOff, lda, b, bOff, ldb, expected, cOff, ldc);
+        Sgemm.sgemm(m, n, k, a, aOff, lda, b, bOff, ldb, actual, cOff, ldc);
+        for (int i = 0; i < expected.length; i++) {
+            // Outside of C, nothing is written.
+            assertEquals("at " + i, expected[i], actual[i], EPSILON);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.renderscript_neuralnet.cpu;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/*
+   Frames of 10 x 8 tiles of 32 pixels: a changed tile dirties the tiles up to
+   ceil(RECEPTIVE_RADIUS / 32) = 2 tiles away.
+*/
+public class TemporalTileCacheTest {
+    private static final int HEIGHT = 256;
+    private static final int WIDTH = 320;
+    private static final int TILE = 32;
+    private static final int TILES = (HEIGHT / TILE) * (WIDTH / TILE);
+
+    private static CpuFastStyleModel sWeights;
+    private static int[] sFrame;
+
+    @BeforeClass
+    public static void loadModel() throws IOException {
+        String assets = System.getProperty("assets.dir", "../app/src/main/assets");
+        sWeights = new CpuFastStyleModel();
+        sWeights.loadModel(new WeightSource.Directory(new File(assets)), CpuFastStyleModel.DEFAULT_MODEL);
+
+        Random random = new Random(11);
+        sFrame = new int[HEIGHT * WIDTH];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                sFrame[y * WIDTH + x] = 0xff000000 | ((x * 255 / WIDTH) << 16)
+                        | ((y * 255 / HEIGHT) << 8) | random.nextInt(256);
+            }
+        }
+    }
+
+    private static int[] stylize(int[] frame) {
+        return new CpuFastStyleModel(sWeights).stylize(frame, HEIGHT, WIDTH);
+    }
+
+    @Test
+    public void unchangedFrameRecomputesNothing() {
+        TemporalTileCache cache = new TemporalTileCache(new CpuFastStyleModel(sWeights), TILE, 0);
+        int[] first = cache.process(sFrame, HEIGHT, WIDTH).clone();
+        int[] second = cache.process(sFrame.clone(), HEIGHT, WIDTH);
+        assertArrayEquals(first, second);
+        // The first frame is stylized whole, the second not at all.
+        assertEquals(0.5f, cache.getComputeFraction(), 0.0f);
+        assertEquals(0.5f, cache.getDirtyFraction(), 0.0f);
+    }
+
+    @Test
+    public void changeBelowThresholdIsIgnored() {
+        TemporalTileCache cache = new TemporalTileCache(new CpuFastStyleModel(sWeights), TILE, 2);
+        int[] first = cache.process(sFrame, HEIGHT, WIDTH).clone();
+        // 3 * 255 over a tile is well below 2 per channel on average.
+        int[] frame = sFrame.clone();
+        frame[130 * WIDTH + 150] ^= 0x00ffffff;
+        assertArrayEquals(first, cache.process(frame, HEIGHT, WIDTH));
+        assertEquals(0.5f, cache.getComputeFraction(), 0.0f);
+    }
+
+    @Test
+    public void onePixelChangeMatchesFullRun() {
+        TemporalTileCache cache = new TemporalTileCache(new CpuFastStyleModel(sWeights), TILE, 0);
+        cache.process(sFrame, HEIGHT, WIDTH);
+        // In tile (4, 4): the tiles [2, 6] x [2, 6] are dirty.
+        int[] frame = sFrame.clone();
+        frame[130 * WIDTH + 150] ^= 0x00ffffff;
+        int[] output = cache.process(frame, HEIGHT, WIDTH);
+        // stylizeRegion gives the pixels of a full run exactly.
+        assertArrayEquals(stylize(frame), output);
+        assertEquals((TILES + 25) / (2.0f * TILES), cache.getDirtyFraction(), 1e-6f);
+        // The rectangle [64, 224) x [64, 224) and its halo, clamped to the frame:
+        // [4, 284) x [4, 256).
+        float computed = WIDTH * HEIGHT + 280 * 252;
+        assertEquals(computed / (2.0f * WIDTH * HEIGHT), cache.getComputeFraction(), 1e-6f);
+    }
+
+    @Test
+    public void mostlyChangedFrameIsStylizedWhole() {
+        TemporalTileCache cache = new TemporalTileCache(new CpuFastStyleModel(sWeights), TILE, 0);
+        cache.process(sFrame, HEIGHT, WIDTH);
+        // Changes in the tiles (2, 2), (7, 2) and (4, 6) dirty 65 tiles out of 80, over
+        // 2 rectangles whose halos would add up to more than the frame.
+        int[] frame = sFrame.clone();
+        int[][] tiles = {{2, 2}, {7, 2}, {4, 6}};
+        for (int[] tile : tiles) {
+            frame[(tile[1] * TILE + 5) * WIDTH + tile[0] * TILE + 5] ^= 0x00ffffff;
+        }
+        int[] output = cache.process(frame, HEIGHT, WIDTH);
+        assertArrayEquals(stylize(frame), output);
+        assertEquals((TILES + 65) / (2.0f * TILES), cache.getDirtyFraction(), 1e-6f);
+        // Both frames are stylized once.
+        assertEquals(1.0f, cache.getComputeFraction(), 0.0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnalignedFrames() {
+        TemporalTileCache cache = new TemporalTileCache(new CpuFastStyleModel(sWeights), TILE, 0);
+        cache.process(new int[(HEIGHT - 2) * WIDTH], HEIGHT - 2, WIDTH);
+    }
+}